@@ -0,0 +1,218 @@
+import java.io.File;
+import java.util.Arrays;
+
+import benchmarks.Workload;
+
+/**
+ * The stages benchmarked by benchmarks.STARDataBenchmark, on LIVER_DATA.csv and LIVER_FOLLOWUP_DATA.csv
+ * files written by {@link STARDataGenerator} from a fixed seed, the same source as the -generate scale
+ * runs. The files go to a temporary directory, with the "VariableIDs" files read from the working
+ * directory, and are deleted once the workload has read them (Parse keeps them until tearDown).
+ */
+public class STARDataWorkloads {
+
+	private static final long SEED = 42;
+
+	/**
+	 * Parsing and projecting LIVER_DATA.csv rows into a reused builder.
+	 */
+	public static class Parse implements Workload {
+		private File directory;
+		private final STARDataCohortBuilder builder = new STARDataCohortBuilder();
+
+		public void setUp(int patients) throws Exception {
+			directory = generate(patients);
+		}
+
+		public Object run() throws Exception {
+			STARDataReader reader = new STARDataReader(new File(directory, "LIVER_DATA.csv"), STARDataColumns.LIVER_PROJECTION);
+			builder.clear();
+			reader.next();
+			while (reader.next()) { STARDataIngest.readRow(reader, builder); }
+			reader.close();
+			return builder.rows();
+		}
+
+		public void tearDown() {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * MELD 3.0 over one lab entry per row.
+	 */
+	public static class MELD implements Workload {
+		private final STARDataMELD labs = new STARDataMELD(1024);
+		private float[] scores;
+
+		public void setUp(int patients) throws Exception {
+			readRows(new STARDataIngest.RowSink() {
+				public void addRow(int ptCode, int trrIdCode, int age, byte diab, byte hcv, byte functionalStatus, int dischargeDay, double bmi,
+									boolean female, double bilirubin, double inr, double creatinine, double sodium, double albumin, boolean dialysis) {
+					labs.add(female, bilirubin, inr, creatinine, sodium, albumin, dialysis);
+				}
+			}, patients);
+			scores = new float[labs.size];
+		}
+
+		public Object run() {
+			STARDataMELD.MELD_3_0.score(labs, 0, labs.size, scores);
+			return scores;
+		}
+
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * Grouping the accepted rows by patient, dropping incomplete patients and building the cohort arrays.
+	 */
+	public static class Cleanup implements Workload {
+		private final STARDataCohortBuilder builder = new STARDataCohortBuilder();
+
+		public void setUp(int patients) throws Exception {
+			readRows(builder, patients);
+		}
+
+		public Object run() {
+			return builder.build();
+		}
+
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * Finding each patient's smallest discharge-to-hospitalization gap.
+	 */
+	public static class Readmissions implements Workload {
+		private STARDataCohort cohort;
+
+		public void setUp(int patients) throws Exception {
+			cohort = cohort(patients);
+		}
+
+		public Object run() {
+			cohort.findReadmissionGaps();
+			return cohort.readmissionGap;
+		}
+
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * Age, BMI and MELD accumulators of the readmitted and not readmitted patients and their t statistics.
+	 */
+	public static class Statistics implements Workload {
+		private STARDataCohort cohort;
+
+		public void setUp(int patients) throws Exception {
+			cohort = cohort(patients);
+			cohort.markReadmissions(30);
+		}
+
+		public Object run() {
+			STARDataStatistics[] yes = {new STARDataStatistics(), new STARDataStatistics(), new STARDataStatistics()};
+			STARDataStatistics[] no = {new STARDataStatistics(), new STARDataStatistics(), new STARDataStatistics()};
+			for (int i = 0; i < cohort.size; i++) {
+				STARDataStatistics[] group = cohort.readmitted[i] ? yes : no;
+				group[0].add(cohort.age[i]);
+				group[1].add(cohort.averageBMI[i]);
+				group[2].add(cohort.averageMELD[i]);
+			}
+			return STARDataStatistics.tTest(yes[0], no[0]) + STARDataStatistics.tTest(yes[1], no[1]) + STARDataStatistics.tTest(yes[2], no[2]);
+		}
+
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * Logistic regression of 30-day readmission on diabetes, HCV, functional status, age, BMI and MELD.
+	 */
+	public static class Regression implements Workload {
+		private STARDataCohort cohort;
+		private STARDataCube.Measure[] covariates;
+
+		public void setUp(int patients) throws Exception {
+			cohort = cohort(patients);
+			cohort.markReadmissions(30);
+			STARDataCube.Measure[] functionalStatus = STARDataRegression.indicators(cohort, STARDataCube.FUNCTIONAL_STATUS);
+			covariates = Arrays.copyOf(functionalStatus, functionalStatus.length + 5);
+			covariates[functionalStatus.length] = STARDataRegression.indicator(STARDataCube.DIABETES, STARDataCube.YES);
+			covariates[functionalStatus.length + 1] = STARDataRegression.indicator(STARDataCube.HCV, STARDataCube.YES);
+			covariates[functionalStatus.length + 2] = STARDataCube.AGE;
+			covariates[functionalStatus.length + 3] = STARDataCube.BMI;
+			covariates[functionalStatus.length + 4] = STARDataCube.MELD;
+		}
+
+		public Object run() throws Exception {
+			return STARDataRegression.fit(cohort, STARDataCube.READMITTED, covariates, Runtime.getRuntime().availableProcessors()).coefficients;
+		}
+
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * A temporary directory with LIVER_DATA.csv and LIVER_FOLLOWUP_DATA.csv for the given number of
+	 * patients.
+	 */
+	static File generate(int patients) throws Exception {
+		File directory = File.createTempFile("STARData", "");
+		if (!directory.delete() || !directory.mkdir()) { throw new IllegalStateException("Cannot create " + directory); }
+		STARDataGenerator generator = new STARDataGenerator();
+		generator.seed = SEED;
+		try {
+			generator.generate(new File(directory, "LIVER_DATA.csv"), new File("VariableIDs - LIVER_DATA.txt"), new File(directory, "LIVER_FOLLOWUP_DATA.csv"),
+								new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), patients, Runtime.getRuntime().availableProcessors());
+		} catch (Exception e) {
+			delete(directory);
+			throw e;
+		}
+		return directory;
+	}
+
+	/**
+	 * Hands the accepted LIVER_DATA rows of the given number of generated patients to the sink, the way
+	 * the ingest would.
+	 */
+	static void readRows(STARDataIngest.RowSink sink, int patients) throws Exception {
+		File directory = generate(patients);
+		try {
+			STARDataReader reader = new STARDataReader(new File(directory, "LIVER_DATA.csv"), STARDataColumns.LIVER_PROJECTION);
+			try {
+				reader.next();
+				while (reader.next()) { STARDataIngest.readRow(reader, sink); }
+			} finally {
+				reader.close();
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * The cohort of the given number of generated patients, joined to their follow-up hospitalizations.
+	 */
+	static STARDataCohort cohort(int patients) throws Exception {
+		File directory = generate(patients);
+		try {
+			int threads = Runtime.getRuntime().availableProcessors();
+			STARDataCohort cohort = STARDataIngest.readCohort(new File(directory, "LIVER_DATA.csv"), threads);
+			STARDataFollowUpJoin.join(new File(directory, "LIVER_FOLLOWUP_DATA.csv"), cohort, threads);
+			return cohort;
+		} finally {
+			delete(directory);
+		}
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) { file.delete(); }
+		}
+		directory.delete();
+	}
+}
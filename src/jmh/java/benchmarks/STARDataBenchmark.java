@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of each pipeline stage, in whole passes over a synthetic cohort per second:
+ * Parse (CSV row parsing and projection of LIVER_DATA), MELD (MELD 3.0 scoring of the lab arrays, on the
+ * vector path since the forks add jdk.incubator.vector),
+ * Readmissions (matching follow-up hospitalizations to the latest earlier discharge), Cleanup (grouping
+ * rows by patient and filtering them into the cohort), Statistics (per-group accumulators and the t
+ * statistic) and Regression (the logistic regression fit on all cores). main runs them with the gc profiler, which adds the allocation rate per pass.
+ *
+ * Each stage's setup writes LIVER_DATA.csv and LIVER_FOLLOWUP_DATA.csv to java.io.tmpdir first with
+ * STARDataGenerator, about 1.4 KB per patient (roughly 14 GB for 10M patients), and reads the
+ * "VariableIDs" files from the working directory, so run it from the repository root; pick sizes with
+ * -p patients=... .
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class STARDataBenchmark {
+
+	@Param({"Parse", "MELD", "Readmissions", "Cleanup", "Statistics", "Regression"})
+	public String stage;
+
+	@Param({"10000", "100000", "1000000", "10000000"})
+	public int patients;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		workload = (Workload) Class.forName("STARDataWorkloads$" + stage).getDeclaredConstructor().newInstance();
+		workload.setUp(patients);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		workload.tearDown();
+	}
+
+	@Benchmark
+	public Object run() throws Exception {
+		return workload.run();
+	}
+
+	/**
+	 * Takes the usual JMH command line; the gc profiler is always added.
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(options).include(STARDataBenchmark.class.getName()).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,21 @@
+package benchmarks;
+
+/**
+ * One stage of the pipeline set up on synthetic data. The stages live in the default package with the
+ * code they exercise (see STARDataWorkloads), which classes in a named package, such as the ones JMH
+ * generates, cannot refer to; they are loaded by name and called through this interface instead.
+ */
+public interface Workload {
+
+	/**
+	 * Builds the input for a cohort of about the given number of patients.
+	 */
+	void setUp(int patients) throws Exception;
+
+	/**
+	 * Runs the stage once over the whole input and returns something derived from the result.
+	 */
+	Object run() throws Exception;
+
+	void tearDown() throws Exception;
+}
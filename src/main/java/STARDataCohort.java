@@ -0,0 +1,113 @@
+/**
+ * Cleaned cohort stored column by column: one primitive array per attribute, indexed by patient
+ * position (patients are in PT_CODE order). Repeated transplants, BMI/MELD measurements and follow-up
+ * hospitalizations are kept CSR style: patient i owns entries [offsets[i], offsets[i + 1]) of the
+ * matching value array. Dates are epoch days, and each patient's discharge and follow-up days are
+ * sorted.
+ */
+public class STARDataCohort {
+
+	public static final byte HCV_UNKNOWN = 0, HCV_NEGATIVE = 1, HCV_POSITIVE = 2;
+	public static final byte DIAB_UNKNOWN = 0, DIAB_NO = 1;
+	public static final int[] FUNCTIONAL_STATUS_CODES = {2010, 2020, 2030, 2040, 2050, 2060, 2070, 2080, 2090, 2100};
+	public static final byte FUNCTIONAL_STATUS_UNKNOWN = -1;
+	public static final int NO_READMISSION = Integer.MAX_VALUE;
+
+	public int size;
+	public int ingestedSize;
+
+	public int[] ptCode;
+	public int[] trrIdCode;
+	public int[] age;
+	public byte[] diab;					// DIAB code 1 (none) to 5
+	public byte[] hcv;					// HCV_NEGATIVE or HCV_POSITIVE
+	public byte[] functionalStatus;		// index into FUNCTIONAL_STATUS_CODES
+
+	public int[] dischargeOffsets;
+	public int[] dischargeDays;
+	public int[] bmiOffsets;
+	public double[] bmi;
+	public int[] meldOffsets;
+	public float[] meld;
+	public STARDataMELD labs;			// the labs behind each meld entry
+	public int[] followUpOffsets;
+	public int[] followUpDays;
+
+	public double[] averageBMI;
+	public double[] averageMELD;
+	public int[] readmissionGap;		// see readmissionGap(int)
+	public boolean[] readmitted;		// for the last window passed to markReadmissions
+	public long[] rowFingerprint;		// hash of the LIVER_DATA rows the patient was built from (see STARDataCohortBuilder)
+	public long[] followUpFingerprint;	// sum of followUpHash over the matched follow-up rows
+
+	public boolean isDiabetic(int patient) {
+		return diab[patient] > DIAB_NO;
+	}
+
+	/**
+	 * Days from a discharge to the first follow-up hospitalization after it, the smallest over the
+	 * patient's discharges, or NO_READMISSION. Both date lists are sorted, so they are merged: for each
+	 * follow-up only the latest discharge before it matters.
+	 */
+	public int readmissionGap(int patient) {
+		int k = dischargeOffsets[patient], lastDischarge = dischargeOffsets[patient + 1] - 1, gap = NO_READMISSION;
+		if (k > lastDischarge) { return gap; }
+		for (int j = followUpOffsets[patient]; j < followUpOffsets[patient + 1]; j++) {
+			int followUp = followUpDays[j];
+			while (k < lastDischarge && dischargeDays[k + 1] < followUp) { k++; }
+			int difference = followUp - dischargeDays[k];
+			if (difference > 0 && difference < gap) { gap = difference; }
+		}
+		return gap;
+	}
+
+	/**
+	 * True if one of the patient's follow-up hospitalizations falls 1 to days days after one of their
+	 * discharges.
+	 */
+	public boolean readmittedWithin(int patient, int days) {
+		return readmissionGap(patient) <= days;
+	}
+
+	/**
+	 * Fills readmissionGap for every patient, in one pass over the follow-ups.
+	 */
+	public void findReadmissionGaps() {
+		readmissionGap = new int[size];
+		for (int i = 0; i < size; i++) { readmissionGap[i] = readmissionGap(i); }
+	}
+
+	/**
+	 * Sets readmitted for a window of the given number of days.
+	 */
+	public void markReadmissions(int days) {
+		if (readmissionGap == null) { findReadmissionGaps(); }
+		for (int i = 0; i < size; i++) { readmitted[i] = readmissionGap[i] <= days; }
+	}
+
+	/**
+	 * What one follow-up hospitalization on day adds to its patient's followUpFingerprint. The
+	 * fingerprint is the sum over the patient's matched rows, duplicates included, so it does not depend on
+	 * the order the rows are read in.
+	 */
+	public static long followUpHash(int ptCode, int day) {
+		return mix(mix(0, ptCode), day);
+	}
+
+	/**
+	 * Folds a value into a hash (SplitMix64 finalizer over hash * 31 + value).
+	 */
+	static long mix(long hash, long value) {
+		long z = hash * 31 + value + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public static byte functionalStatusIndex(int code) {
+		for (int i = 0; i < FUNCTIONAL_STATUS_CODES.length; i++) {
+			if (FUNCTIONAL_STATUS_CODES[i] == code) { return (byte) i; }
+		}
+		return FUNCTIONAL_STATUS_UNKNOWN;
+	}
+}
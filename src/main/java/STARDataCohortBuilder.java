@@ -0,0 +1,304 @@
+import java.util.Arrays;
+
+/**
+ * Collects accepted LIVER_DATA rows in primitive arrays and turns them into a {@link STARDataCohort}.
+ * Rows are grouped by PT_CODE in the order they were added: the first row of a patient supplies age,
+ * DIAB, HCV and functional status, and every row adds a discharge date, its BMI if present and its
+ * MELD labs (discharge dates end up sorted per patient). MELD 3.0 is scored for all rows in one batch by
+ * {@link STARDataMELD}.
+ * Patients with an unknown DIAB, HCV or functional status, or without any BMI or MELD, are left out.
+ * The builder counts what happens to each row and patient in rowOutcomes and patientOutcomes.
+ *
+ * Each patient kept gets a rowFingerprint: a hash of every field of their rows, in the order they were
+ * added. After {@link #match(STARDataCohort)}, patients whose fingerprint is the same in a previous
+ * cohort are copied from there, and neither scored nor built again.
+ */
+public class STARDataCohortBuilder implements STARDataIngest.RowSink {
+
+	private int rows;
+	private int[] ptCode = new int[1024], trrIdCode = new int[1024], age = new int[1024], dischargeDay = new int[1024];
+	private byte[] diab = new byte[1024], hcv = new byte[1024], functionalStatus = new byte[1024];
+	private double[] bmi = new double[1024];
+	private STARDataMELD labs = new STARDataMELD(1024);
+	private float[] meld;
+	private long[] order;			// PT_CODE << 32 | row, sorted
+	private STARDataCohort previous;
+	private int[] previousPatient;	// at the start of each patient in order: their position in previous, or -1
+
+	/**
+	 * Outcomes of the patients: kept, or the first check that left them out.
+	 */
+	public static final int KEPT = 0, UNKNOWN_DIAB = 1, UNKNOWN_HCV = 2, UNKNOWN_FUNCTIONAL_STATUS = 3, NO_BMI = 4, NO_MELD = 5;
+	public static final String[] PATIENT_OUTCOMES = {"Kept", "Unknown DIAB", "Unknown HCV", "Unknown FUNC_STAT_TRR", "No BMI", "No MELD"};
+
+	public final long[] rowOutcomes = new long[STARDataIngest.ROW_OUTCOMES.length];	// filled by STARDataIngest.readRows
+	public final long[] patientOutcomes = new long[PATIENT_OUTCOMES.length];
+
+	public void addRow(int ptCode, int trrIdCode, int age, byte diab, byte hcv, byte functionalStatus, int dischargeDay, double bmi,
+						boolean female, double bilirubin, double inr, double creatinine, double sodium, double albumin, boolean dialysis) {
+		if (rows == this.ptCode.length) { grow(rows * 2); }
+		this.ptCode[rows] = ptCode;
+		this.trrIdCode[rows] = trrIdCode;
+		this.age[rows] = age;
+		this.diab[rows] = diab;
+		this.hcv[rows] = hcv;
+		this.functionalStatus[rows] = functionalStatus;
+		this.dischargeDay[rows] = dischargeDay;
+		this.bmi[rows] = bmi;
+		labs.add(female, bilirubin, inr, creatinine, sodium, albumin, dialysis);
+		rows++;
+		order = null;
+	}
+
+	/**
+	 * Appends the rows of a builder that read a later part of the file.
+	 */
+	public void addAll(STARDataCohortBuilder other) {
+		if (rows + other.rows > ptCode.length) { grow(Math.max(rows + other.rows, rows * 2)); }
+		System.arraycopy(other.ptCode, 0, ptCode, rows, other.rows);
+		System.arraycopy(other.trrIdCode, 0, trrIdCode, rows, other.rows);
+		System.arraycopy(other.age, 0, age, rows, other.rows);
+		System.arraycopy(other.diab, 0, diab, rows, other.rows);
+		System.arraycopy(other.hcv, 0, hcv, rows, other.rows);
+		System.arraycopy(other.functionalStatus, 0, functionalStatus, rows, other.rows);
+		System.arraycopy(other.dischargeDay, 0, dischargeDay, rows, other.rows);
+		System.arraycopy(other.bmi, 0, bmi, rows, other.rows);
+		labs.addAll(other.labs);
+		rows += other.rows;
+		for (int k = 0; k < rowOutcomes.length; k++) { rowOutcomes[k] += other.rowOutcomes[k]; }
+		meld = null;
+		order = null;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * Drops the rows so the builder can be reused.
+	 */
+	public void clear() {
+		rows = 0;
+		labs.size = 0;
+		meld = null;
+		order = null;
+		previous = null;
+		Arrays.fill(rowOutcomes, 0);
+		Arrays.fill(patientOutcomes, 0);
+	}
+
+	/**
+	 * Finds the patients whose rows have the same fingerprint in previous (a cohort this builder built
+	 * from an earlier release), so that score skips their rows and build copies them from previous. Rows
+	 * added afterwards undo it.
+	 */
+	public void match(STARDataCohort previous) {
+		long[] order = order();
+		this.previous = previous;
+		previousPatient = new int[rows];
+		int j = 0;
+		for (int start = 0, end; start < rows; start = end) {
+			end = groupEnd(order, start);
+			int code = ptCode[(int) order[start]];
+			while (j < previous.size && previous.ptCode[j] < code) { j++; }
+			boolean same = j < previous.size && previous.ptCode[j] == code && previous.rowFingerprint[j] == fingerprint(order, start, end);
+			previousPatient[start] = same ? j : -1;
+		}
+	}
+
+	/**
+	 * Scores MELD 3.0 for every row, but those of the patients match found; build does it first if it has
+	 * not been done.
+	 */
+	public void score() {
+		meld = new float[rows];
+		if (order == null || previousPatient == null) {
+			STARDataMELD.MELD_3_0.score(labs, 0, rows, meld);
+			return;
+		}
+		STARDataMELD changed = new STARDataMELD(1024);
+		int[] changedRows = new int[rows];
+		for (int start = 0, end; start < rows; start = end) {
+			end = groupEnd(order, start);
+			if (previousPatient[start] >= 0) { continue; }
+			for (int k = start; k < end; k++) {
+				changedRows[changed.size] = (int) order[k];
+				changed.add(labs, (int) order[k]);
+			}
+		}
+		float[] scores = new float[changed.size];
+		STARDataMELD.MELD_3_0.score(changed, 0, changed.size, scores);
+		for (int k = 0; k < scores.length; k++) { meld[changedRows[k]] = scores[k]; }
+	}
+
+	public STARDataCohort build() {
+		if (meld == null || meld.length != rows) { score(); }
+		long[] order = order();
+		int[] previousPatient = this.previousPatient != null ? this.previousPatient : new int[0];
+
+		STARDataCohort cohort = new STARDataCohort();
+		int discharges = 0, bmis = 0, melds = 0;
+		for (int start = 0, end; start < rows; start = end) {
+			end = groupEnd(order, start);
+			cohort.ingestedSize++;
+			int j = start < previousPatient.length ? previousPatient[start] : -1;
+			int outcome = j >= 0 ? KEPT : outcome(order, start, end);
+			patientOutcomes[outcome]++;
+			if (outcome != KEPT) { continue; }
+			cohort.size++;
+			if (j >= 0) {
+				discharges += previous.dischargeOffsets[j + 1] - previous.dischargeOffsets[j];
+				bmis += previous.bmiOffsets[j + 1] - previous.bmiOffsets[j];
+				melds += previous.meldOffsets[j + 1] - previous.meldOffsets[j];
+				continue;
+			}
+			discharges += end - start;
+			for (int k = start; k < end; k++) {
+				if (!Double.isNaN(bmi[(int) order[k]])) { bmis++; }
+				if (!Float.isNaN(meld[(int) order[k]])) { melds++; }
+			}
+		}
+
+		cohort.ptCode = new int[cohort.size];
+		cohort.trrIdCode = new int[cohort.size];
+		cohort.age = new int[cohort.size];
+		cohort.diab = new byte[cohort.size];
+		cohort.hcv = new byte[cohort.size];
+		cohort.functionalStatus = new byte[cohort.size];
+		cohort.dischargeOffsets = new int[cohort.size + 1];
+		cohort.dischargeDays = new int[discharges];
+		cohort.bmiOffsets = new int[cohort.size + 1];
+		cohort.bmi = new double[bmis];
+		cohort.meldOffsets = new int[cohort.size + 1];
+		cohort.meld = new float[melds];
+		cohort.labs = new STARDataMELD(melds);
+		cohort.averageBMI = new double[cohort.size];
+		cohort.averageMELD = new double[cohort.size];
+		cohort.readmitted = new boolean[cohort.size];
+		cohort.followUpOffsets = new int[cohort.size + 1];
+		cohort.followUpDays = new int[0];
+		cohort.rowFingerprint = new long[cohort.size];
+
+		int patient = 0;
+		discharges = 0; bmis = 0; melds = 0;
+		for (int start = 0, end; start < rows; start = end) {
+			end = groupEnd(order, start);
+			int j = start < previousPatient.length ? previousPatient[start] : -1;
+			if (j >= 0) {
+				cohort.ptCode[patient] = previous.ptCode[j];
+				cohort.trrIdCode[patient] = previous.trrIdCode[j];
+				cohort.age[patient] = previous.age[j];
+				cohort.diab[patient] = previous.diab[j];
+				cohort.hcv[patient] = previous.hcv[j];
+				cohort.functionalStatus[patient] = previous.functionalStatus[j];
+				discharges = copy(previous.dischargeDays, previous.dischargeOffsets, j, cohort.dischargeDays, discharges);
+				bmis = copy(previous.bmi, previous.bmiOffsets, j, cohort.bmi, bmis);
+				melds = copy(previous.meld, previous.meldOffsets, j, cohort.meld, melds);
+				for (int k = previous.meldOffsets[j]; k < previous.meldOffsets[j + 1]; k++) { cohort.labs.add(previous.labs, k); }
+				cohort.averageBMI[patient] = previous.averageBMI[j];
+				cohort.averageMELD[patient] = previous.averageMELD[j];
+				cohort.rowFingerprint[patient] = previous.rowFingerprint[j];
+			}
+			else {
+				if (outcome(order, start, end) != KEPT) { continue; }
+				int first = (int) order[start];
+				cohort.ptCode[patient] = ptCode[first];
+				cohort.trrIdCode[patient] = trrIdCode[first];
+				cohort.age[patient] = age[first];
+				cohort.diab[patient] = diab[first];
+				cohort.hcv[patient] = hcv[first];
+				cohort.functionalStatus[patient] = functionalStatus[first];
+
+				double bmiSum = 0, meldSum = 0;
+				int bmiCount = 0, meldCount = 0;
+				for (int k = start; k < end; k++) {
+					int row = (int) order[k];
+					cohort.dischargeDays[discharges++] = dischargeDay[row];
+					if (!Double.isNaN(bmi[row])) { cohort.bmi[bmis++] = bmi[row]; bmiSum += bmi[row]; bmiCount++; }
+					if (!Float.isNaN(meld[row])) { cohort.meld[melds++] = meld[row]; cohort.labs.add(labs, row); meldSum += meld[row]; meldCount++; }
+				}
+				Arrays.sort(cohort.dischargeDays, cohort.dischargeOffsets[patient], discharges);
+				cohort.averageBMI[patient] = bmiSum / bmiCount;
+				cohort.averageMELD[patient] = meldSum / meldCount;
+				cohort.rowFingerprint[patient] = fingerprint(order, start, end);
+			}
+			cohort.dischargeOffsets[patient + 1] = discharges;
+			cohort.bmiOffsets[patient + 1] = bmis;
+			cohort.meldOffsets[patient + 1] = melds;
+			patient++;
+		}
+		return cohort;
+	}
+
+	/**
+	 * The rows in PT_CODE order, and in the order they were added within a patient.
+	 */
+	private long[] order() {
+		if (order == null) {
+			order = new long[rows];
+			for (int i = 0; i < rows; i++) { order[i] = ((long) ptCode[i] << 32) | i; }
+			Arrays.parallelSort(order);
+			previousPatient = null;
+		}
+		return order;
+	}
+
+	/**
+	 * Hash of every field of a patient's rows, in the order they were added.
+	 */
+	private long fingerprint(long[] order, int start, int end) {
+		long hash = STARDataCohort.mix(0, ptCode[(int) order[start]]);
+		for (int k = start; k < end; k++) {
+			int row = (int) order[k];
+			hash = STARDataCohort.mix(hash, ((long) trrIdCode[row] << 32) | (age[row] & 0xFFFFFFFFL));
+			hash = STARDataCohort.mix(hash, ((long) dischargeDay[row] << 32) | (diab[row] & 0xFF) << 16 | (hcv[row] & 0xFF) << 8 | (functionalStatus[row] & 0xFF));
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(bmi[row]));
+			hash = STARDataCohort.mix(hash, labs.female[row] << 8 | labs.dialysis[row]);
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(labs.bilirubin[row]));
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(labs.inr[row]));
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(labs.creatinine[row]));
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(labs.sodium[row]));
+			hash = STARDataCohort.mix(hash, Double.doubleToLongBits(labs.albumin[row]));
+		}
+		return hash;
+	}
+
+	/**
+	 * Copies patient i's entries of a CSR array to position in another, returning where they end.
+	 */
+	private static int copy(Object from, int[] offsets, int i, Object to, int position) {
+		int length = offsets[i + 1] - offsets[i];
+		System.arraycopy(from, offsets[i], to, position, length);
+		return position + length;
+	}
+
+	private static int groupEnd(long[] order, int start) {
+		int end = start + 1;
+		while (end < order.length && (order[end] >> 32) == (order[start] >> 32)) { end++; }
+		return end;
+	}
+
+	private int outcome(long[] order, int start, int end) {
+		int first = (int) order[start];
+		if (diab[first] == STARDataCohort.DIAB_UNKNOWN) { return UNKNOWN_DIAB; }
+		if (hcv[first] == STARDataCohort.HCV_UNKNOWN) { return UNKNOWN_HCV; }
+		if (functionalStatus[first] == STARDataCohort.FUNCTIONAL_STATUS_UNKNOWN) { return UNKNOWN_FUNCTIONAL_STATUS; }
+		boolean hasBMI = false, hasMELD = false;
+		for (int j = start; j < end; j++) {
+			hasBMI |= !Double.isNaN(bmi[(int) order[j]]);
+			hasMELD |= !Float.isNaN(meld[(int) order[j]]);
+		}
+		return !hasBMI ? NO_BMI : !hasMELD ? NO_MELD : KEPT;
+	}
+
+	private void grow(int capacity) {
+		ptCode = Arrays.copyOf(ptCode, capacity);
+		trrIdCode = Arrays.copyOf(trrIdCode, capacity);
+		age = Arrays.copyOf(age, capacity);
+		diab = Arrays.copyOf(diab, capacity);
+		hcv = Arrays.copyOf(hcv, capacity);
+		functionalStatus = Arrays.copyOf(functionalStatus, capacity);
+		dischargeDay = Arrays.copyOf(dischargeDay, capacity);
+		bmi = Arrays.copyOf(bmi, capacity);
+	}
+}
@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Column positions read from the pandas-exported STAR CSV files (see "VariableIDs - LIVER_DATA.txt"
+ * and "VariableIDs - LIVER_FOLLOWUP_DATA.txt"), and the projections handed to {@link STARDataReader}.
+ */
+public class STARDataColumns {
+
+	public static final int[] LIVER_PROJECTION = {43, 377, 324, 5, 345, 45, 22, 119, 139, 112, 106, 109, 113, 93, 107};
+	public static final int LIVER_PT_CODE = 0,
+							LIVER_TRR_ID_CODE = 1,
+							LIVER_DISCHARGE_DATE = 2,
+							LIVER_GENDER = 3,
+							LIVER_AGE = 4,
+							LIVER_END_BMI_CALC = 5,
+							LIVER_DIAB = 6,
+							LIVER_FUNC_STAT_TRR = 7,
+							LIVER_HCV_SEROSTATUS = 8,
+							LIVER_FINAL_SERUM_CREAT = 9,
+							LIVER_FINAL_BILIRUBIN = 10,
+							LIVER_FINAL_INR = 11,
+							LIVER_FINAL_SERUM_SODIUM = 12,
+							LIVER_INIT_ALBUMIN = 13,
+							LIVER_FINAL_DIALYSIS_PRIOR_WEEK = 14;
+
+	public static final int[] FOLLOWUP_PROJECTION = {51, 56, 5, 54};
+	public static final int FOLLOWUP_PT_CODE = 0,
+							FOLLOWUP_TRR_ID_CODE = 1,
+							FOLLOWUP_HOSP = 2,
+							FOLLOWUP_PX_STAT_DATE = 3;
+
+	/**
+	 * Variable names of the projected columns, looked up in a "VariableIDs" file ("43 - PT_CODE" per line).
+	 */
+	public static String[] variableNames(File variableIds, int[] projection) throws IOException {
+		List<String> lines = Files.readAllLines(variableIds.toPath(), StandardCharsets.UTF_8);
+		String[] names = new String[projection.length];
+		for (String line : lines) {
+			int separator = line.indexOf(" - ");
+			if (separator < 0) { continue; }
+			int column = Integer.parseInt(line.substring(0, separator).trim());
+			for (int i = 0; i < projection.length; i++) {
+				if (projection[i] == column) { names[i] = line.substring(separator + 3).trim(); }
+			}
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null) { throw new IOException("Column " + projection[i] + " is not listed in " + variableIds); }
+		}
+		return names;
+	}
+
+	/**
+	 * Number of columns listed in a "VariableIDs" file, the pandas index included.
+	 */
+	public static int columnCount(File variableIds) throws IOException {
+		int count = 0;
+		for (String line : Files.readAllLines(variableIds.toPath(), StandardCharsets.UTF_8)) {
+			if (line.contains(" - ")) { count++; }
+		}
+		return count;
+	}
+}
@@ -0,0 +1,467 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Counts and {@link STARDataStatistics} of a few measures (age, BMI, MELD) for every combination of a set
+ * of dimensions: categorical fields, binned numeric variables and the readmission outcome. The cube is
+ * filled in one pass over the cohort, cell by cell, and any cross-stratification of the declared
+ * dimensions is then read off with {@link #marginal(Dimension...)} rather than another pass.
+ *
+ * Cells are laid out row-major, the last dimension varying fastest. Each cell keeps exact {@link Moments}
+ * of every measure, and the statistics are read off them when asked for. Nothing is rounded until then,
+ * so partial cubes over separate ranges of patients merge exactly, which is how
+ * {@link #fill(STARDataCohort, Dimension[], Measure[], int)} runs in parallel, and a patient can be taken
+ * out of a cube again exactly, which is how {@link STARDataIncrement} moves a cube from one release to
+ * the next.
+ */
+public class STARDataCube {
+
+	private static final int PATIENTS_PER_CHUNK = 1 << 18;
+	private static final int FLAGS = -1;	// for fill: READMITTED read off the readmitted flags
+
+	/**
+	 * Splits the cohort into labels.length strata; index returns the stratum of a patient.
+	 */
+	public static abstract class Dimension {
+		public final String name;
+		public final String[] labels;
+
+		protected Dimension(String name, String... labels) {
+			this.name = name;
+			this.labels = labels;
+		}
+
+		public abstract int index(STARDataCohort cohort, int patient);
+	}
+
+	/**
+	 * A per-patient value summarized in each cell. NaN values are left out of the statistics.
+	 */
+	public static abstract class Measure {
+		public final String name;
+
+		protected Measure(String name) {
+			this.name = name;
+		}
+
+		public abstract double value(STARDataCohort cohort, int patient);
+	}
+
+	/**
+	 * Strata of the two-way dimensions.
+	 */
+	public static final int NO = 0, YES = 1;
+
+	/**
+	 * The readmitted flags currently set on the cohort (see {@link STARDataCohort#markReadmissions(int)}).
+	 */
+	public static final Dimension READMITTED = new Dimension("Readmitted", "Not readmitted", "Readmitted") {
+		public int index(STARDataCohort cohort, int patient) { return cohort.readmitted[patient] ? YES : NO; }
+	};
+
+	/**
+	 * Readmission within the given number of days, read off the cohort's readmission gaps (see
+	 * {@link STARDataCohort#findReadmissionGaps()}) rather than its readmitted flags, so cubes for
+	 * different windows can be filled at the same time.
+	 */
+	public static Dimension readmittedWithin(final int days) {
+		return new Dimension("Readmitted within " + days + " days", "Not readmitted", "Readmitted") {
+			public int index(STARDataCohort cohort, int patient) { return cohort.readmissionGap[patient] <= days ? YES : NO; }
+		};
+	}
+
+	public static final Dimension DIABETES = new Dimension("Diabetes", "Nondiabetic", "Diabetic") {
+		public int index(STARDataCohort cohort, int patient) { return cohort.isDiabetic(patient) ? YES : NO; }
+	};
+
+	public static final Dimension HCV = new Dimension("HCV", "NonHCV", "HCV") {
+		public int index(STARDataCohort cohort, int patient) { return cohort.hcv[patient] == STARDataCohort.HCV_POSITIVE ? YES : NO; }
+	};
+
+	/**
+	 * One stratum per code of STARDataCohort.FUNCTIONAL_STATUS_CODES, in that order, then one for unknown.
+	 */
+	public static final Dimension FUNCTIONAL_STATUS = new Dimension("Functional status", functionalStatusLabels()) {
+		public int index(STARDataCohort cohort, int patient) {
+			byte status = cohort.functionalStatus[patient];
+			return status == STARDataCohort.FUNCTIONAL_STATUS_UNKNOWN ? STARDataCohort.FUNCTIONAL_STATUS_CODES.length : status;
+		}
+	};
+
+	public static final Measure AGE = new Measure("Age") {
+		public double value(STARDataCohort cohort, int patient) { return cohort.age[patient]; }
+	};
+
+	public static final Measure BMI = new Measure("BMI") {
+		public double value(STARDataCohort cohort, int patient) { return cohort.averageBMI[patient]; }
+	};
+
+	public static final Measure MELD = new Measure("MELD") {
+		public double value(STARDataCohort cohort, int patient) { return cohort.averageMELD[patient]; }
+	};
+
+	/**
+	 * Strata [bounds[k], bounds[k + 1]) of a measure, found by binary search over the sorted bounds, and a
+	 * last stratum for values outside them or NaN.
+	 */
+	public static Dimension binned(String name, final double[] bounds, final Measure variable) {
+		String[] labels = new String[bounds.length];
+		for (int k = 0; k < bounds.length - 1; k++) { labels[k] = "[" + bounds[k] + ", " + bounds[k + 1] + ")"; }
+		labels[bounds.length - 1] = "Other";
+		return new Dimension(name, labels) {
+			public int index(STARDataCohort cohort, int patient) {
+				int k = Arrays.binarySearch(bounds, variable.value(cohort, patient));
+				if (k < 0) { k = -k - 2; }
+				return k >= 0 && k < bounds.length - 1 ? k : bounds.length - 1;
+			}
+		};
+	}
+
+	/**
+	 * YES for patients whose measure is in [min, max], NO for the others (NaN included).
+	 */
+	public static Dimension range(String name, final Measure measure, final double min, final double max) {
+		return new Dimension(name, "Outside [" + min + ", " + max + "]", "[" + min + ", " + max + "]") {
+			public int index(STARDataCohort cohort, int patient) {
+				double value = measure.value(cohort, patient);
+				return value >= min && value <= max ? YES : NO;
+			}
+		};
+	}
+
+	/**
+	 * Exact moments of one measure in one cell: the count, exact sums of the values and of their squares
+	 * (see {@link STARDataExactSum}), and min and max with how many values equal them, so that a value
+	 * can be taken out again. Taking out the last value equal to min leaves min as a bound below the
+	 * values left, with a count of 0: the next value added at or below it is the new min, and until then
+	 * min is unknown (and the same for max).
+	 */
+	public static class Moments {
+		public long count;
+		public double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		long minCount, maxCount;
+		final STARDataExactSum sum = new STARDataExactSum(), squares = new STARDataExactSum();
+
+		void add(double value) {
+			count++;
+			sum.add(value);
+			squares.addSquare(value);
+			if (value < min || (value == min && minCount == 0)) { min = value; minCount = 1; }
+			else if (value == min) { minCount++; }
+			if (value > max || (value == max && maxCount == 0)) { max = value; maxCount = 1; }
+			else if (value == max) { maxCount++; }
+		}
+
+		/**
+		 * Undoes add(value).
+		 */
+		void remove(double value) {
+			count--;
+			sum.remove(value);
+			squares.removeSquare(value);
+			if (count == 0) {
+				min = Double.POSITIVE_INFINITY; max = Double.NEGATIVE_INFINITY;
+				minCount = 0; maxCount = 0;
+			}
+			else {
+				if (value == min) { minCount--; }
+				if (value == max) { maxCount--; }
+			}
+		}
+
+		/**
+		 * False if min or max is unknown after a remove.
+		 */
+		boolean extremesKnown() {
+			return count == 0 || (minCount > 0 && maxCount > 0);
+		}
+
+		void merge(Moments other) {
+			if (other.count == 0) { return; }
+			count += other.count;
+			sum.merge(other.sum);
+			squares.merge(other.squares);
+			if (other.min < min) { min = other.min; minCount = other.minCount; }
+			else if (other.min == min) { minCount += other.minCount; }
+			if (other.max > max) { max = other.max; maxCount = other.maxCount; }
+			else if (other.max == max) { maxCount += other.maxCount; }
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeLong(count);
+			out.writeDouble(min);
+			out.writeDouble(max);
+			out.writeLong(minCount);
+			out.writeLong(maxCount);
+			sum.write(out);
+			squares.write(out);
+		}
+
+		void read(DataInput in) throws IOException {
+			count = in.readLong();
+			min = in.readDouble();
+			max = in.readDouble();
+			minCount = in.readLong();
+			maxCount = in.readLong();
+			sum.read(in);
+			squares.read(in);
+		}
+
+		/**
+		 * Count, mean, M2, min and max, with the mean and M2 rounded once from the exact sums.
+		 */
+		public STARDataStatistics statistics() {
+			STARDataStatistics statistics = new STARDataStatistics();
+			statistics.count = count;
+			statistics.min = min;
+			statistics.max = max;
+			if (count > 0) {
+				BigInteger n = BigInteger.valueOf(count), sum = this.sum.value();
+				statistics.mean = STARDataExactSum.quotient(sum, n, -STARDataExactSum.SCALE);
+				// M2 = squares - sum^2 / n, both scaled by 2^(2 * SCALE)
+				statistics.m2 = STARDataExactSum.quotient(n.multiply(squares.value()).shiftLeft(STARDataExactSum.SCALE).subtract(sum.multiply(sum)), n, -2 * STARDataExactSum.SCALE);
+			}
+			return statistics;
+		}
+	}
+
+	public final Dimension[] dimensions;
+	public final Measure[] measures;
+	public final long[] count;
+	public final Moments[][] moments;						// [measure][cell]
+	private final STARDataStatistics[][] statistics;		// [measure][cell], read off moments when first asked for
+	private final int[] strides;
+
+	public STARDataCube(Dimension[] dimensions, Measure[] measures) {
+		this.dimensions = dimensions;
+		this.measures = measures;
+		strides = new int[dimensions.length];
+		int cells = 1;
+		for (int d = dimensions.length - 1; d >= 0; d--) {
+			strides[d] = cells;
+			cells *= dimensions[d].labels.length;
+		}
+		count = new long[cells];
+		moments = new Moments[measures.length][cells];
+		statistics = new STARDataStatistics[measures.length][cells];
+		for (int m = 0; m < measures.length; m++) {
+			for (int c = 0; c < cells; c++) { moments[m][c] = new Moments(); }
+		}
+	}
+
+	public int cells() {
+		return count.length;
+	}
+
+	public void add(STARDataCohort cohort, int patient) {
+		addAt(cohort, patient, cellOf(cohort, patient));
+	}
+
+	/**
+	 * Adds a patient with readmission within window days, read off the readmission gap.
+	 */
+	public void add(STARDataCohort cohort, int patient, int window) {
+		addAt(cohort, patient, cellOf(cohort, patient, window));
+	}
+
+	private void addAt(STARDataCohort cohort, int patient, int cell) {
+		count[cell]++;
+		for (int m = 0; m < measures.length; m++) {
+			double value = measures[m].value(cohort, patient);
+			if (value == value) {
+				moments[m][cell].add(value);
+				statistics[m][cell] = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes out a patient added with readmission within window days. This can leave the min or max of a
+	 * measure in the patient's cell unknown (see {@link #extremesKnown(int)}), in which case the cell has
+	 * to be refilled before its statistics are read.
+	 */
+	public void remove(STARDataCohort cohort, int patient, int window) {
+		int cell = cellOf(cohort, patient, window);
+		count[cell]--;
+		for (int m = 0; m < measures.length; m++) {
+			double value = measures[m].value(cohort, patient);
+			if (value == value) {
+				moments[m][cell].remove(value);
+				statistics[m][cell] = null;
+			}
+		}
+	}
+
+	/**
+	 * False if patients taken out of the cell left the min or max of one of its measures unknown.
+	 */
+	public boolean extremesKnown(int cell) {
+		for (int m = 0; m < measures.length; m++) {
+			if (!moments[m][cell].extremesKnown()) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * The cell a patient falls in.
+	 */
+	public int cellOf(STARDataCohort cohort, int patient) {
+		return cellOf(cohort, patient, FLAGS);
+	}
+
+	/**
+	 * The cell a patient falls in with readmission within window days: READMITTED is read off the
+	 * patient's readmission gap rather than the readmitted flags, which may be set for another window.
+	 */
+	public int cellOf(STARDataCohort cohort, int patient, int window) {
+		int cell = 0;
+		for (int d = 0; d < dimensions.length; d++) {
+			int index = window != FLAGS && dimensions[d] == READMITTED ? (cohort.readmissionGap[patient] <= window ? YES : NO) : dimensions[d].index(cohort, patient);
+			cell += index * strides[d];
+		}
+		return cell;
+	}
+
+	/**
+	 * Adds in a cube with the same dimensions and measures.
+	 */
+	public void merge(STARDataCube other) {
+		for (int c = 0; c < count.length; c++) {
+			count[c] += other.count[c];
+			for (int m = 0; m < measures.length; m++) {
+				moments[m][c].merge(other.moments[m][c]);
+				statistics[m][c] = null;
+			}
+		}
+	}
+
+	/**
+	 * Cell of the given stratum indexes, one per dimension.
+	 */
+	public int cell(int... indexes) {
+		int cell = 0;
+		for (int d = 0; d < dimensions.length; d++) { cell += indexes[d] * strides[d]; }
+		return cell;
+	}
+
+	public long count(int... indexes) {
+		return count[cell(indexes)];
+	}
+
+	public STARDataStatistics statistics(Measure measure, int... indexes) {
+		return statistics(measureIndex(measure), cell(indexes));
+	}
+
+	/**
+	 * Statistics of measures[measure] in a cell.
+	 */
+	public STARDataStatistics statistics(int measure, int cell) {
+		if (statistics[measure][cell] == null) { statistics[measure][cell] = moments[measure][cell].statistics(); }
+		return statistics[measure][cell];
+	}
+
+	/**
+	 * The cube over only the given dimensions (in that order), every other dimension summed out.
+	 */
+	public STARDataCube marginal(Dimension... keep) {
+		STARDataCube marginal = new STARDataCube(keep, measures);
+		int[] source = new int[keep.length];
+		for (int k = 0; k < keep.length; k++) { source[k] = dimensionIndex(keep[k]); }
+		int[] indexes = new int[dimensions.length];
+		for (int c = 0; c < count.length; c++) {
+			int rest = c, cell = 0;
+			for (int d = 0; d < dimensions.length; d++) {
+				indexes[d] = rest / strides[d];
+				rest %= strides[d];
+			}
+			for (int k = 0; k < keep.length; k++) { cell += indexes[source[k]] * marginal.strides[k]; }
+			marginal.count[cell] += count[c];
+			for (int m = 0; m < measures.length; m++) { marginal.moments[m][cell].merge(moments[m][c]); }
+		}
+		return marginal;
+	}
+
+	/**
+	 * Fills a cube from every patient of the cohort. The patients are split into ranges of
+	 * PATIENTS_PER_CHUNK that are counted on a pool of the given size, and the partial cubes are merged.
+	 * The moments are exact, so the statistics come out the same for any number of threads.
+	 */
+	public static STARDataCube fill(STARDataCohort cohort, Dimension[] dimensions, Measure[] measures, int threads) throws Exception {
+		return fill(cohort, dimensions, measures, null, FLAGS, threads);
+	}
+
+	/**
+	 * Fills the given cells again from the cohort's patients, with readmission within window days read off
+	 * the readmission gaps. This is one more pass over the whole cohort, so it is only for cells whose min
+	 * or max is unknown after {@link #remove(STARDataCohort, int, int)}.
+	 */
+	public void refill(STARDataCohort cohort, boolean[] cells, int window, int threads) throws Exception {
+		STARDataCube filled = fill(cohort, dimensions, measures, cells, window, threads);
+		for (int c = 0; c < count.length; c++) {
+			if (!cells[c]) { continue; }
+			count[c] = filled.count[c];
+			for (int m = 0; m < measures.length; m++) {
+				moments[m][c] = filled.moments[m][c];
+				statistics[m][c] = null;
+			}
+		}
+	}
+
+	/**
+	 * fill over only the patients in the given cells, or all of them if cells is null, with readmission
+	 * read off the readmitted flags (window FLAGS) or the readmission gaps.
+	 */
+	private static STARDataCube fill(final STARDataCohort cohort, final Dimension[] dimensions, final Measure[] measures, final boolean[] cells, final int window, int threads) throws Exception {
+		int chunks = Math.max(1, (cohort.size + PATIENTS_PER_CHUNK - 1) / PATIENTS_PER_CHUNK);
+		long[] offsets = new long[chunks + 1];
+		for (int i = 0; i <= chunks; i++) { offsets[i] = Math.min(cohort.size, (long) i * PATIENTS_PER_CHUNK); }
+		ArrayList<STARDataCube> partials = STARDataIngest.runChunks(offsets, threads, new STARDataIngest.ChunkParser<STARDataCube>() {
+			public STARDataCube parse(long start, long end) {
+				STARDataCube cube = new STARDataCube(dimensions, measures);
+				for (int i = (int) start; i < end; i++) {
+					int cell = cube.cellOf(cohort, i, window);
+					if (cells == null || cells[cell]) { cube.addAt(cohort, i, cell); }
+				}
+				return cube;
+			}
+		});
+		STARDataCube cube = partials.get(0);
+		for (int i = 1; i < partials.size(); i++) { cube.merge(partials.get(i)); }
+		return cube;
+	}
+
+	/**
+	 * Names and labels of the dimensions and names of the measures, which identify a stored cube's layout.
+	 */
+	public static String signature(Dimension[] dimensions, Measure[] measures) {
+		StringBuilder signature = new StringBuilder();
+		for (Dimension dimension : dimensions) { signature.append(dimension.name).append(Arrays.toString(dimension.labels)).append(';'); }
+		for (Measure measure : measures) { signature.append(measure.name).append(';'); }
+		return signature.toString();
+	}
+
+	private int dimensionIndex(Dimension dimension) {
+		for (int d = 0; d < dimensions.length; d++) {
+			if (dimensions[d] == dimension) { return d; }
+		}
+		throw new IllegalArgumentException("Not a dimension of this cube: " + dimension.name);
+	}
+
+	private int measureIndex(Measure measure) {
+		for (int m = 0; m < measures.length; m++) {
+			if (measures[m] == measure) { return m; }
+		}
+		throw new IllegalArgumentException("Not a measure of this cube: " + measure.name);
+	}
+
+	private static String[] functionalStatusLabels() {
+		String[] labels = new String[STARDataCohort.FUNCTIONAL_STATUS_CODES.length + 1];
+		for (int i = 0; i < STARDataCohort.FUNCTIONAL_STATUS_CODES.length; i++) { labels[i] = String.valueOf(STARDataCohort.FUNCTIONAL_STATUS_CODES[i]); }
+		labels[labels.length - 1] = "Unknown";
+		return labels;
+	}
+}
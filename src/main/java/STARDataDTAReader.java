@@ -0,0 +1,420 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Streaming reader for Stata .DTA files (releases 113-115 and 117-119) that decodes only the requested
+ * variables of one record at a time. Values are presented the way pandas read_stata + to_csv wrote them
+ * in Stata2CSV.py: numbers as float64 text ("1234.0"), %td/%tc dates as yyyy-MM-dd and missing values as
+ * empty fields. Numeric fields are parsed straight from the binary value; the text is only rendered when
+ * a field is inspected as characters.
+ */
+public class STARDataDTAReader implements STARDataSource {
+
+	private static final int TYPE_STRING = 0, TYPE_BYTE = 1, TYPE_INT = 2, TYPE_LONG = 3, TYPE_FLOAT = 4, TYPE_DOUBLE = 5, TYPE_STRL = 6;
+	private static final int DATE_NONE = 0, DATE_DAYS = 1, DATE_MILLIS = 2;
+	private static final int STATA_EPOCH_DAY = -3653;
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private ByteOrder byteOrder;
+	private Charset charset;
+	private int release, variableCount, recordWidth;
+	private long observations, dataStart;
+	private String[] names, formats;
+	private int[] types, widths;
+
+	private final int[] fieldType, fieldWidth, fieldOffset, fieldDate;
+	private final double[] value;
+	private final boolean[] missing, decoded, rendered;
+	private final char[][] text;
+	private final int[] textLength;
+
+	private ByteBuffer buffer;
+	private int recordPosition, bufferedRecords, recordInBuffer;
+	private long nextRecord, endRecord;
+
+	public STARDataDTAReader(File dta, String[] variables) throws IOException {
+		this(dta, variables, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads records [firstRecord, endRecord) of the variables, which are then addressed by their position
+	 * in the array.
+	 */
+	public STARDataDTAReader(File dta, String[] variables, long firstRecord, long endRecord) throws IOException {
+		file = new RandomAccessFile(dta, "r");
+		channel = file.getChannel();
+		try {
+			if (read(0, 1).get(0) == '<') { readTaggedHeader(); }
+			else { readOldHeader(); }
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		int[] offsets = new int[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			offsets[i] = recordWidth;
+			recordWidth += widths[i];
+		}
+		fieldType = new int[variables.length];
+		fieldWidth = new int[variables.length];
+		fieldOffset = new int[variables.length];
+		fieldDate = new int[variables.length];
+		for (int f = 0; f < variables.length; f++) {
+			int variable = indexOf(variables[f]);
+			if (variable < 0) { close(); throw new IOException("Variable " + variables[f] + " is not in " + dta); }
+			if (types[variable] == TYPE_STRL) { close(); throw new IOException("strL variable " + variables[f] + " is not supported"); }
+			fieldType[f] = types[variable];
+			fieldWidth[f] = widths[variable];
+			fieldOffset[f] = offsets[variable];
+			String format = formats[variable].replace("-", "");
+			fieldDate[f] = format.startsWith("%td") || format.startsWith("%d") ? DATE_DAYS : format.startsWith("%tc") || format.startsWith("%tC") ? DATE_MILLIS : DATE_NONE;
+		}
+		value = new double[variables.length];
+		missing = new boolean[variables.length];
+		decoded = new boolean[variables.length];
+		rendered = new boolean[variables.length];
+		text = new char[variables.length][32];
+		textLength = new int[variables.length];
+
+		nextRecord = Math.min(firstRecord, observations);
+		this.endRecord = Math.min(endRecord, observations);
+		buffer = ByteBuffer.allocate(Math.max(recordWidth, BUFFER_SIZE - BUFFER_SIZE % Math.max(1, recordWidth))).order(byteOrder);
+	}
+
+	public long records() {
+		return observations;
+	}
+
+	/**
+	 * Splits the records of a file into parts + 1 boundaries; range i is [offsets[i], offsets[i + 1]).
+	 */
+	public static long[] split(File dta, int parts) throws IOException {
+		STARDataDTAReader reader = new STARDataDTAReader(dta, new String[0]);
+		long[] offsets = new long[parts + 1];
+		for (int i = 0; i <= parts; i++) { offsets[i] = reader.records() * i / parts; }
+		reader.close();
+		return offsets;
+	}
+
+	public boolean next() throws IOException {
+		if (nextRecord >= endRecord) { return false; }
+		if (recordInBuffer + 1 >= bufferedRecords) {
+			bufferedRecords = (int) Math.min(buffer.capacity() / recordWidth, endRecord - nextRecord);
+			buffer.clear();
+			buffer.limit(bufferedRecords * recordWidth);
+			long position = dataStart + nextRecord * recordWidth;
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) { throw new EOFException("Record " + nextRecord + " is past the end of the file"); }
+			}
+			recordInBuffer = 0;
+		}
+		else { recordInBuffer++; }
+		recordPosition = recordInBuffer * recordWidth;
+		nextRecord++;
+		for (int f = 0; f < decoded.length; f++) { decoded[f] = false; rendered[f] = false; }
+		return true;
+	}
+
+	public int length(int field) {
+		render(field);
+		return textLength[field];
+	}
+
+	public boolean isEmpty(int field) {
+		decode(field);
+		return fieldType[field] == TYPE_STRING ? length(field) == 0 : missing[field];
+	}
+
+	public char charAt(int field, int index) {
+		render(field);
+		if (index >= textLength[field]) { throw new StringIndexOutOfBoundsException(index); }
+		return text[field][index];
+	}
+
+	public boolean contains(int field, char c) {
+		render(field);
+		for (int i = 0; i < textLength[field]; i++) {
+			if (text[field][i] == c) { return true; }
+		}
+		return false;
+	}
+
+	public boolean equals(int field, String s) {
+		render(field);
+		if (textLength[field] != s.length()) { return false; }
+		for (int i = 0; i < s.length(); i++) {
+			if (text[field][i] != s.charAt(i)) { return false; }
+		}
+		return true;
+	}
+
+	public int parseInt(int field) {
+		decode(field);
+		if (fieldType[field] == TYPE_STRING) { return (int) parseTextInt(field); }
+		if (missing[field]) { throw new NumberFormatException("For input string: \"\""); }
+		return (int) value[field];
+	}
+
+	public double parseDouble(int field) {
+		decode(field);
+		if (fieldType[field] == TYPE_STRING || missing[field]) { return Double.parseDouble(getString(field)); }
+		double v = value[field];
+		if (fieldType[field] == TYPE_FLOAT && v != Math.rint(v)) { return Double.parseDouble(Float.toString((float) v)); }
+		return v;
+	}
+
+	public int parseEpochDay(int field) {
+		decode(field);
+		if (fieldDate[field] == DATE_NONE || fieldType[field] == TYPE_STRING || missing[field]) {
+			if (length(field) < 10 || charAt(field, 4) != '-' || charAt(field, 7) != '-') { throw new DateTimeException("Text '" + getString(field) + "' could not be parsed"); }
+			return (int) LocalDate.of((int) parseTextInt(field, 0, 4), (int) parseTextInt(field, 5, 2), (int) parseTextInt(field, 8, 2)).toEpochDay();
+		}
+		return epochDay(field);
+	}
+
+	public String getString(int field) {
+		render(field);
+		return new String(text[field], 0, textLength[field]);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	private void decode(int field) {
+		if (decoded[field]) { return; }
+		decoded[field] = true;
+		int p = recordPosition + fieldOffset[field];
+		switch (fieldType[field]) {
+			case TYPE_BYTE: { byte v = buffer.get(p); value[field] = v; missing[field] = v > 100; break; }
+			case TYPE_INT: { short v = buffer.getShort(p); value[field] = v; missing[field] = v > 32740; break; }
+			case TYPE_LONG: { int v = buffer.getInt(p); value[field] = v; missing[field] = v > 2147483620; break; }
+			case TYPE_FLOAT: { float v = buffer.getFloat(p); value[field] = v; missing[field] = Float.isNaN(v) || v > 1.701e38f; break; }
+			case TYPE_DOUBLE: { double v = buffer.getDouble(p); value[field] = v; missing[field] = Double.isNaN(v) || v > 8.988e307; break; }
+			default: { missing[field] = false; render(field); }
+		}
+	}
+
+	private void render(int field) {
+		if (rendered[field]) { return; }
+		rendered[field] = true;
+		if (fieldType[field] == TYPE_STRING) {
+			int p = recordPosition + fieldOffset[field], n = 0;
+			while (n < fieldWidth[field] && buffer.get(p + n) != 0) { n++; }
+			boolean ascii = true;
+			for (int i = 0; i < n; i++) { ascii &= buffer.get(p + i) >= 0; }
+			if (ascii) {
+				ensureText(field, n);
+				for (int i = 0; i < n; i++) { text[field][i] = (char) buffer.get(p + i); }
+				textLength[field] = n;
+			}
+			else {
+				byte[] bytes = new byte[n];
+				for (int i = 0; i < n; i++) { bytes[i] = buffer.get(p + i); }
+				setText(field, new String(bytes, charset));
+			}
+			return;
+		}
+		decode(field);
+		double v = value[field];
+		if (missing[field]) { textLength[field] = 0; }
+		else if (fieldDate[field] != DATE_NONE) { setText(field, LocalDate.ofEpochDay(epochDay(field)).toString()); }
+		else if (v == Math.rint(v) && Math.abs(v) < 1e16) {
+			long digits = (long) Math.abs(v);
+			int n = 2 + (v < 0 || (v == 0 && 1 / v < 0) ? 1 : 0);
+			for (long d = digits; d >= 10; d /= 10) { n++; }
+			ensureText(field, n + 1);
+			text[field][n] = '0';
+			text[field][n - 1] = '.';
+			int i = n - 2;
+			do { text[field][i--] = (char) ('0' + digits % 10); digits /= 10; } while (digits > 0);
+			if (i == 0) { text[field][0] = '-'; }
+			textLength[field] = n + 1;
+		}
+		else if (fieldType[field] == TYPE_FLOAT) { setText(field, Float.toString((float) v)); }
+		else { setText(field, Double.toString(v)); }
+	}
+
+	private int epochDay(int field) {
+		if (fieldDate[field] == DATE_MILLIS) { return (int) Math.floorDiv((long) value[field], MILLIS_PER_DAY) + STATA_EPOCH_DAY; }
+		return (int) Math.floor(value[field]) + STATA_EPOCH_DAY;
+	}
+
+	private long parseTextInt(int field) {
+		render(field);
+		int end = 0;
+		while (end < textLength[field] && text[field][end] != '.') { end++; }
+		boolean negative = end > 0 && text[field][0] == '-';
+		if (end == (negative ? 1 : 0)) { throw new NumberFormatException("For input string: \"" + getString(field) + "\""); }
+		long v = parseTextInt(field, negative ? 1 : 0, end - (negative ? 1 : 0));
+		return negative ? -v : v;
+	}
+
+	private long parseTextInt(int field, int from, int count) {
+		long v = 0;
+		for (int i = from; i < from + count; i++) {
+			char c = charAt(field, i);
+			if (c < '0' || c > '9') { throw new NumberFormatException("For input string: \"" + getString(field) + "\""); }
+			v = v * 10 + (c - '0');
+		}
+		return v;
+	}
+
+	private void setText(int field, String s) {
+		ensureText(field, s.length());
+		s.getChars(0, s.length(), text[field], 0);
+		textLength[field] = s.length();
+	}
+
+	private void ensureText(int field, int length) {
+		if (text[field].length < length) { text[field] = new char[Math.max(length, text[field].length * 2)]; }
+	}
+
+	private int indexOf(String name) {
+		for (int i = 0; i < variableCount; i++) {
+			if (names[i].equals(name)) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Releases 117-119: <stata_dta><header>...</header><map>...</map> followed by the sections the map
+	 * points to.
+	 */
+	private void readTaggedHeader() throws IOException {
+		ByteBuffer header = read(0, (int) Math.min(channel.size(), 4096));
+		expect(header, "<stata_dta><header><release>");
+		release = Integer.parseInt(string(header, 3, StandardCharsets.US_ASCII));
+		if (release < 117 || release > 119) { throw new IOException("Unsupported .DTA release " + release); }
+		expect(header, "</release><byteorder>");
+		byteOrder = string(header, 3, StandardCharsets.US_ASCII).equals("MSF") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		header.order(byteOrder);
+		charset = release == 117 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+		expect(header, "</byteorder><K>");
+		variableCount = release == 119 ? header.getInt() : header.getShort() & 0xFFFF;
+		expect(header, "</K><N>");
+		observations = release == 117 ? header.getInt() & 0xFFFFFFFFL : header.getLong();
+		expect(header, "</N><label>");
+		int labelLength = release == 117 ? header.get() & 0xFF : header.getShort() & 0xFFFF;
+		header.position(header.position() + labelLength);
+		expect(header, "</label><timestamp>");
+		int timestampLength = header.get() & 0xFF;
+		header.position(header.position() + timestampLength);
+		expect(header, "</timestamp></header><map>");
+		long[] map = new long[14];
+		for (int i = 0; i < map.length; i++) { map[i] = header.getLong(); }
+
+		int nameWidth = release == 117 ? 33 : 129, formatWidth = release == 117 ? 49 : 57;
+		ByteBuffer typeList = read(map[2] + "<variable_types>".length(), variableCount * 2);
+		ByteBuffer nameList = read(map[3] + "<varnames>".length(), variableCount * nameWidth);
+		ByteBuffer formatList = read(map[5] + "<formats>".length(), variableCount * formatWidth);
+		dataStart = map[9] + "<data>".length();
+
+		types = new int[variableCount];
+		widths = new int[variableCount];
+		names = new String[variableCount];
+		formats = new String[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			int type = typeList.getShort() & 0xFFFF;
+			if (type >= 1 && type <= 2045) { types[i] = TYPE_STRING; widths[i] = type; }
+			else if (type == 32768) { types[i] = TYPE_STRL; widths[i] = 8; }
+			else if (type == 65526) { types[i] = TYPE_DOUBLE; widths[i] = 8; }
+			else if (type == 65527) { types[i] = TYPE_FLOAT; widths[i] = 4; }
+			else if (type == 65528) { types[i] = TYPE_LONG; widths[i] = 4; }
+			else if (type == 65529) { types[i] = TYPE_INT; widths[i] = 2; }
+			else if (type == 65530) { types[i] = TYPE_BYTE; widths[i] = 1; }
+			else { throw new IOException("Unknown variable type " + type); }
+			names[i] = cString(nameList, nameWidth);
+			formats[i] = cString(formatList, formatWidth);
+		}
+	}
+
+	/**
+	 * Releases 113-115: a fixed 109 byte header, the descriptors and the expansion fields, then the data.
+	 */
+	private void readOldHeader() throws IOException {
+		ByteBuffer header = read(0, 109);
+		release = header.get(0) & 0xFF;
+		if (release < 113 || release > 115) { throw new IOException("Unsupported .DTA release " + release); }
+		byteOrder = header.get(1) == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		header.order(byteOrder);
+		charset = StandardCharsets.ISO_8859_1;
+		variableCount = header.getShort(4) & 0xFFFF;
+		observations = header.getInt(6) & 0xFFFFFFFFL;
+
+		int formatWidth = release == 113 ? 12 : 49;
+		long position = 109;
+		ByteBuffer typeList = read(position, variableCount);
+		position += variableCount;
+		ByteBuffer nameList = read(position, variableCount * 33);
+		position += variableCount * 33 + 2 * (variableCount + 1);
+		ByteBuffer formatList = read(position, variableCount * formatWidth);
+		position += variableCount * formatWidth + variableCount * 33 + variableCount * 81;
+		while (true) {
+			ByteBuffer expansion = read(position, 5);
+			int type = expansion.get() & 0xFF, length = expansion.getInt();
+			position += 5;
+			if (type == 0 && length == 0) { break; }
+			position += length;
+		}
+		dataStart = position;
+
+		types = new int[variableCount];
+		widths = new int[variableCount];
+		names = new String[variableCount];
+		formats = new String[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			int type = typeList.get() & 0xFF;
+			if (type >= 1 && type <= 244) { types[i] = TYPE_STRING; widths[i] = type; }
+			else if (type == 251) { types[i] = TYPE_BYTE; widths[i] = 1; }
+			else if (type == 252) { types[i] = TYPE_INT; widths[i] = 2; }
+			else if (type == 253) { types[i] = TYPE_LONG; widths[i] = 4; }
+			else if (type == 254) { types[i] = TYPE_FLOAT; widths[i] = 4; }
+			else if (type == 255) { types[i] = TYPE_DOUBLE; widths[i] = 8; }
+			else { throw new IOException("Unknown variable type " + type); }
+			names[i] = cString(nameList, 33);
+			formats[i] = cString(formatList, formatWidth);
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, position + bytes.position()) < 0) { throw new EOFException("Unexpected end of .DTA file at byte " + (position + bytes.position())); }
+		}
+		bytes.flip();
+		return bytes.order(byteOrder == null ? ByteOrder.BIG_ENDIAN : byteOrder);
+	}
+
+	private static void expect(ByteBuffer header, String tag) throws IOException {
+		if (!string(header, tag.length(), StandardCharsets.US_ASCII).equals(tag)) { throw new IOException("Malformed .DTA header, expected " + tag + " at " + header.position()); }
+	}
+
+	private static String string(ByteBuffer buffer, int length, Charset charset) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	private String cString(ByteBuffer buffer, int width) {
+		byte[] bytes = new byte[width];
+		buffer.get(bytes);
+		int n = 0;
+		while (n < width && bytes[n] != 0) { n++; }
+		return new String(bytes, 0, n, charset);
+	}
+}
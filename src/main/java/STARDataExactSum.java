@@ -0,0 +1,164 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Exact sum of doubles, or of their squares, kept in fixed point over the whole double range: value()
+ * is the sum times 2^SCALE, with no rounding at all. The fixed point number is held as 32-bit digits in
+ * longs, so a value is added or taken out with three long additions and the carries are only
+ * propagated every CARRY_EVERY of them. Because nothing is rounded, the same values give the same sum
+ * in any order, sums merge exactly and remove undoes add exactly.
+ *
+ * Only the digits a sum has reached are allocated, which for values of one magnitude is a handful.
+ */
+public class STARDataExactSum {
+
+	public static final int SCALE = 2148;	// 2 * 1074, so the square of the smallest subnormal is 1
+	private static final long DIGIT_MASK = 0xFFFFFFFFL;
+	private static final int CARRY_EVERY = 1 << 30;
+	private static final int SPARE_DIGITS = 2;	// above the highest one reached, for carries
+
+	private long[] digits = new long[0];
+	private int low;		// digits[0] is digit number low
+	private int pending;
+
+	public void add(double value) {
+		add(value, 1, false);
+	}
+
+	/**
+	 * Undoes add(value).
+	 */
+	public void remove(double value) {
+		add(value, -1, false);
+	}
+
+	public void addSquare(double value) {
+		add(value, 1, true);
+	}
+
+	/**
+	 * Undoes addSquare(value).
+	 */
+	public void removeSquare(double value) {
+		add(value, -1, true);
+	}
+
+	private void add(double value, int sign, boolean square) {
+		long bits = Double.doubleToRawLongBits(value);
+		int exponent = (int) (bits >>> 52) & 0x7FF;
+		long mantissa = bits & 0xFFFFFFFFFFFFFL;
+		if (exponent == 0x7FF) { throw new IllegalArgumentException("Not a finite value: " + value); }
+		if (exponent == 0) { exponent = 1; }
+		else { mantissa |= 1L << 52; }
+		exponent -= 1075;	// value = mantissa * 2^exponent
+		if (square) {
+			// mantissa^2 in three parts of at most 54 bits
+			long high = mantissa >>> 26, rest = mantissa & ((1L << 26) - 1);
+			int position = 2 * exponent + SCALE;
+			add(high * high, position + 52, sign);
+			add(2 * high * rest, position + 26, sign);
+			add(rest * rest, position, sign);
+		} else {
+			add(mantissa, exponent + SCALE, bits < 0 ? -sign : sign);
+		}
+	}
+
+	/**
+	 * Adds sign * magnitude * 2^position for a magnitude below 2^55.
+	 */
+	private void add(long magnitude, int position, int sign) {
+		int digit = position >>> 5, shift = position & 31;
+		long shifted = magnitude << shift;
+		reach(digit, digit + 3);
+		int k = digit - low;
+		digits[k] += sign * (shifted & DIGIT_MASK);
+		digits[k + 1] += sign * (shifted >>> 32);
+		digits[k + 2] += sign * ((magnitude >>> 32) >>> (32 - shift));
+		if (++pending == CARRY_EVERY) { carry(); }
+	}
+
+	/**
+	 * Adds in another sum.
+	 */
+	public void merge(STARDataExactSum other) {
+		if (other.digits.length == 0) { return; }
+		other.carry();
+		carry();
+		reach(other.low, other.low + other.digits.length);
+		for (int k = 0; k < other.digits.length; k++) { digits[other.low - low + k] += other.digits[k]; }
+		carry();
+	}
+
+	/**
+	 * The sum times 2^SCALE.
+	 */
+	public BigInteger value() {
+		carry();
+		BigInteger value = BigInteger.ZERO;
+		for (int k = digits.length - 1; k >= 0; k--) { value = value.shiftLeft(32).add(BigInteger.valueOf(digits[k])); }
+		return value.shiftLeft(32 * low);
+	}
+
+	/**
+	 * numerator / denominator * 2^exponent for a positive denominator, rounded to the nearest double:
+	 * the quotient is taken to 62 or 63 bits with a sticky last bit, so converting it rounds once.
+	 */
+	public static double quotient(BigInteger numerator, BigInteger denominator, int exponent) {
+		if (numerator.signum() == 0) { return 0; }
+		int shift = 62 - (numerator.bitLength() - denominator.bitLength());
+		BigInteger[] division = shift >= 0 ? numerator.abs().shiftLeft(shift).divideAndRemainder(denominator) : numerator.abs().divideAndRemainder(denominator.shiftLeft(-shift));
+		long quotient = division[0].longValue() | (division[1].signum() == 0 ? 0 : 1);
+		return Math.scalb(numerator.signum() * (double) quotient, exponent - shift);
+	}
+
+	/**
+	 * Propagates the carries, leaving every digit but the highest in [0, 2^32).
+	 */
+	private void carry() {
+		if (pending == 0) { return; }
+		long carry = 0;
+		for (int k = 0; k < digits.length - 1; k++) {
+			long digit = digits[k] + carry;
+			digits[k] = digit & DIGIT_MASK;
+			carry = digit >> 32;
+		}
+		digits[digits.length - 1] += carry;
+		pending = 0;
+	}
+
+	/**
+	 * Makes room for digits from up to to, plus the spare ones above.
+	 */
+	private void reach(int from, int to) {
+		to += SPARE_DIGITS;
+		if (digits.length == 0) {
+			low = from;
+			digits = new long[to - from];
+			return;
+		}
+		int high = low + digits.length;
+		if (from >= low && to <= high) { return; }
+		int newLow = Math.min(low, from), newHigh = Math.max(high, to);
+		long[] reached = new long[newHigh - newLow];
+		System.arraycopy(digits, 0, reached, low - newLow, digits.length);
+		digits = reached;
+		low = newLow;
+		pending++;	// the old highest digit may hold a negative carry that has to move up
+	}
+
+	void write(DataOutput out) throws IOException {
+		carry();
+		out.writeInt(low);
+		out.writeInt(digits.length);
+		for (long digit : digits) { out.writeLong(digit); }
+	}
+
+	void read(DataInput in) throws IOException {
+		low = in.readInt();
+		digits = new long[in.readInt()];
+		for (int k = 0; k < digits.length; k++) { digits[k] = in.readLong(); }
+		pending = 0;
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.avro.Schema;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+
+/**
+ * Join stage between LIVER_FOLLOWUP_DATA and the cohort. Every follow-up row is checked once, its
+ * PT_CODE is looked up in a {@link STARDataIndex} over the cohort, and each hospitalization date is
+ * attached to its patient once; every patient's dates are then sorted. The row counts are kept for
+ * reporting and go to {@link STARDataMetrics} with the time of the stage.
+ *
+ * Each patient's followUpFingerprint is summed over their matched rows. When the cohort is joined
+ * against the previous release's, patients unchanged since (see {@link STARDataIncrement}) copy their
+ * follow-up days from there, and only the others are sorted.
+ */
+public class STARDataFollowUpJoin {
+
+	public int matchedRows, unmatchedRows, duplicateRows, otherRows;	// otherRows: not hospitalizations
+
+	private static class Partial {
+		int count, unmatchedRows, otherRows;
+		int[] positions = new int[1024], pxStatDays = new int[1024];
+	}
+
+	public static STARDataFollowUpJoin join(File csv, STARDataCohort cohort, int threads) throws Exception {
+		return join(csv, cohort, null, threads);
+	}
+
+	/**
+	 * Same as {@link #join(File, STARDataCohort, int)}, copying the follow-up days of the patients unchanged
+	 * since previous, the cohort of an earlier release, from there. previous may be null.
+	 */
+	public static STARDataFollowUpJoin join(final File csv, STARDataCohort cohort, STARDataCohort previous, int threads) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up join");
+		final STARDataIndex index = new STARDataIndex(cohort.ptCode);
+		return attach(cohort, STARDataIngest.runChunks(STARDataReader.split(csv, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception {
+				STARDataReader reader = new STARDataReader(csv, STARDataColumns.FOLLOWUP_PROJECTION, start, end);
+				if (start == 0) { reader.next(); }
+				return scan(reader, index);
+			}
+		}), previous, stage);
+	}
+
+	/**
+	 * Same as {@link #join(File, STARDataCohort, int)}, straight from LIVER_FOLLOWUP_DATA.DTA. The
+	 * projected columns are found by name through "VariableIDs - LIVER_FOLLOWUP_DATA.txt".
+	 */
+	public static STARDataFollowUpJoin joinDTA(File dta, File variableIds, STARDataCohort cohort, int threads) throws Exception {
+		return joinDTA(dta, variableIds, cohort, null, threads);
+	}
+
+	public static STARDataFollowUpJoin joinDTA(final File dta, File variableIds, STARDataCohort cohort, STARDataCohort previous, int threads) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up join");
+		final STARDataIndex index = new STARDataIndex(cohort.ptCode);
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.FOLLOWUP_PROJECTION);
+		return attach(cohort, STARDataIngest.runChunks(STARDataDTAReader.split(dta, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception { return scan(new STARDataDTAReader(dta, variables, start, end), index); }
+		}), previous, stage);
+	}
+
+	/**
+	 * Same as {@link #join(File, STARDataCohort, int)}, from a LIVER_FOLLOWUP_DATA.parquet written by
+	 * {@link STARDataParquet}, reading only the hospitalizations that pass the checks.
+	 */
+	public static STARDataFollowUpJoin joinParquet(File parquet, File variableIds, STARDataCohort cohort, int threads) throws Exception {
+		return joinParquet(parquet, variableIds, cohort, null, threads);
+	}
+
+	public static STARDataFollowUpJoin joinParquet(final File parquet, File variableIds, STARDataCohort cohort, STARDataCohort previous, int threads) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up join");
+		final STARDataIndex index = new STARDataIndex(cohort.ptCode);
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.FOLLOWUP_PROJECTION);
+		final Schema projection = STARDataParquet.schema(STARDataParquet.FOLLOWUP, variables, STARDataColumns.FOLLOWUP_PROJECTION);
+		final FilterPredicate filter = STARDataParquet.followUpFilter(variables);
+		return attach(cohort, STARDataIngest.runChunks(STARDataParquet.split(parquet, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception { return scan(new STARDataParquetReader(parquet, projection, filter, start, end), index); }
+		}), previous, stage);
+	}
+
+	private static STARDataFollowUpJoin attach(STARDataCohort cohort, ArrayList<Partial> partials, STARDataCohort previous, STARDataMetrics.Stage stage) {
+		STARDataFollowUpJoin join = new STARDataFollowUpJoin();
+		int[] offsets = new int[cohort.size + 1];
+		cohort.followUpFingerprint = new long[cohort.size];
+		for (Partial partial : partials) {
+			join.unmatchedRows += partial.unmatchedRows;
+			join.otherRows += partial.otherRows;
+			join.matchedRows += partial.count;
+			for (int i = 0; i < partial.count; i++) {
+				int position = partial.positions[i];
+				offsets[position + 1]++;
+				cohort.followUpFingerprint[position] += STARDataCohort.followUpHash(cohort.ptCode[position], partial.pxStatDays[i]);
+			}
+		}
+
+		// unchanged patients' rows are not placed: they have their previous days, and the rest are duplicates
+		int[] unchanged = previous != null ? STARDataIncrement.unchanged(previous, cohort) : null;
+		if (unchanged != null) {
+			for (int i = 0; i < cohort.size; i++) {
+				int j = unchanged[i];
+				if (j < 0) { continue; }
+				join.duplicateRows += offsets[i + 1] - (previous.followUpOffsets[j + 1] - previous.followUpOffsets[j]);
+				offsets[i + 1] = 0;
+			}
+		}
+		for (int i = 0; i < cohort.size; i++) { offsets[i + 1] += offsets[i]; }
+
+		int[] days = new int[offsets[cohort.size]], filled = Arrays.copyOf(offsets, cohort.size);
+		for (Partial partial : partials) {
+			for (int i = 0; i < partial.count; i++) {
+				int position = partial.positions[i];
+				if (unchanged == null || unchanged[position] < 0) { days[filled[position]++] = partial.pxStatDays[i]; }
+			}
+		}
+
+		// sort each patient's days, then drop the duplicates, which are now adjacent
+		cohort.followUpOffsets = new int[cohort.size + 1];
+		int kept = 0;
+		for (int i = 0; i < cohort.size; i++) {
+			int j = unchanged != null ? unchanged[i] : -1;
+			if (j >= 0) { kept += previous.followUpOffsets[j + 1] - previous.followUpOffsets[j]; }
+			else {
+				Arrays.sort(days, offsets[i], offsets[i + 1]);
+				int end = offsets[i];
+				for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+					if (k > offsets[i] && days[k] == days[k - 1]) { join.duplicateRows++; }
+					else { days[end++] = days[k]; }
+				}
+				kept += end - offsets[i];
+			}
+			cohort.followUpOffsets[i + 1] = kept;
+		}
+		cohort.followUpDays = new int[kept];
+		for (int i = 0; i < cohort.size; i++) {
+			int j = unchanged != null ? unchanged[i] : -1;
+			int[] from = j >= 0 ? previous.followUpDays : days;
+			int start = j >= 0 ? previous.followUpOffsets[j] : offsets[i];
+			System.arraycopy(from, start, cohort.followUpDays, cohort.followUpOffsets[i], cohort.followUpOffsets[i + 1] - cohort.followUpOffsets[i]);
+		}
+		stage.stop((long) join.matchedRows + join.unmatchedRows + join.otherRows);
+		join.count();
+		return join;
+	}
+
+	/**
+	 * Hands the row counts to {@link STARDataMetrics}.
+	 */
+	public void count() {
+		String group = "LIVER_FOLLOWUP_DATA rows";
+		STARDataMetrics.count(group, "Attached", matchedRows - duplicateRows);
+		STARDataMetrics.count(group, "Duplicate hospitalization", duplicateRows);
+		STARDataMetrics.count(group, "Without a matching patient", unmatchedRows);
+		STARDataMetrics.count(group, "Not a hospitalization", otherRows);
+	}
+
+	private static Partial scan(STARDataSource reader, STARDataIndex index) throws Exception {
+		Partial partial = new Partial();
+		while(reader.next()) {
+			if (!isHospitalization(reader)) { partial.otherRows++; }
+			else {
+				int position = index.get(reader.parseInt(STARDataColumns.FOLLOWUP_PT_CODE));
+				if (position < 0) { partial.unmatchedRows++; continue; }
+				if (partial.count == partial.positions.length) {
+					partial.positions = Arrays.copyOf(partial.positions, partial.count * 2);
+					partial.pxStatDays = Arrays.copyOf(partial.pxStatDays, partial.count * 2);
+				}
+				partial.positions[partial.count] = position;
+				partial.pxStatDays[partial.count++] = reader.parseEpochDay(STARDataColumns.FOLLOWUP_PX_STAT_DATE);
+			}
+		}
+		reader.close();
+		return partial;
+	}
+
+	/**
+	 * True if the current row of a LIVER_FOLLOWUP_DATA projection is a hospitalization (HOSP = "Y") that
+	 * passes {@link #isValid(STARDataSource)}.
+	 */
+	public static boolean isHospitalization(STARDataSource reader) {
+		int Hosp = STARDataColumns.FOLLOWUP_HOSP;
+		return isValid(reader) && reader.length(Hosp) == 1 && reader.charAt(Hosp, 0) == 'Y';
+	}
+
+	/**
+	 * True if the current row of a LIVER_FOLLOWUP_DATA projection has a valid PT_CODE, a TRR_ID_CODE
+	 * starting with 'A' and a PX_STAT_DATE.
+	 */
+	public static boolean isValid(STARDataSource reader) {
+		int code = STARDataColumns.FOLLOWUP_PT_CODE, TRR = STARDataColumns.FOLLOWUP_TRR_ID_CODE, pxStatDate = STARDataColumns.FOLLOWUP_PX_STAT_DATE;
+		boolean ptCodeIsValid = reader.length(code) > 0 && reader.length(TRR) > 0 && reader.charAt(code, 0) >= '0' && reader.charAt(code, 0) <= '9' && reader.charAt(TRR, 0) == 'A',
+				pxStatDateIsValid = (reader.length(pxStatDate) > 7 && reader.charAt(pxStatDate, 4) == '-' && reader.charAt(pxStatDate, 7) == '-');
+		return ptCodeIsValid && pxStatDateIsValid;
+	}
+}
@@ -0,0 +1,321 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Writes synthetic LIVER_DATA.csv and LIVER_FOLLOWUP_DATA.csv files shaped like the pandas export of the
+ * STAR files: every column listed in the "VariableIDs" files, in the same positions, with the columns the
+ * analysis reads filled in and the others left empty. Values follow rough recipient distributions (age,
+ * sex, DIAB, HCV, functional status, BMI and the MELD labs) and the rates below set how many patients
+ * have repeat transplants, follow-ups and hospitalizations, and how many rows the ingest should reject.
+ *
+ * Patients are generated in blocks of BLOCK, each from its own SplittableRandom split off the seed in
+ * block order. The blocks are formatted on a fork-join pool and written in order as they complete, with
+ * at most a few blocks per thread in memory, so the output is the same for a seed whatever the number of
+ * threads, and any number of rows can be streamed.
+ */
+public class STARDataGenerator {
+
+	private static final int BLOCK = 1 << 14;
+	private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+	private static final int FIRST_DAY = (int) LocalDate.of(1990, 1, 1).toEpochDay(), LAST_DAY = (int) LocalDate.of(2023, 12, 31).toEpochDay();
+	private static final String[] DIAB_CODES = {"1.0", "2.0", "3.0", "4.0", "5.0", "998.0", ""};
+	private static final double[] DIAB_WEIGHTS = {70, 3, 21, 1, 2, 2, 1};
+	private static final String[] HCV_CODES = {"P", "N", "U", "ND", ""};
+	private static final double[] HCV_WEIGHTS = {25, 64, 5, 4, 2};
+	private static final String[] FUNCTIONAL_STATUS_CODES = {"2010.0", "2020.0", "2030.0", "2040.0", "2050.0", "2060.0", "2070.0", "2080.0", "2090.0", "2100.0", "996.0", "998.0", ""};
+	private static final double[] FUNCTIONAL_STATUS_WEIGHTS = {3, 5, 10, 12, 12, 14, 14, 12, 8, 4, 1, 4, 1};
+
+	public long seed = 1;
+	public double repeatTransplantRate = 0.05;	// patients with a second transplant
+	public double pediatricRate = 0.07;			// recipients under 18
+	public double followUpsPerTransplant = 5;	// mean number of follow-up visits
+	public double earlyFollowUpRate = 0.04;		// transplants with a follow-up 1-30 days after discharge
+	public double hospitalizationRate = 0.2;	// follow-ups with HOSP = Y
+	public double invalidRowRate = 0.02;		// LIVER_DATA rows with a defect the ingest rejects
+	public double orphanFollowUpRate = 0.01;	// follow-ups of a PT_CODE that is not in LIVER_DATA
+
+	private int liverColumns, followUpColumns;
+	private int[] liverOrder, liverSlots, followUpOrder, followUpSlots;
+
+	/**
+	 * Writes the rows of the given number of patients; the column count and header come from the
+	 * "VariableIDs" files.
+	 */
+	public void generate(File liverData, File liverVariableIds, File followUpData, File followUpVariableIds, long patients, int threads) throws Exception {
+		liverColumns = STARDataColumns.columnCount(liverVariableIds);
+		followUpColumns = STARDataColumns.columnCount(followUpVariableIds);
+		liverOrder = columnOrder(STARDataColumns.LIVER_PROJECTION);
+		liverSlots = slotOrder(STARDataColumns.LIVER_PROJECTION);
+		followUpOrder = columnOrder(STARDataColumns.FOLLOWUP_PROJECTION);
+		followUpSlots = slotOrder(STARDataColumns.FOLLOWUP_PROJECTION);
+
+		final long blocks = (patients + BLOCK - 1) / BLOCK;
+		SplittableRandom root = new SplittableRandom(seed);
+		OutputStream liver = new BufferedOutputStream(new FileOutputStream(liverData), 1 << 20);
+		OutputStream followUp = new BufferedOutputStream(new FileOutputStream(followUpData), 1 << 20);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			writeHeader(liver, liverVariableIds, liverColumns);
+			writeHeader(followUp, followUpVariableIds, followUpColumns);
+			ArrayDeque<ForkJoinTask<Block>> pending = new ArrayDeque<ForkJoinTask<Block>>();
+			long liverIndex = 0, followUpIndex = 0;
+			for (long next = 0; next < blocks || !pending.isEmpty(); ) {
+				while (next < blocks && pending.size() < threads * BLOCKS_AHEAD_PER_THREAD) {
+					final long first = next * BLOCK, last = Math.min(patients, first + BLOCK);
+					final SplittableRandom random = root.split();
+					final long total = patients;
+					pending.add(pool.submit(new Callable<Block>() {
+						public Block call() { return block(first, last, total, random); }
+					}));
+					next++;
+				}
+				Block block = pending.poll().get();
+				liverIndex = block.liver.writeTo(liver, liverIndex);
+				followUpIndex = block.followUp.writeTo(followUp, followUpIndex);
+			}
+		} finally {
+			pool.shutdown();
+			liver.close();
+			followUp.close();
+		}
+	}
+
+	/**
+	 * Rows of a block, without the leading pandas index, which is added as they are written.
+	 */
+	static class Rows {
+		byte[] data = new byte[1 << 16];
+		int length;
+		int[] ends = new int[256];
+		int count;
+
+		void put(char c) {
+			if (length == data.length) { data = Arrays.copyOf(data, data.length * 2); }
+			data[length++] = (byte) c;
+		}
+
+		void put(String s) {
+			for (int i = 0; i < s.length(); i++) { put(s.charAt(i)); }
+		}
+
+		void putCommas(int n) {
+			for (int i = 0; i < n; i++) { put(','); }
+		}
+
+		void putLong(long value) {
+			if (value < 0) { put('-'); value = -value; }
+			if (value >= 10) { putLong(value / 10); }
+			put((char) ('0' + value % 10));
+		}
+
+		/**
+		 * value with exactly the given number of decimals (so it always has a '.').
+		 */
+		void putFixed(double value, int decimals) {
+			long scale = 1;
+			for (int i = 0; i < decimals; i++) { scale *= 10; }
+			long scaled = Math.round(Math.abs(value) * scale);
+			if (value < 0 && scaled != 0) { put('-'); }
+			putLong(scaled / scale);
+			put('.');
+			long fraction = scaled % scale;
+			for (long digit = scale / 10; digit > 0; digit /= 10) { put((char) ('0' + fraction / digit % 10)); }
+			if (decimals == 0) { put('0'); }
+		}
+
+		void putDate(int epochDay) {
+			LocalDate date = LocalDate.ofEpochDay(epochDay);
+			putLong(date.getYear());
+			put('-');
+			putTwoDigits(date.getMonthValue());
+			put('-');
+			putTwoDigits(date.getDayOfMonth());
+		}
+
+		private void putTwoDigits(int value) {
+			put((char) ('0' + value / 10));
+			put((char) ('0' + value % 10));
+		}
+
+		void endRow() {
+			put('\n');
+			if (count == ends.length) { ends = Arrays.copyOf(ends, count * 2); }
+			ends[count++] = length;
+		}
+
+		void addAll(Rows other) {
+			for (int i = 0, start = 0; i < other.count; start = other.ends[i++]) {
+				for (int j = start; j < other.ends[i]; j++) { put((char) other.data[j]); }
+				if (count == ends.length) { ends = Arrays.copyOf(ends, count * 2); }
+				ends[count++] = length;
+			}
+		}
+
+		/**
+		 * Writes the rows, each prefixed with its index, and returns the next index.
+		 */
+		long writeTo(OutputStream out, long index) throws IOException {
+			byte[] digits = new byte[20];
+			for (int i = 0, start = 0; i < count; start = ends[i++]) {
+				int n = digits.length;
+				long value = index++;
+				do { digits[--n] = (byte) ('0' + value % 10); value /= 10; } while (value > 0);
+				out.write(digits, n, digits.length - n);
+				out.write(data, start, ends[i] - start);
+			}
+			return index;
+		}
+	}
+
+	static class Block {
+		final Rows liver = new Rows(), followUp = new Rows();
+	}
+
+	/**
+	 * The values of one transplant, by projection slot.
+	 */
+	private static class Transplant {
+		long ptCode, trrIdCode;
+		int age, dischargeDay;
+		boolean female, dialysis;
+		String diab, hcv, functionalStatus;
+		double bmi, creatinine, bilirubin, inr, sodium, albumin;
+		int defect = -1;
+	}
+
+	private Block block(long first, long last, long patients, SplittableRandom random) {
+		Block block = new Block();
+		Rows repeats = new Rows();
+		Transplant transplant = new Transplant();
+		for (long patient = first; patient < last; patient++) {
+			transplant.ptCode = patient + 1;
+			transplant.female = random.nextDouble() < 0.35;
+			transplant.age = random.nextDouble() < pediatricRate ? random.nextInt(18) : (int) Math.max(18, Math.min(80, Math.round(54 + 11 * random.nextGaussian())));
+			transplant.diab = pick(random, DIAB_CODES, DIAB_WEIGHTS);
+			transplant.hcv = pick(random, HCV_CODES, HCV_WEIGHTS);
+			int transplants = random.nextDouble() < repeatTransplantRate ? 2 : 1;
+			int day = FIRST_DAY + random.nextInt(LAST_DAY - FIRST_DAY - 3000);
+			for (int t = 0; t < transplants; t++) {
+				transplant.trrIdCode = patient * 2 + t + 1;
+				transplant.dischargeDay = day + 7 + random.nextInt(50);
+				transplant.functionalStatus = pick(random, FUNCTIONAL_STATUS_CODES, FUNCTIONAL_STATUS_WEIGHTS);
+				transplant.bmi = random.nextDouble() < 0.03 ? Double.NaN : 28 * Math.exp(0.2 * random.nextGaussian());
+				transplant.bilirubin = 3 * Math.exp(1.1 * random.nextGaussian());
+				transplant.inr = 1.5 * Math.exp(0.3 * random.nextGaussian());
+				transplant.creatinine = 1.1 * Math.exp(0.5 * random.nextGaussian());
+				transplant.sodium = 136 + 5 * random.nextGaussian();
+				transplant.albumin = Math.max(1, 3.1 + 0.6 * random.nextGaussian());
+				transplant.dialysis = random.nextDouble() < 0.1;
+				transplant.defect = random.nextDouble() < invalidRowRate ? random.nextInt(4) : -1;
+				liverRow(t == 0 ? block.liver : repeats, transplant);
+				followUps(block.followUp, transplant, random, patients);
+				day = transplant.dischargeDay + 365 + random.nextInt(2000);
+			}
+		}
+		block.liver.addAll(repeats);
+		return block;
+	}
+
+	private void liverRow(Rows rows, Transplant transplant) {
+		int previous = 0;
+		for (int i = 0; i < liverOrder.length; i++) {
+			rows.putCommas(liverOrder[i] - previous);
+			previous = liverOrder[i];
+			int defect = transplant.defect;
+			switch (liverSlots[i]) {
+				case STARDataColumns.LIVER_PT_CODE: if (defect != 0) { rows.putLong(transplant.ptCode); rows.put(".0"); } break;
+				case STARDataColumns.LIVER_TRR_ID_CODE: rows.put(defect == 1 ? 'B' : 'A'); rows.putLong(transplant.trrIdCode); break;
+				case STARDataColumns.LIVER_DISCHARGE_DATE: if (defect != 2) { rows.putDate(transplant.dischargeDay); } break;
+				case STARDataColumns.LIVER_GENDER: rows.put(transplant.female ? 'F' : 'M'); break;
+				case STARDataColumns.LIVER_AGE: rows.putLong(transplant.age); rows.put(".0"); break;
+				case STARDataColumns.LIVER_END_BMI_CALC: if (!Double.isNaN(transplant.bmi)) { rows.putFixed(transplant.bmi, 6); } break;
+				case STARDataColumns.LIVER_DIAB: rows.put(transplant.diab); break;
+				case STARDataColumns.LIVER_FUNC_STAT_TRR: rows.put(transplant.functionalStatus); break;
+				case STARDataColumns.LIVER_HCV_SEROSTATUS: rows.put(transplant.hcv); break;
+				case STARDataColumns.LIVER_FINAL_SERUM_CREAT: rows.putFixed(transplant.creatinine, 2); break;
+				case STARDataColumns.LIVER_FINAL_BILIRUBIN: rows.putFixed(transplant.bilirubin, 1); break;
+				case STARDataColumns.LIVER_FINAL_INR: if (defect != 3) { rows.putFixed(transplant.inr, 2); } break;
+				case STARDataColumns.LIVER_FINAL_SERUM_SODIUM: rows.putFixed(Math.round(transplant.sodium), 1); break;
+				case STARDataColumns.LIVER_INIT_ALBUMIN: rows.putFixed(transplant.albumin, 1); break;
+				case STARDataColumns.LIVER_FINAL_DIALYSIS_PRIOR_WEEK: rows.put(transplant.dialysis ? 'Y' : 'N'); break;
+			}
+		}
+		rows.putCommas(liverColumns - 1 - previous);
+		rows.endRow();
+	}
+
+	private void followUps(Rows rows, Transplant transplant, SplittableRandom random, long patients) {
+		if (random.nextDouble() < earlyFollowUpRate) { followUpRow(rows, transplant.ptCode, transplant.trrIdCode, transplant.dischargeDay + 1 + random.nextInt(30), random.nextDouble() < 0.8); }
+		int visits = (int) Math.min(40, Math.round(-followUpsPerTransplant * Math.log(1 - random.nextDouble())));
+		for (int v = 0; v < visits; v++) {
+			int day = transplant.dischargeDay + (v == 0 ? 182 : 365 * v) + random.nextInt(91) - 45;
+			long ptCode = transplant.ptCode;
+			if (random.nextDouble() < orphanFollowUpRate) { ptCode = Math.min(Integer.MAX_VALUE, patients + 1 + random.nextInt(1 << 20)); }
+			followUpRow(rows, ptCode, transplant.trrIdCode, day, random.nextDouble() < hospitalizationRate);
+		}
+	}
+
+	private void followUpRow(Rows rows, long ptCode, long trrIdCode, int day, boolean hospitalized) {
+		int previous = 0;
+		for (int i = 0; i < followUpOrder.length; i++) {
+			rows.putCommas(followUpOrder[i] - previous);
+			previous = followUpOrder[i];
+			switch (followUpSlots[i]) {
+				case STARDataColumns.FOLLOWUP_PT_CODE: rows.putLong(ptCode); rows.put(".0"); break;
+				case STARDataColumns.FOLLOWUP_TRR_ID_CODE: rows.put('A'); rows.putLong(trrIdCode); break;
+				case STARDataColumns.FOLLOWUP_HOSP: rows.put(hospitalized ? 'Y' : 'N'); break;
+				case STARDataColumns.FOLLOWUP_PX_STAT_DATE: rows.putDate(day); break;
+			}
+		}
+		rows.putCommas(followUpColumns - 1 - previous);
+		rows.endRow();
+	}
+
+	private static String pick(SplittableRandom random, String[] values, double[] weights) {
+		double total = 0;
+		for (double w : weights) { total += w; }
+		double x = random.nextDouble() * total;
+		for (int i = 0; i < values.length - 1; i++) {
+			if ((x -= weights[i]) < 0) { return values[i]; }
+		}
+		return values[values.length - 1];
+	}
+
+	private static void writeHeader(OutputStream out, File variableIds, int columns) throws IOException {
+		int[] all = new int[columns - 1];
+		for (int i = 0; i < all.length; i++) { all[i] = i + 1; }
+		StringBuilder header = new StringBuilder();
+		for (String name : STARDataColumns.variableNames(variableIds, all)) { header.append(',').append(name); }
+		out.write(header.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The projected columns in ascending order, and the projection slot of each.
+	 */
+	private static int[] columnOrder(int[] projection) {
+		int[] columns = projection.clone();
+		Arrays.sort(columns);
+		return columns;
+	}
+
+	private static int[] slotOrder(int[] projection) {
+		int[] columns = columnOrder(projection), slots = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			for (int j = 0; j < projection.length; j++) {
+				if (projection[j] == columns[i]) { slots[i] = j; }
+			}
+		}
+		return slots;
+	}
+}
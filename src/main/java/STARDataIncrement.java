@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * What changed between the cohort of the previous STAR release and the cohort of a new one. Both cohorts
+ * are in PT_CODE order, so they are merged in one pass. A patient whose row and follow-up fingerprints
+ * (see {@link STARDataCohort#rowFingerprint}) are the same in both releases is unchanged. Every other
+ * patient in the new cohort is added or changed, and every other patient in the previous one is removed
+ * or replaced.
+ *
+ * The new release is still parsed in full, since the fingerprints are taken from its raw rows. But when
+ * it is read and joined against the previous cohort, patients with the same rows are copied from there
+ * rather than scored and built again, and those that are also unchanged copy their follow-up days, so
+ * only the others are sorted and merged. compare then leaves them their readmission gap from the
+ * previous release.
+ *
+ * {@link #update(STARDataCube, STARDataCohort, STARDataCohort, int, int)} moves a cube of the previous
+ * release to the new one by taking the outgoing patients out and adding the incoming ones. The cube's
+ * moments are exact, so it then equals a full rebuild bit for bit. Only cells where the patients taken
+ * out held the min or max of a measure, and none added took their place, are filled again from the new
+ * cohort.
+ */
+public class STARDataIncrement {
+
+	public int added, removed, changed, unchanged;
+	public int[] incoming;		// patients of the new cohort that are added or changed
+	public int[] outgoing;		// patients of the previous cohort that are removed or changed
+
+	/**
+	 * Diffs the two cohorts and fills the new cohort's readmission gaps.
+	 */
+	public static STARDataIncrement compare(STARDataCohort previous, STARDataCohort cohort) {
+		if (previous.readmissionGap == null) { previous.findReadmissionGaps(); }
+
+		STARDataIncrement increment = new STARDataIncrement();
+		int[] unchanged = unchanged(previous, cohort), incoming = new int[cohort.size], outgoing = new int[previous.size];
+		int in = 0, out = 0, i = 0, j = 0;
+		cohort.readmissionGap = new int[cohort.size];
+		while (i < cohort.size || j < previous.size) {
+			int code = i < cohort.size ? cohort.ptCode[i] : Integer.MAX_VALUE, previousCode = j < previous.size ? previous.ptCode[j] : Integer.MAX_VALUE;
+			if (i < cohort.size && (j == previous.size || code < previousCode)) {
+				increment.added++;
+				cohort.readmissionGap[i] = cohort.readmissionGap(i);
+				incoming[in++] = i++;
+			}
+			else if (i == cohort.size || previousCode < code) {
+				increment.removed++;
+				outgoing[out++] = j++;
+			}
+			else if (unchanged[i] == j) {
+				increment.unchanged++;
+				cohort.readmissionGap[i++] = previous.readmissionGap[j++];
+			}
+			else {
+				increment.changed++;
+				cohort.readmissionGap[i] = cohort.readmissionGap(i);
+				incoming[in++] = i++;
+				outgoing[out++] = j++;
+			}
+		}
+		increment.incoming = Arrays.copyOf(incoming, in);
+		increment.outgoing = Arrays.copyOf(outgoing, out);
+		return increment;
+	}
+
+	/**
+	 * For each patient of cohort, their position in previous if both their fingerprints are the same
+	 * there, else -1.
+	 */
+	static int[] unchanged(STARDataCohort previous, STARDataCohort cohort) {
+		int[] unchanged = new int[cohort.size];
+		for (int i = 0, j = 0; i < cohort.size; i++) {
+			while (j < previous.size && previous.ptCode[j] < cohort.ptCode[i]) { j++; }
+			boolean same = j < previous.size && previous.ptCode[j] == cohort.ptCode[i]
+							&& previous.rowFingerprint[j] == cohort.rowFingerprint[i] && previous.followUpFingerprint[j] == cohort.followUpFingerprint[i];
+			unchanged[i] = same ? j : -1;
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Turns a cube filled from the previous cohort, with readmission within window days, into the cube of
+	 * the new cohort. Readmission is read off both cohorts' readmission gaps, so neither needs its
+	 * readmitted flags marked. Returns the number of cells that had to be refilled.
+	 */
+	public int update(STARDataCube cube, STARDataCohort previous, STARDataCohort cohort, int window, int threads) throws Exception {
+		for (int j : outgoing) { cube.remove(previous, j, window); }
+		for (int i : incoming) { cube.add(cohort, i, window); }
+		boolean[] unknown = new boolean[cube.cells()];
+		int refilled = 0;
+		for (int c = 0; c < unknown.length; c++) {
+			if (!cube.extremesKnown(c)) { unknown[c] = true; refilled++; }
+		}
+		if (refilled > 0) { cube.refill(cohort, unknown, window, threads); }
+		STARDataMetrics.count("Incremental cube", "Cells refilled for a min or max", refilled);
+		return refilled;
+	}
+
+	public String toString() {
+		return added + " added, " + removed + " removed, " + changed + " changed, " + unchanged + " unchanged";
+	}
+}
@@ -0,0 +1,42 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash index from PT_CODE to a position in a patient array, kept in primitive int
+ * arrays so lookups neither box the code nor walk a tree.
+ */
+public class STARDataIndex {
+
+	private final int[] keys, positions;
+	private final int mask;
+
+	public STARDataIndex(int[] codes) {
+		int capacity = Integer.highestOneBit(Math.max(2, codes.length) * 2 - 1) << 1;
+		keys = new int[capacity];
+		positions = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(positions, -1);
+		for (int i = 0; i < codes.length; i++) {
+			int slot = slot(codes[i]);
+			while (positions[slot] >= 0 && keys[slot] != codes[i]) { slot = (slot + 1) & mask; }
+			keys[slot] = codes[i];
+			positions[slot] = i;
+		}
+	}
+
+	/**
+	 * Position of code in the array the index was built from, or -1 if it is not there.
+	 */
+	public int get(int code) {
+		int slot = slot(code);
+		while (positions[slot] >= 0) {
+			if (keys[slot] == code) { return positions[slot]; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int slot(int code) {
+		int h = code * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
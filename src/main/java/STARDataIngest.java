@@ -0,0 +1,225 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.avro.Schema;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+
+/**
+ * Builds the {@link STARDataCohort} from LIVER_DATA.csv, LIVER_DATA.DTA or LIVER_DATA.parquet. The file
+ * is split into line-aligned byte ranges (or record ranges, or row groups) that are parsed on a fork-join
+ * pool; the partial results are merged back in file order, so the outcome is the same for any number of
+ * threads.
+ */
+public class STARDataIngest {
+
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Outcomes of {@link #readRow(STARDataSource, RowSink)}: accepted, or the first check the row failed.
+	 */
+	public static final int ACCEPTED = 0, INVALID_CODE = 1, INCOMPLETE_LABS = 2, AGE_OUT_OF_RANGE = 3, NO_DISCHARGE_DATE = 4;
+	public static final String[] ROW_OUTCOMES = {"Accepted", "Invalid PT_CODE, TRR_ID_CODE or age", "Incomplete MELD labs", "Age outside 18-100", "No discharge date"};
+
+	public static STARDataCohort readCohort(File csv, int threads) throws Exception {
+		return readCohort(csv, null, threads);
+	}
+
+	/**
+	 * Same as {@link #readCohort(File, int)}, but patients whose rows are the same as when previous was
+	 * read from an earlier release are copied from previous instead of being scored and built again (see
+	 * {@link STARDataCohortBuilder#match(STARDataCohort)}). previous may be null.
+	 */
+	public static STARDataCohort readCohort(final File csv, STARDataCohort previous, int threads) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Parse LIVER_DATA");
+		ArrayList<STARDataCohortBuilder> partials = runChunks(STARDataReader.split(csv, chunks(threads)), threads, new ChunkParser<STARDataCohortBuilder>() {
+			public STARDataCohortBuilder parse(long start, long end) throws Exception {
+				STARDataReader reader = new STARDataReader(csv, STARDataColumns.LIVER_PROJECTION, start, end);
+				if (start == 0) { reader.next(); }
+				return readRows(reader);
+			}
+		});
+		return build(partials, previous, stage);
+	}
+
+	/**
+	 * Same as {@link #readCohort(File, int)}, straight from LIVER_DATA.DTA. The projected columns are
+	 * found by name through "VariableIDs - LIVER_DATA.txt".
+	 */
+	public static STARDataCohort readCohortDTA(File dta, File variableIds, int threads) throws Exception {
+		return readCohortDTA(dta, variableIds, null, threads);
+	}
+
+	public static STARDataCohort readCohortDTA(final File dta, File variableIds, STARDataCohort previous, int threads) throws Exception {
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.LIVER_PROJECTION);
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Parse LIVER_DATA");
+		ArrayList<STARDataCohortBuilder> partials = runChunks(STARDataDTAReader.split(dta, chunks(threads)), threads, new ChunkParser<STARDataCohortBuilder>() {
+			public STARDataCohortBuilder parse(long start, long end) throws Exception { return readRows(new STARDataDTAReader(dta, variables, start, end)); }
+		});
+		return build(partials, previous, stage);
+	}
+
+	/**
+	 * Same as {@link #readCohort(File, int)}, from a LIVER_DATA.parquet written by {@link STARDataParquet}.
+	 * Only the projected columns are read, and rows the ingest would reject are filtered out by Parquet.
+	 */
+	public static STARDataCohort readCohortParquet(File parquet, File variableIds, int threads) throws Exception {
+		return readCohortParquet(parquet, variableIds, null, threads);
+	}
+
+	public static STARDataCohort readCohortParquet(final File parquet, File variableIds, STARDataCohort previous, int threads) throws Exception {
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.LIVER_PROJECTION);
+		final Schema projection = STARDataParquet.schema(STARDataParquet.LIVER, variables, STARDataColumns.LIVER_PROJECTION);
+		final FilterPredicate filter = STARDataParquet.liverFilter(variables);
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Parse LIVER_DATA");
+		ArrayList<STARDataCohortBuilder> partials = runChunks(STARDataParquet.split(parquet, chunks(threads)), threads, new ChunkParser<STARDataCohortBuilder>() {
+			public STARDataCohortBuilder parse(long start, long end) throws Exception { return readRows(new STARDataParquetReader(parquet, projection, filter, start, end)); }
+		});
+		return build(partials, previous, stage);
+	}
+
+	/**
+	 * Merges the partial builders, ending the parse stage, then scores MELD and builds the cohort as stages
+	 * of their own, and counts the row and patient outcomes. Patients are first matched against previous
+	 * if there is one.
+	 */
+	private static STARDataCohort build(ArrayList<STARDataCohortBuilder> partials, STARDataCohort previous, STARDataMetrics.Stage parse) {
+		STARDataCohortBuilder builder = partials.get(0);
+		for (int i = 1; i < partials.size(); i++) { builder.addAll(partials.get(i)); }
+		long rows = 0;
+		for (long count : builder.rowOutcomes) { rows += count; }
+		parse.stop(rows);
+		STARDataMetrics.count("LIVER_DATA rows", ROW_OUTCOMES, builder.rowOutcomes);
+
+		STARDataMetrics.Stage stage;
+		if (previous != null) {
+			stage = STARDataMetrics.start("Match previous patients");
+			builder.match(previous);
+			stage.stop(builder.rows());
+		}
+		stage = STARDataMetrics.start("MELD");
+		builder.score();
+		stage.stop(builder.rows());
+		stage = STARDataMetrics.start("Cleanup");
+		STARDataCohort cohort = builder.build();
+		stage.stop(builder.rows());
+		STARDataMetrics.count("LIVER_DATA patients", STARDataCohortBuilder.PATIENT_OUTCOMES, builder.patientOutcomes);
+		return cohort;
+	}
+
+	/**
+	 * Reads every row of a LIVER_DATA projection, closing the source at the end. The builder counts the
+	 * outcome of every row.
+	 */
+	public static STARDataCohortBuilder readRows(STARDataSource reader) throws Exception {
+		STARDataCohortBuilder builder = new STARDataCohortBuilder();
+		while(reader.next()) { builder.rowOutcomes[readRow(reader, builder)]++; }
+		reader.close();
+		return builder;
+	}
+
+	/**
+	 * Receives the LIVER_DATA rows that pass the ingest checks.
+	 */
+	public interface RowSink {
+		/**
+		 * bmi is NaN when the row has none. The labs are as recorded; {@link STARDataMELD} clamps them.
+		 */
+		void addRow(int ptCode, int trrIdCode, int age, byte diab, byte hcv, byte functionalStatus, int dischargeDay, double bmi,
+						boolean female, double bilirubin, double inr, double creatinine, double sodium, double albumin, boolean dialysis);
+	}
+
+	/**
+	 * Checks the current row of a LIVER_DATA projection and hands it to the sink if it is accepted. Rows
+	 * without the complete set of MELD labs are rejected. Returns ACCEPTED or the reason the row was
+	 * rejected.
+	 */
+	public static int readRow(STARDataSource reader, RowSink sink) {
+		int code = STARDataColumns.LIVER_PT_CODE, TRR = STARDataColumns.LIVER_TRR_ID_CODE, dischargeDate = STARDataColumns.LIVER_DISCHARGE_DATE, gender = STARDataColumns.LIVER_GENDER,
+				age = STARDataColumns.LIVER_AGE, bmicalc = STARDataColumns.LIVER_END_BMI_CALC, diab = STARDataColumns.LIVER_DIAB, funcstattrr = STARDataColumns.LIVER_FUNC_STAT_TRR, hcv = STARDataColumns.LIVER_HCV_SEROSTATUS,
+				cr = STARDataColumns.LIVER_FINAL_SERUM_CREAT, bili = STARDataColumns.LIVER_FINAL_BILIRUBIN,
+				inr = STARDataColumns.LIVER_FINAL_INR, na = STARDataColumns.LIVER_FINAL_SERUM_SODIUM, alb = STARDataColumns.LIVER_INIT_ALBUMIN, dialysis = STARDataColumns.LIVER_FINAL_DIALYSIS_PRIOR_WEEK;
+
+		boolean ptCodeIsValid = reader.length(code) > 0 && reader.length(TRR) > 0 && reader.charAt(code, 0) >= '0' && reader.charAt(code, 0) <= '9' && reader.charAt(TRR, 0) == 'A' && reader.length(age) > 0 && reader.charAt(age, 0) >= '0' && reader.charAt(age, 0) <= '9';
+
+		if (!ptCodeIsValid) { return INVALID_CODE; }
+		if(reader.isEmpty(cr) || reader.isEmpty(bili) || reader.isEmpty(inr) || reader.isEmpty(na) || reader.isEmpty(alb) || reader.isEmpty(dialysis) || reader.isEmpty(gender) || !reader.contains(cr, '.') || !reader.contains(bili, '.') || !reader.contains(inr, '.') || !reader.contains(na, '.') || !reader.contains(alb, '.')) { return INCOMPLETE_LABS; }
+		double quantCr = reader.parseDouble(cr), quantBili = reader.parseDouble(bili), quantInr = reader.parseDouble(inr), quantNa = reader.parseDouble(na), quantAlb = reader.parseDouble(alb);
+
+		int ageInt = reader.parseInt(age);
+
+		if (ageInt < 18 || ageInt > 100) { return AGE_OUT_OF_RANGE; }
+		if (reader.isEmpty(dischargeDate)) { return NO_DISCHARGE_DATE; }
+		sink.addRow(reader.parseInt(code), parseTRRIDCode(reader, TRR), ageInt, parseDiab(reader, diab), parseHCV(reader, hcv), parseFunctionalStatus(reader, funcstattrr),
+						reader.parseEpochDay(dischargeDate), reader.isEmpty(bmicalc) ? Double.NaN : reader.parseDouble(bmicalc),
+						reader.charAt(gender, 0) == 'F', quantBili, quantInr, quantCr, quantNa, quantAlb, reader.equals(dialysis, "Y"));
+		return ACCEPTED;
+	}
+
+	static byte parseDiab(STARDataSource reader, int field) {
+		boolean valid = reader.length(field) == 3 && reader.charAt(field, 0) >= '1' && reader.charAt(field, 0) <= '5' && reader.charAt(field, 1) == '.' && reader.charAt(field, 2) == '0';
+		return valid ? (byte) (reader.charAt(field, 0) - '0') : STARDataCohort.DIAB_UNKNOWN;
+	}
+
+	static byte parseHCV(STARDataSource reader, int field) {
+		if (reader.equals(field, "P")) { return STARDataCohort.HCV_POSITIVE; }
+		if (reader.equals(field, "N")) { return STARDataCohort.HCV_NEGATIVE; }
+		return STARDataCohort.HCV_UNKNOWN;
+	}
+
+	static byte parseFunctionalStatus(STARDataSource reader, int field) {
+		if (reader.length(field) != 6) { return STARDataCohort.FUNCTIONAL_STATUS_UNKNOWN; }
+		return STARDataCohort.functionalStatusIndex(reader.parseInt(field));
+	}
+
+	/**
+	 * Numeric part of a TRR_ID_CODE such as "A123456", or -1 if it does not fit in an int.
+	 */
+	static int parseTRRIDCode(STARDataSource reader, int field) {
+		long value = 0;
+		for (int i = 1; i < reader.length(field); i++) {
+			char c = reader.charAt(field, i);
+			if (c < '0' || c > '9' || (value = value * 10 + (c - '0')) > Integer.MAX_VALUE) { return -1; }
+		}
+		return (int) value;
+	}
+
+	interface ChunkParser<T> {
+		T parse(long start, long end) throws Exception;
+	}
+
+	static int chunks(int threads) {
+		return threads == 1 ? 1 : threads * CHUNKS_PER_THREAD;
+	}
+
+	/**
+	 * Parses the ranges [offsets[i], offsets[i + 1]) on a pool of the given size and returns the results
+	 * in range order. What the tasks allocate is added to {@link STARDataMetrics#allocatedBytes()}.
+	 */
+	static <T> ArrayList<T> runChunks(long[] offsets, int threads, final ChunkParser<T> parser) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			ArrayList<ForkJoinTask<T>> tasks = new ArrayList<ForkJoinTask<T>>();
+			for (int i = 0; i < offsets.length - 1; i++) {
+				final long start = offsets[i], end = offsets[i + 1];
+				tasks.add(pool.submit(new Callable<T>() {
+					public T call() throws Exception {
+						long allocated = STARDataMetrics.threadAllocatedBytes();
+						try {
+							return parser.parse(start, end);
+						} finally {
+							STARDataMetrics.addWorkerAllocation(STARDataMetrics.threadAllocatedBytes() - allocated);
+						}
+					}
+				}));
+			}
+			ArrayList<T> partials = new ArrayList<T>();
+			for (ForkJoinTask<T> task : tasks) { partials.add(task.get()); }
+			return partials;
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
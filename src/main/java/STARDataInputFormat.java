@@ -0,0 +1,141 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Hands the rows of local STAR CSV files to a MapReduce job through {@link STARDataReader}. Splits are
+ * line-aligned byte ranges from {@link STARDataReader#split(File, int)}, the header line is skipped, and
+ * each value is the reader positioned on a row of the projection. The key orders rows across all input
+ * files: the files are taken by release, then path, and the key is the row's byte offset in their
+ * concatenation, with the release in the bits from RELEASE_SHIFT up (see {@link #release(long)}). A
+ * file's release is set in the job configuration under RELEASE plus its canonical path, and is 0 if
+ * there is none.
+ */
+public abstract class STARDataInputFormat extends FileInputFormat<LongWritable, STARDataSource> {
+
+	public static final String RELEASE = "star.release.";
+	private static final int RELEASE_SHIFT = 48;
+
+	protected abstract int[] projection();
+
+	public static class Liver extends STARDataInputFormat {
+		protected int[] projection() { return STARDataColumns.LIVER_PROJECTION; }
+	}
+
+	public static class FollowUp extends STARDataInputFormat {
+		protected int[] projection() { return STARDataColumns.FOLLOWUP_PROJECTION; }
+	}
+
+	/**
+	 * A file split that also carries the key of its file's first byte: its release and its offset in the
+	 * concatenation of the inputs.
+	 */
+	public static class Split extends FileSplit {
+		private long base;
+
+		public Split() {
+		}
+
+		Split(Path file, long start, long length, long base) {
+			super(file, start, length, new String[0]);
+			this.base = base;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			super.write(out);
+			out.writeLong(base);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			super.readFields(in);
+			base = in.readLong();
+		}
+	}
+
+	/**
+	 * The release of the row with the given key.
+	 */
+	public static int release(long key) {
+		return (int) (key >>> RELEASE_SHIFT);
+	}
+
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		List<FileStatus> files = new ArrayList<FileStatus>(listStatus(job));
+		final HashMap<Path, Integer> releases = new HashMap<Path, Integer>();
+		for (FileStatus status : files) { releases.put(status.getPath(), job.getConfiguration().getInt(RELEASE + new File(status.getPath().toUri()).getCanonicalPath(), 0)); }
+		Collections.sort(files, new Comparator<FileStatus>() {
+			public int compare(FileStatus a, FileStatus b) {
+				int release = Integer.compare(releases.get(a.getPath()), releases.get(b.getPath()));
+				return release != 0 ? release : a.getPath().compareTo(b.getPath());
+			}
+		});
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		long base = 0, minSize = Math.max(getFormatMinSplitSize(), getMinSplitSize(job)), maxSize = getMaxSplitSize(job);
+		for (FileStatus status : files) {
+			long splitSize = computeSplitSize(status.getBlockSize(), minSize, maxSize), key = ((long) releases.get(status.getPath()) << RELEASE_SHIFT) + base;
+			int parts = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (status.getLen() + splitSize - 1) / splitSize));
+			long[] offsets = STARDataReader.split(new File(status.getPath().toUri()), parts);
+			for (int i = 0; i < offsets.length - 1; i++) {
+				if (offsets[i + 1] > offsets[i]) { splits.add(new Split(status.getPath(), offsets[i], offsets[i + 1] - offsets[i], key)); }
+			}
+			base += status.getLen();
+		}
+		return splits;
+	}
+
+	public RecordReader<LongWritable, STARDataSource> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new RecordReader<LongWritable, STARDataSource>() {
+			private final LongWritable key = new LongWritable();
+			private STARDataReader reader;
+			private long base, start, length;
+
+			public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException {
+				Split split = (Split) inputSplit;
+				base = split.base;
+				start = split.getStart();
+				length = split.getLength();
+				reader = new STARDataReader(new File(split.getPath().toUri()), projection(), start, start + length);
+				if (start == 0) { reader.next(); }
+			}
+
+			public boolean nextKeyValue() throws IOException {
+				long position = reader.position();
+				if (!reader.next()) { return false; }
+				key.set(base + position);
+				return true;
+			}
+
+			public LongWritable getCurrentKey() {
+				return key;
+			}
+
+			public STARDataSource getCurrentValue() {
+				return reader;
+			}
+
+			public float getProgress() {
+				return length == 0 ? 1 : Math.min(1f, (reader.position() - start) / (float) length);
+			}
+
+			public void close() throws IOException {
+				if (reader != null) { reader.close(); }
+			}
+		};
+	}
+}
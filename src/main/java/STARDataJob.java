@@ -0,0 +1,529 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+/**
+ * MapReduce version of the ingest, follow-up join and readmission flag, for running many STAR snapshots
+ * through the LocalJobRunner. The mappers apply the same row checks as {@link STARDataIngest} and
+ * {@link STARDataFollowUpJoin} and key the rows by PT_CODE. The reducer puts a patient's rows back in
+ * input order, builds the patient with {@link STARDataCohortBuilder}, attaches the follow-ups, flags the
+ * readmission and counts it in its strata. The output is one {@link Patient} per cohort patient in
+ * SequenceFiles, which {@link #run} reads back into a {@link STARDataCohort}. run also hands the
+ * stratified counts, with the row and join counts, to {@link STARDataMetrics}.
+ *
+ * The inputs can hold several STAR releases, oldest first. Releases are cumulative, so a transplant or
+ * follow-up shows up once in every release after it was recorded. The reducer keeps only the latest
+ * release's version of each LIVER_DATA row (by TRR_ID_CODE) and of each follow-up (by TRR_ID_CODE and
+ * PX_STAT_DATE). Rejected LIVER_DATA rows and follow-ups that are not hospitalizations are mapped too,
+ * so a later release can also retract a row. The cohort is then the one the latest release gives alone,
+ * plus any rows that only older releases have. Rows without a usable PT_CODE and TRR_ID_CODE cannot be
+ * matched across releases, so the mappers count only the latest release's; the other row and join
+ * counts are taken in the reducer after the older versions are dropped.
+ */
+public class STARDataJob {
+
+	public static final String READMISSION_DAYS = "star.readmission.days", LATEST_RELEASE = "star.latest.release";
+
+	public enum Count { INGESTED_PATIENTS, COHORT_PATIENTS, MATCHED_FOLLOW_UPS, DUPLICATE_FOLLOW_UPS, UNMATCHED_FOLLOW_UPS, OTHER_FOLLOW_UPS }
+	public static final String READMITTED = "Readmitted", NOT_READMITTED = "Not readmitted";
+	public static final String ROW_OUTCOMES = "LIVER_DATA rows", PATIENT_OUTCOMES = "LIVER_DATA patients";	// counter groups
+
+	public STARDataCohort cohort;
+	public STARDataFollowUpJoin join;
+	public Counters counters;
+
+	/**
+	 * A LIVER_DATA row (with its discharge day) or follow-up (with its PX_STAT_DATE), and its key in the
+	 * input, which holds its release (see {@link STARDataInputFormat#release(long)}). Rejected LIVER_DATA
+	 * rows only carry their outcome and TRR_ID_CODE, and follow-ups that are not hospitalizations only
+	 * their TRR_ID_CODE and day.
+	 */
+	public static class Row implements Writable {
+		boolean liver;
+		long order;
+		byte outcome;			// STARDataIngest.ACCEPTED or the reason a LIVER_DATA row was rejected
+		boolean hospitalization;
+		int trrIdCode, age, day;
+		byte diab, hcv, functionalStatus;
+		double bmi;
+		boolean female, dialysis;
+		double bilirubin, inr, creatinine, sodium, albumin;
+
+		public void write(DataOutput out) throws IOException {
+			out.writeBoolean(liver);
+			out.writeLong(order);
+			out.writeInt(trrIdCode);
+			out.writeByte(outcome);
+			out.writeBoolean(hospitalization);
+			out.writeInt(day);
+			if (liver && outcome == STARDataIngest.ACCEPTED) {
+				out.writeInt(age);
+				out.writeByte(diab);
+				out.writeByte(hcv);
+				out.writeByte(functionalStatus);
+				out.writeDouble(bmi);
+				out.writeBoolean(female);
+				out.writeBoolean(dialysis);
+				out.writeDouble(bilirubin);
+				out.writeDouble(inr);
+				out.writeDouble(creatinine);
+				out.writeDouble(sodium);
+				out.writeDouble(albumin);
+			}
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			liver = in.readBoolean();
+			order = in.readLong();
+			trrIdCode = in.readInt();
+			outcome = in.readByte();
+			hospitalization = in.readBoolean();
+			day = in.readInt();
+			if (liver && outcome == STARDataIngest.ACCEPTED) {
+				age = in.readInt();
+				diab = in.readByte();
+				hcv = in.readByte();
+				functionalStatus = in.readByte();
+				bmi = in.readDouble();
+				female = in.readBoolean();
+				dialysis = in.readBoolean();
+				bilirubin = in.readDouble();
+				inr = in.readDouble();
+				creatinine = in.readDouble();
+				sodium = in.readDouble();
+				albumin = in.readDouble();
+			}
+		}
+
+		Row copy() {
+			Row row = new Row();
+			row.liver = liver; row.order = order; row.outcome = outcome; row.hospitalization = hospitalization; row.trrIdCode = trrIdCode; row.age = age; row.day = day;
+			row.diab = diab; row.hcv = hcv; row.functionalStatus = functionalStatus; row.bmi = bmi;
+			row.female = female; row.dialysis = dialysis; row.bilirubin = bilirubin; row.inr = inr; row.creatinine = creatinine; row.sodium = sodium; row.albumin = albumin;
+			return row;
+		}
+	}
+
+	/**
+	 * A cohort patient as the reducer writes it.
+	 */
+	public static class Patient implements Writable {
+		int ptCode, trrIdCode, age;
+		byte diab, hcv, functionalStatus;
+		int[] dischargeDays, followUpDays;
+		double[] bmi;
+		float[] meld;
+		STARDataMELD labs;		// one entry per meld
+		double averageBMI, averageMELD;
+		int readmissionGap;
+		boolean readmitted;
+		long rowFingerprint, followUpFingerprint;
+
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(ptCode);
+			out.writeInt(trrIdCode);
+			out.writeInt(age);
+			out.writeByte(diab);
+			out.writeByte(hcv);
+			out.writeByte(functionalStatus);
+			writeInts(out, dischargeDays);
+			writeInts(out, followUpDays);
+			out.writeInt(bmi.length);
+			for (double v : bmi) { out.writeDouble(v); }
+			out.writeInt(meld.length);
+			for (float v : meld) { out.writeFloat(v); }
+			for (int i = 0; i < meld.length; i++) {
+				out.writeBoolean(labs.female[i] == 1);
+				out.writeDouble(labs.bilirubin[i]);
+				out.writeDouble(labs.inr[i]);
+				out.writeDouble(labs.creatinine[i]);
+				out.writeDouble(labs.sodium[i]);
+				out.writeDouble(labs.albumin[i]);
+				out.writeBoolean(labs.dialysis[i] == 1);
+			}
+			out.writeDouble(averageBMI);
+			out.writeDouble(averageMELD);
+			out.writeInt(readmissionGap);
+			out.writeBoolean(readmitted);
+			out.writeLong(rowFingerprint);
+			out.writeLong(followUpFingerprint);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			ptCode = in.readInt();
+			trrIdCode = in.readInt();
+			age = in.readInt();
+			diab = in.readByte();
+			hcv = in.readByte();
+			functionalStatus = in.readByte();
+			dischargeDays = readInts(in);
+			followUpDays = readInts(in);
+			bmi = new double[in.readInt()];
+			for (int i = 0; i < bmi.length; i++) { bmi[i] = in.readDouble(); }
+			meld = new float[in.readInt()];
+			for (int i = 0; i < meld.length; i++) { meld[i] = in.readFloat(); }
+			labs = new STARDataMELD(meld.length);
+			for (int i = 0; i < meld.length; i++) { labs.add(in.readBoolean(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readBoolean()); }
+			averageBMI = in.readDouble();
+			averageMELD = in.readDouble();
+			readmissionGap = in.readInt();
+			readmitted = in.readBoolean();
+			rowFingerprint = in.readLong();
+			followUpFingerprint = in.readLong();
+		}
+
+		private static void writeInts(DataOutput out, int[] values) throws IOException {
+			out.writeInt(values.length);
+			for (int v : values) { out.writeInt(v); }
+		}
+
+		private static int[] readInts(DataInput in) throws IOException {
+			int[] values = new int[in.readInt()];
+			for (int i = 0; i < values.length; i++) { values[i] = in.readInt(); }
+			return values;
+		}
+	}
+
+	public static class LiverMapper extends Mapper<LongWritable, STARDataSource, IntWritable, Row> {
+		private final IntWritable ptCode = new IntWritable();
+		private final Row row = new Row();
+		private boolean accepted;
+		private final STARDataIngest.RowSink sink = new STARDataIngest.RowSink() {
+			public void addRow(int ptCode, int trrIdCode, int age, byte diab, byte hcv, byte functionalStatus, int dischargeDay, double bmi,
+								boolean female, double bilirubin, double inr, double creatinine, double sodium, double albumin, boolean dialysis) {
+				LiverMapper.this.ptCode.set(ptCode);
+				row.liver = true; row.trrIdCode = trrIdCode; row.age = age; row.diab = diab; row.hcv = hcv;
+				row.functionalStatus = functionalStatus; row.day = dischargeDay; row.bmi = bmi;
+				row.female = female; row.dialysis = dialysis; row.bilirubin = bilirubin; row.inr = inr; row.creatinine = creatinine; row.sodium = sodium; row.albumin = albumin;
+				accepted = true;
+			}
+		};
+
+		private Counter[] outcomes;	// of rows without a key
+		private int latestRelease;
+
+		protected void setup(Context context) {
+			latestRelease = context.getConfiguration().getInt(LATEST_RELEASE, 0);
+			outcomes = new Counter[STARDataIngest.ROW_OUTCOMES.length];
+			for (int k = 0; k < outcomes.length; k++) { outcomes[k] = context.getCounter(ROW_OUTCOMES, STARDataIngest.ROW_OUTCOMES[k]); }
+		}
+
+		protected void map(LongWritable order, STARDataSource reader, Context context) throws IOException, InterruptedException {
+			accepted = false;
+			int outcome = STARDataIngest.readRow(reader, sink);
+			if (!accepted) {
+				if (!hasKey(reader, STARDataColumns.LIVER_PT_CODE, STARDataColumns.LIVER_TRR_ID_CODE)) {
+					if (STARDataInputFormat.release(order.get()) == latestRelease) { outcomes[outcome].increment(1); }
+					return;
+				}
+				ptCode.set(reader.parseInt(STARDataColumns.LIVER_PT_CODE));
+				row.liver = true;
+				row.trrIdCode = STARDataIngest.parseTRRIDCode(reader, STARDataColumns.LIVER_TRR_ID_CODE);
+			}
+			row.outcome = (byte) outcome;
+			row.order = order.get();
+			context.write(ptCode, row);
+		}
+	}
+
+	public static class FollowUpMapper extends Mapper<LongWritable, STARDataSource, IntWritable, Row> {
+		private final IntWritable ptCode = new IntWritable();
+		private final Row row = new Row();
+		private int latestRelease;
+
+		protected void setup(Context context) {
+			latestRelease = context.getConfiguration().getInt(LATEST_RELEASE, 0);
+		}
+
+		protected void map(LongWritable order, STARDataSource reader, Context context) throws IOException, InterruptedException {
+			if (!STARDataFollowUpJoin.isValid(reader)) {
+				if (STARDataInputFormat.release(order.get()) == latestRelease) { context.getCounter(Count.OTHER_FOLLOW_UPS).increment(1); }
+				return;
+			}
+			ptCode.set(reader.parseInt(STARDataColumns.FOLLOWUP_PT_CODE));
+			row.liver = false;
+			row.order = order.get();
+			row.hospitalization = STARDataFollowUpJoin.isHospitalization(reader);
+			row.trrIdCode = STARDataIngest.parseTRRIDCode(reader, STARDataColumns.FOLLOWUP_TRR_ID_CODE);
+			row.day = reader.parseEpochDay(STARDataColumns.FOLLOWUP_PX_STAT_DATE);
+			context.write(ptCode, row);
+		}
+	}
+
+	/**
+	 * True if the row has a PT_CODE and TRR_ID_CODE to key it by, even if it is rejected.
+	 */
+	static boolean hasKey(STARDataSource reader, int ptCode, int trrIdCode) {
+		return reader.length(ptCode) > 0 && reader.charAt(ptCode, 0) >= '0' && reader.charAt(ptCode, 0) <= '9' && reader.length(trrIdCode) > 0 && reader.charAt(trrIdCode, 0) == 'A';
+	}
+
+	public static class PatientReducer extends Reducer<IntWritable, Row, IntWritable, Patient> {
+		private static final Comparator<Row> INPUT_ORDER = new Comparator<Row>() {
+			public int compare(Row a, Row b) { return Long.compare(a.order, b.order); }
+		};
+		private final STARDataCohortBuilder builder = new STARDataCohortBuilder();
+		private final ArrayList<Row> rows = new ArrayList<Row>(), followUps = new ArrayList<Row>();
+		private final HashMap<Long, Integer> latest = new HashMap<Long, Integer>();
+		private final Patient patient = new Patient();
+		private int days;
+
+		protected void setup(Context context) {
+			days = context.getConfiguration().getInt(READMISSION_DAYS, 30);
+		}
+
+		protected void reduce(IntWritable ptCode, Iterable<Row> values, Context context) throws IOException, InterruptedException {
+			rows.clear();
+			followUps.clear();
+			for (Row row : values) { (row.liver ? rows : followUps).add(row.copy()); }
+			latestRelease(rows, true);
+			latestRelease(followUps, false);
+			for (Row row : rows) { context.getCounter(ROW_OUTCOMES, STARDataIngest.ROW_OUTCOMES[row.outcome]).increment(1); }
+			int hospitalizations = 0;
+			for (Row row : followUps) {
+				if (row.hospitalization) { followUps.set(hospitalizations++, row); }
+				else { context.getCounter(Count.OTHER_FOLLOW_UPS).increment(1); }
+			}
+			followUps.subList(hospitalizations, followUps.size()).clear();
+			int accepted = 0;
+			for (Row row : rows) {
+				if (row.outcome == STARDataIngest.ACCEPTED) { rows.set(accepted++, row); }
+			}
+			rows.subList(accepted, rows.size()).clear();
+			if (rows.isEmpty()) {
+				context.getCounter(Count.UNMATCHED_FOLLOW_UPS).increment(followUps.size());
+				return;
+			}
+			Collections.sort(rows, INPUT_ORDER);
+
+			builder.clear();
+			for (Row row : rows) {
+				builder.addRow(ptCode.get(), row.trrIdCode, row.age, row.diab, row.hcv, row.functionalStatus, row.day, row.bmi,
+								row.female, row.bilirubin, row.inr, row.creatinine, row.sodium, row.albumin, row.dialysis);
+			}
+			STARDataCohort cohort = builder.build();
+			for (int k = 0; k < builder.patientOutcomes.length; k++) {
+				if (builder.patientOutcomes[k] > 0) { context.getCounter(PATIENT_OUTCOMES, STARDataCohortBuilder.PATIENT_OUTCOMES[k]).increment(builder.patientOutcomes[k]); }
+			}
+			context.getCounter(Count.INGESTED_PATIENTS).increment(1);
+			if (cohort.size == 0) {
+				context.getCounter(Count.UNMATCHED_FOLLOW_UPS).increment(followUps.size());
+				return;
+			}
+			context.getCounter(Count.COHORT_PATIENTS).increment(1);
+			context.getCounter(Count.MATCHED_FOLLOW_UPS).increment(followUps.size());
+
+			int[] followUpDays = new int[followUps.size()];
+			long followUpFingerprint = 0;
+			for (int j = 0; j < followUpDays.length; j++) {
+				followUpDays[j] = followUps.get(j).day;
+				followUpFingerprint += STARDataCohort.followUpHash(ptCode.get(), followUpDays[j]);
+			}
+			Arrays.sort(followUpDays);
+			int count = 0;
+			for (int j = 0; j < followUpDays.length; j++) {
+				if (j > 0 && followUpDays[j] == followUpDays[j - 1]) { context.getCounter(Count.DUPLICATE_FOLLOW_UPS).increment(1); }
+				else { followUpDays[count++] = followUpDays[j]; }
+			}
+			cohort.followUpDays = Arrays.copyOf(followUpDays, count);
+			cohort.followUpOffsets[1] = count;
+
+			patient.ptCode = ptCode.get();
+			patient.trrIdCode = cohort.trrIdCode[0];
+			patient.age = cohort.age[0];
+			patient.diab = cohort.diab[0];
+			patient.hcv = cohort.hcv[0];
+			patient.functionalStatus = cohort.functionalStatus[0];
+			patient.dischargeDays = cohort.dischargeDays;
+			patient.followUpDays = cohort.followUpDays;
+			patient.bmi = cohort.bmi;
+			patient.meld = cohort.meld;
+			patient.labs = cohort.labs;
+			patient.averageBMI = cohort.averageBMI[0];
+			patient.averageMELD = cohort.averageMELD[0];
+			patient.readmissionGap = cohort.readmissionGap(0);
+			patient.readmitted = patient.readmissionGap <= days;
+			patient.rowFingerprint = cohort.rowFingerprint[0];
+			patient.followUpFingerprint = followUpFingerprint;
+			count(context, patient);
+			context.write(ptCode, patient);
+		}
+
+		/**
+		 * Keeps the rows from the latest release that has each LIVER_DATA row (by TRR_ID_CODE) or each
+		 * follow-up (by TRR_ID_CODE and day). Rows of one release that share a key are all kept.
+		 */
+		private void latestRelease(ArrayList<Row> rows, boolean liver) {
+			latest.clear();
+			for (Row row : rows) {
+				Long key = key(row, liver);
+				Integer release = latest.get(key);
+				if (release == null || release < STARDataInputFormat.release(row.order)) { latest.put(key, STARDataInputFormat.release(row.order)); }
+			}
+			int kept = 0;
+			for (Row row : rows) {
+				if (latest.get(key(row, liver)) == STARDataInputFormat.release(row.order)) { rows.set(kept++, row); }
+			}
+			rows.subList(kept, rows.size()).clear();
+		}
+
+		private static Long key(Row row, boolean liver) {
+			return liver ? (long) row.trrIdCode : ((long) row.trrIdCode << 32) | (row.day & 0xFFFFFFFFL);
+		}
+
+		private static void count(Context context, Patient patient) {
+			String group = patient.readmitted ? READMITTED : NOT_READMITTED;
+			context.getCounter(group, patient.diab > STARDataCohort.DIAB_NO ? "Diabetic" : "Nondiabetic").increment(1);
+			context.getCounter(group, patient.hcv == STARDataCohort.HCV_POSITIVE ? "HCV positive" : "HCV negative").increment(1);
+			context.getCounter(group, "Functional status " + STARDataCohort.FUNCTIONAL_STATUS_CODES[patient.functionalStatus]).increment(1);
+		}
+	}
+
+	/**
+	 * Runs the job on the LocalJobRunner with up to threads map and reduce tasks at a time, writing the
+	 * patients to output (replaced if it exists), and loads the cohort back. liverData[j] and
+	 * followUpData[j] are release j, oldest first.
+	 */
+	public static STARDataJob run(File[] liverData, File[] followUpData, File output, int threads, int readmissionDays) throws Exception {
+		Configuration conf = new Configuration();
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("fs.defaultFS", "file:///");
+		conf.setInt("mapreduce.local.map.tasks.maximum", threads);
+		conf.setInt("mapreduce.local.reduce.tasks.maximum", threads);
+		conf.setInt(LATEST_RELEASE, Math.max(liverData.length, followUpData.length) - 1);
+		for (int j = 0; j < liverData.length; j++) { conf.setInt(STARDataInputFormat.RELEASE + liverData[j].getCanonicalPath(), j); }
+		for (int j = 0; j < followUpData.length; j++) { conf.setInt(STARDataInputFormat.RELEASE + followUpData[j].getCanonicalPath(), j); }
+		conf.setInt(READMISSION_DAYS, readmissionDays);
+
+		Job job = Job.getInstance(conf, "STAR cohort");
+		job.setJarByClass(STARDataJob.class);
+		for (File file : liverData) { MultipleInputs.addInputPath(job, new Path(file.getAbsolutePath()), STARDataInputFormat.Liver.class, LiverMapper.class); }
+		for (File file : followUpData) { MultipleInputs.addInputPath(job, new Path(file.getAbsolutePath()), STARDataInputFormat.FollowUp.class, FollowUpMapper.class); }
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(Row.class);
+		job.setReducerClass(PatientReducer.class);
+		job.setNumReduceTasks(threads);
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(Patient.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		Path outputPath = new Path(output.getAbsolutePath());
+		FileSystem.getLocal(conf).delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		if (!job.waitForCompletion(false)) { throw new IOException("STAR cohort job failed: " + job.getStatus().getFailureInfo()); }
+
+		STARDataJob result = new STARDataJob();
+		result.counters = job.getCounters();
+		result.cohort = readPatients(conf, outputPath);
+		result.cohort.ingestedSize = (int) result.counters.findCounter(Count.INGESTED_PATIENTS).getValue();
+		result.join = new STARDataFollowUpJoin();
+		result.join.matchedRows = (int) result.counters.findCounter(Count.MATCHED_FOLLOW_UPS).getValue();
+		result.join.duplicateRows = (int) result.counters.findCounter(Count.DUPLICATE_FOLLOW_UPS).getValue();
+		result.join.unmatchedRows = (int) result.counters.findCounter(Count.UNMATCHED_FOLLOW_UPS).getValue();
+		result.join.otherRows = (int) result.counters.findCounter(Count.OTHER_FOLLOW_UPS).getValue();
+		for (String outcome : STARDataIngest.ROW_OUTCOMES) { STARDataMetrics.count(ROW_OUTCOMES, outcome, result.counters.findCounter(ROW_OUTCOMES, outcome).getValue()); }
+		for (String outcome : STARDataCohortBuilder.PATIENT_OUTCOMES) { STARDataMetrics.count(PATIENT_OUTCOMES, outcome, result.counters.findCounter(PATIENT_OUTCOMES, outcome).getValue()); }
+		for (String group : new String[] {READMITTED, NOT_READMITTED}) {
+			for (Counter counter : result.counters.getGroup(group)) { STARDataMetrics.count(group + " within " + readmissionDays + " days", counter.getName(), counter.getValue()); }
+		}
+		result.join.count();
+		return result;
+	}
+
+	/**
+	 * Reads the patients of all reducer outputs into a cohort in PT_CODE order.
+	 */
+	private static STARDataCohort readPatients(Configuration conf, Path output) throws IOException {
+		ArrayList<Patient> patients = new ArrayList<Patient>();
+		for (FileStatus status : FileSystem.getLocal(conf).listStatus(output)) {
+			if (!status.getPath().getName().startsWith("part-")) { continue; }
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+			try {
+				IntWritable key = new IntWritable();
+				Patient patient = new Patient();
+				while (reader.next(key, patient)) {
+					patients.add(patient);
+					patient = new Patient();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		Collections.sort(patients, new Comparator<Patient>() {
+			public int compare(Patient a, Patient b) { return Integer.compare(a.ptCode, b.ptCode); }
+		});
+
+		STARDataCohort cohort = new STARDataCohort();
+		int n = cohort.size = patients.size();
+		cohort.ptCode = new int[n];
+		cohort.trrIdCode = new int[n];
+		cohort.age = new int[n];
+		cohort.diab = new byte[n];
+		cohort.hcv = new byte[n];
+		cohort.functionalStatus = new byte[n];
+		cohort.averageBMI = new double[n];
+		cohort.averageMELD = new double[n];
+		cohort.readmissionGap = new int[n];
+		cohort.readmitted = new boolean[n];
+		cohort.rowFingerprint = new long[n];
+		cohort.followUpFingerprint = new long[n];
+		cohort.dischargeOffsets = new int[n + 1];
+		cohort.bmiOffsets = new int[n + 1];
+		cohort.meldOffsets = new int[n + 1];
+		cohort.followUpOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			Patient patient = patients.get(i);
+			cohort.dischargeOffsets[i + 1] = cohort.dischargeOffsets[i] + patient.dischargeDays.length;
+			cohort.bmiOffsets[i + 1] = cohort.bmiOffsets[i] + patient.bmi.length;
+			cohort.meldOffsets[i + 1] = cohort.meldOffsets[i] + patient.meld.length;
+			cohort.followUpOffsets[i + 1] = cohort.followUpOffsets[i] + patient.followUpDays.length;
+		}
+		cohort.dischargeDays = new int[cohort.dischargeOffsets[n]];
+		cohort.bmi = new double[cohort.bmiOffsets[n]];
+		cohort.meld = new float[cohort.meldOffsets[n]];
+		cohort.labs = new STARDataMELD(cohort.meldOffsets[n]);
+		cohort.followUpDays = new int[cohort.followUpOffsets[n]];
+		for (int i = 0; i < n; i++) {
+			Patient patient = patients.get(i);
+			cohort.ptCode[i] = patient.ptCode;
+			cohort.trrIdCode[i] = patient.trrIdCode;
+			cohort.age[i] = patient.age;
+			cohort.diab[i] = patient.diab;
+			cohort.hcv[i] = patient.hcv;
+			cohort.functionalStatus[i] = patient.functionalStatus;
+			cohort.averageBMI[i] = patient.averageBMI;
+			cohort.averageMELD[i] = patient.averageMELD;
+			cohort.readmissionGap[i] = patient.readmissionGap;
+			cohort.readmitted[i] = patient.readmitted;
+			cohort.rowFingerprint[i] = patient.rowFingerprint;
+			cohort.followUpFingerprint[i] = patient.followUpFingerprint;
+			System.arraycopy(patient.dischargeDays, 0, cohort.dischargeDays, cohort.dischargeOffsets[i], patient.dischargeDays.length);
+			System.arraycopy(patient.bmi, 0, cohort.bmi, cohort.bmiOffsets[i], patient.bmi.length);
+			System.arraycopy(patient.meld, 0, cohort.meld, cohort.meldOffsets[i], patient.meld.length);
+			cohort.labs.addAll(patient.labs);
+			System.arraycopy(patient.followUpDays, 0, cohort.followUpDays, cohort.followUpOffsets[i], patient.followUpDays.length);
+		}
+		return cohort;
+	}
+}
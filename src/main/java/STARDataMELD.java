@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * The labs behind the MELD scores, one entry per LIVER_DATA row, stored column by column, and the
+ * batch formulas that turn them into scores. Keeping the labs on the cohort means it can be rescored,
+ * with MELD 3.0 or a variant such as MELD-Na, without reading the STAR files again.
+ *
+ * The formulas clamp with Math.min/Math.max and 0/1 multipliers instead of branches, so the loop body
+ * is straight-line code over primitive arrays. MELD_3_0 runs on {@link STARDataMELDVector} when the JVM
+ * has the jdk.incubator.vector module (--add-modules jdk.incubator.vector), and on MELD_3_0_SCALAR,
+ * with the same scores, otherwise.
+ */
+public class STARDataMELD {
+
+	public int size;
+	public byte[] female;		// 1 if GENDER is F
+	public byte[] dialysis;		// 1 if FINAL_DIALYSIS_PRIOR_WEEK is Y
+	public double[] bilirubin, inr, creatinine, sodium, albumin;
+
+	public STARDataMELD(int capacity) {
+		female = new byte[capacity];
+		dialysis = new byte[capacity];
+		bilirubin = new double[capacity];
+		inr = new double[capacity];
+		creatinine = new double[capacity];
+		sodium = new double[capacity];
+		albumin = new double[capacity];
+	}
+
+	public void add(boolean female, double bilirubin, double inr, double creatinine, double sodium, double albumin, boolean dialysis) {
+		if (size == this.female.length) { grow(Math.max(16, size * 2)); }
+		this.female[size] = (byte) (female ? 1 : 0);
+		this.dialysis[size] = (byte) (dialysis ? 1 : 0);
+		this.bilirubin[size] = bilirubin;
+		this.inr[size] = inr;
+		this.creatinine[size] = creatinine;
+		this.sodium[size] = sodium;
+		this.albumin[size] = albumin;
+		size++;
+	}
+
+	/**
+	 * Appends entry i of other.
+	 */
+	public void add(STARDataMELD other, int i) {
+		add(other.female[i] == 1, other.bilirubin[i], other.inr[i], other.creatinine[i], other.sodium[i], other.albumin[i], other.dialysis[i] == 1);
+	}
+
+	public void addAll(STARDataMELD other) {
+		if (size + other.size > female.length) { grow(Math.max(size + other.size, size * 2)); }
+		System.arraycopy(other.female, 0, female, size, other.size);
+		System.arraycopy(other.dialysis, 0, dialysis, size, other.size);
+		System.arraycopy(other.bilirubin, 0, bilirubin, size, other.size);
+		System.arraycopy(other.inr, 0, inr, size, other.size);
+		System.arraycopy(other.creatinine, 0, creatinine, size, other.size);
+		System.arraycopy(other.sodium, 0, sodium, size, other.size);
+		System.arraycopy(other.albumin, 0, albumin, size, other.size);
+		size += other.size;
+	}
+
+	private void grow(int capacity) {
+		female = Arrays.copyOf(female, capacity);
+		dialysis = Arrays.copyOf(dialysis, capacity);
+		bilirubin = Arrays.copyOf(bilirubin, capacity);
+		inr = Arrays.copyOf(inr, capacity);
+		creatinine = Arrays.copyOf(creatinine, capacity);
+		sodium = Arrays.copyOf(sodium, capacity);
+		albumin = Arrays.copyOf(albumin, capacity);
+	}
+
+	/**
+	 * Scores entries [from, to) of the labs into scores[from, to).
+	 */
+	public interface Formula {
+		void score(STARDataMELD labs, int from, int to, float[] scores);
+	}
+
+	/**
+	 * MELD 3.0 = 1.33*(Female) + 4.56*ln(Serum bilirubin) + 0.82*(137 - Sodium) - 0.24*(137 - Sodium)*ln(Serum bilirubin)
+	 * + 9.09*ln(INR) + 11.14*ln(Serum creatinine) + 1.85*(3.5 - Serum albumin) - 1.83*(3.5 - Serum albumin)*ln(Serum creatinine) + 6,
+	 * with bilirubin, INR and creatinine at least 1, sodium in [125, 137], albumin in [1.5, 3.5], creatinine
+	 * at most 3 (3 on dialysis), capped at 40 and rounded.
+	 */
+	public static final Formula MELD_3_0_SCALAR = new Formula() {
+		public void score(STARDataMELD labs, int from, int to, float[] scores) {
+			for (int i = from; i < to; i++) {
+				double bilirubin = Math.max(labs.bilirubin[i], 1), inr = Math.max(labs.inr[i], 1);
+				double creatinine = Math.max(Math.min(Math.max(labs.creatinine[i], 1), 3), labs.dialysis[i] * 3.0);
+				double sodium = Math.min(Math.max(labs.sodium[i], 125), 137), albumin = Math.min(Math.max(labs.albumin[i], 1.5), 3.5);
+				double logBilirubin = Math.log(bilirubin), logCreatinine = Math.log(creatinine);
+				double meld = labs.female[i] * 1.33 + (
+							4.56*logBilirubin
+							+ 0.82*(137 - sodium)
+							- 0.24*(137 - sodium)*logBilirubin
+							+ 9.09*Math.log(inr)
+							+ 11.14*logCreatinine
+							+ 1.85*(3.5 - albumin)
+							- 1.83*(3.5 - albumin)*logCreatinine
+							+ 6);
+				scores[i] = Math.round(Math.min(meld, 40));
+			}
+		}
+	};
+
+	public static final Formula MELD_3_0 = vectorized(MELD_3_0_SCALAR);
+
+	/**
+	 * MELD-Na (OPTN 2016): MELD(i) = 0.957*ln(Cr) + 0.378*ln(bilirubin) + 1.120*ln(INR) + 0.643, rounded to
+	 * the tenth and multiplied by 10, then, above 11, MELD(i) + 1.32*(137 - Na) - 0.033*MELD(i)*(137 - Na).
+	 * Bilirubin, INR and creatinine at least 1, creatinine at most 4 (4 on dialysis), sodium in [125, 137],
+	 * capped at 40 and rounded.
+	 */
+	public static final Formula MELD_NA = new Formula() {
+		public void score(STARDataMELD labs, int from, int to, float[] scores) {
+			for (int i = from; i < to; i++) {
+				double bilirubin = Math.max(labs.bilirubin[i], 1), inr = Math.max(labs.inr[i], 1);
+				double creatinine = Math.max(Math.min(Math.max(labs.creatinine[i], 1), 4), labs.dialysis[i] * 4.0);
+				double sodium = Math.min(Math.max(labs.sodium[i], 125), 137);
+				double meldI = Math.round(10 * (0.957*Math.log(creatinine) + 0.378*Math.log(bilirubin) + 1.120*Math.log(inr) + 0.643));
+				double hyponatremia = meldI > 11 ? 1 : 0;
+				double meld = meldI + hyponatremia * (1.32*(137 - sodium) - 0.033*meldI*(137 - sodium));
+				scores[i] = Math.round(Math.min(meld, 40));
+			}
+		}
+	};
+
+	/**
+	 * The jdk.incubator.vector version of a scalar formula, or the scalar formula itself if the module is
+	 * not in the boot layer.
+	 */
+	private static Formula vectorized(Formula scalar) {
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) { return scalar; }
+		try {
+			return (Formula) Class.forName("STARDataMELDVector").getConstructor(Formula.class).newInstance(scalar);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return scalar;
+		}
+	}
+
+	/**
+	 * Recomputes the cohort's MELD scores and per-patient averages from its labs.
+	 */
+	public static void rescore(STARDataCohort cohort, Formula formula) {
+		formula.score(cohort.labs, 0, cohort.labs.size, cohort.meld);
+		for (int i = 0; i < cohort.size; i++) {
+			double meldSum = 0;
+			for (int j = cohort.meldOffsets[i]; j < cohort.meldOffsets[i + 1]; j++) { meldSum += cohort.meld[j]; }
+			cohort.averageMELD[i] = meldSum / (cohort.meldOffsets[i + 1] - cohort.meldOffsets[i]);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * MELD 3.0 on jdk.incubator.vector, one preferred-width vector of labs at a time. Only loaded by
+ * {@link STARDataMELD} when the JVM runs with --add-modules jdk.incubator.vector.
+ *
+ * The clamps and the formula are the scalar ones, operation for operation, but the vector logarithm may
+ * differ from Math.log in the last bit, which can move a score that lies on a rounding boundary. So
+ * lanes within ROUNDING_MARGIN of a half, or NaN, are rescored by the scalar formula, as is the tail of
+ * the range, and the scores are bit-identical to the scalar ones.
+ */
+public class STARDataMELDVector implements STARDataMELD.Formula {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, DOUBLES.length() * 8)));
+	private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.length() * 32));
+	private static final double ROUNDING_MARGIN = 1e-9;
+
+	private final STARDataMELD.Formula scalar;
+
+	public STARDataMELDVector(STARDataMELD.Formula scalar) {
+		this.scalar = scalar;
+	}
+
+	public void score(STARDataMELD labs, int from, int to, float[] scores) {
+		int lanes = DOUBLES.length(), i = from;
+		DoubleVector zero = DoubleVector.zero(DOUBLES);
+		for (; i <= to - Math.max(lanes, BYTES.length()); i += lanes) {
+			VectorMask<Double> female = flags(labs.female, i), dialysis = flags(labs.dialysis, i);
+			DoubleVector bilirubin = DoubleVector.fromArray(DOUBLES, labs.bilirubin, i).max(1), inr = DoubleVector.fromArray(DOUBLES, labs.inr, i).max(1);
+			DoubleVector creatinine = DoubleVector.fromArray(DOUBLES, labs.creatinine, i).max(1).min(3).max(zero.blend(3, dialysis));
+			DoubleVector sodium = DoubleVector.fromArray(DOUBLES, labs.sodium, i).max(125).min(137), albumin = DoubleVector.fromArray(DOUBLES, labs.albumin, i).max(1.5).min(3.5);
+			DoubleVector logBilirubin = bilirubin.lanewise(VectorOperators.LOG), logCreatinine = creatinine.lanewise(VectorOperators.LOG);
+			DoubleVector hyponatremia = sodium.neg().add(137), hypoalbuminemia = albumin.neg().add(3.5);
+			DoubleVector meld = zero.blend(1.33, female).add(
+						logBilirubin.mul(4.56)
+						.add(hyponatremia.mul(0.82))
+						.sub(hyponatremia.mul(0.24).mul(logBilirubin))
+						.add(inr.lanewise(VectorOperators.LOG).mul(9.09))
+						.add(logCreatinine.mul(11.14))
+						.add(hypoalbuminemia.mul(1.85))
+						.sub(hypoalbuminemia.mul(1.83).mul(logCreatinine))
+						.add(6));
+			// MELD is at least 6, so truncating meld + 0.5 rounds like Math.round
+			DoubleVector half = meld.min(40).add(0.5);
+			DoubleVector rounded = (DoubleVector) half.convert(VectorOperators.D2L, 0).convert(VectorOperators.L2D, 0);
+			DoubleVector fraction = half.sub(rounded);
+			((FloatVector) rounded.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(scores, i);
+			VectorMask<Double> exact = fraction.compare(VectorOperators.GE, ROUNDING_MARGIN).and(fraction.compare(VectorOperators.LE, 1 - ROUNDING_MARGIN));
+			if (!exact.allTrue()) {
+				for (int lane = 0; lane < lanes; lane++) {
+					if (!exact.laneIsSet(lane)) { scalar.score(labs, i + lane, i + lane + 1, scores); }
+				}
+			}
+		}
+		scalar.score(labs, i, to, scores);
+	}
+
+	/**
+	 * Lanes set where the 0/1 flags from index i are 1.
+	 */
+	private static VectorMask<Double> flags(byte[] flags, int i) {
+		return ((DoubleVector) ByteVector.fromArray(BYTES, flags, i).convertShape(VectorOperators.B2D, DOUBLES, 0)).compare(VectorOperators.NE, 0);
+	}
+}
@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Run-wide instrumentation of the pipeline stages. Each stage records its wall time, the rows it
+ * processed and the bytes it allocated. Allocation is counted on the calling thread plus the tasks run
+ * through STARDataIngest.runChunks, so multi-threaded stages are covered. Counters are kept in named
+ * groups, such as the rows and patients each ingest check rejected.
+ *
+ * Stages and counters are also committed as JFR events (STARData.Stage, STARData.Counter), which show up
+ * in a recording started with -XX:StartFlightRecording. {@link #write(File)} dumps everything as JSON
+ * at the end of a run.
+ */
+public class STARDataMetrics {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final AtomicLong workerAllocatedBytes = new AtomicLong();
+	private static final ArrayList<Stage> stages = new ArrayList<Stage>();
+	private static final LinkedHashMap<String, LinkedHashMap<String, Long>> counters = new LinkedHashMap<String, LinkedHashMap<String, Long>>();
+
+	@Name("STARData.Stage")
+	@Label("STAR Pipeline Stage")
+	@Category("STAR Data")
+	static class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Rows")
+		long rows;
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	@Name("STARData.Counter")
+	@Label("STAR Pipeline Counter")
+	@Category("STAR Data")
+	static class CounterEvent extends Event {
+		@Label("Group")
+		String group;
+		@Label("Name")
+		String name;
+		@Label("Count")
+		long count;
+	}
+
+	/**
+	 * One timed stage, from {@link STARDataMetrics#start(String)} to {@link #stop(long)}.
+	 */
+	public static class Stage {
+		public final String name;
+		public long nanos, rows, allocatedBytes;
+		private final long startNanos, startAllocatedBytes;
+		private final StageEvent event = new StageEvent();
+
+		private Stage(String name) {
+			this.name = name;
+			event.begin();
+			startAllocatedBytes = allocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Ends the stage, which processed the given number of rows (or patients).
+		 */
+		public void stop(long rows) {
+			nanos = System.nanoTime() - startNanos;
+			allocatedBytes = allocatedBytes() - startAllocatedBytes;
+			this.rows = rows;
+			event.end();
+			if (event.shouldCommit()) {
+				event.stage = name;
+				event.rows = rows;
+				event.allocatedBytes = allocatedBytes;
+				event.commit();
+			}
+			synchronized (stages) { stages.add(this); }
+		}
+
+		public double seconds() {
+			return nanos / 1e9;
+		}
+
+		public double rowsPerSecond() {
+			return nanos == 0 ? 0 : rows / seconds();
+		}
+	}
+
+	public static Stage start(String name) {
+		return new Stage(name);
+	}
+
+	/**
+	 * Adds n to a counter; counters are listed in the order they were first counted.
+	 */
+	public static void count(String group, String name, long n) {
+		synchronized (counters) {
+			LinkedHashMap<String, Long> values = counters.get(group);
+			if (values == null) { counters.put(group, values = new LinkedHashMap<String, Long>()); }
+			Long value = values.get(name);
+			values.put(name, value == null ? n : value + n);
+		}
+		CounterEvent event = new CounterEvent();
+		if (event.shouldCommit()) {
+			event.group = group;
+			event.name = name;
+			event.count = n;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Counts outcomes[k] times names[k] in the group, skipping names that are null.
+	 */
+	public static void count(String group, String[] names, long[] outcomes) {
+		for (int k = 0; k < names.length; k++) {
+			if (names[k] != null) { count(group, names[k], outcomes[k]); }
+		}
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread and the finished runChunks tasks, or 0 if the JVM
+	 * does not measure allocation per thread.
+	 */
+	public static long allocatedBytes() {
+		return threadAllocatedBytes() + workerAllocatedBytes.get();
+	}
+
+	static long threadAllocatedBytes() {
+		if (!(THREADS instanceof com.sun.management.ThreadMXBean)) { return 0; }
+		long bytes = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return Math.max(bytes, 0);
+	}
+
+	static void addWorkerAllocation(long bytes) {
+		workerAllocatedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * One line per stage and counter, for the console.
+	 */
+	public static String summary() {
+		StringBuilder summary = new StringBuilder();
+		synchronized (stages) {
+			for (Stage stage : stages) {
+				summary.append(String.format(Locale.ROOT, "%-28s %9.3f s %12d rows %14.0f rows/s %10.1f MB allocated%n",
+												stage.name, stage.seconds(), stage.rows, stage.rowsPerSecond(), stage.allocatedBytes / 1048576.0));
+			}
+		}
+		synchronized (counters) {
+			for (Map.Entry<String, LinkedHashMap<String, Long>> group : counters.entrySet()) {
+				for (Map.Entry<String, Long> counter : group.getValue().entrySet()) {
+					summary.append(group.getKey()).append(": ").append(counter.getKey()).append(' ').append(counter.getValue()).append(System.lineSeparator());
+				}
+			}
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Writes the stages and counters as a JSON object: {"stages": [{"name", "seconds", "rows",
+	 * "rowsPerSecond", "allocatedBytes"}, ...], "counters": {group: {name: count}}}.
+	 */
+	public static void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name());
+		try {
+			out.println("{");
+			out.println("  \"stages\": [");
+			synchronized (stages) {
+				for (int i = 0; i < stages.size(); i++) {
+					Stage stage = stages.get(i);
+					out.print(String.format(Locale.ROOT, "    {\"name\": %s, \"seconds\": %.6f, \"rows\": %d, \"rowsPerSecond\": %.1f, \"allocatedBytes\": %d}",
+												quote(stage.name), stage.seconds(), stage.rows, stage.rowsPerSecond(), stage.allocatedBytes));
+					out.println(i < stages.size() - 1 ? "," : "");
+				}
+			}
+			out.println("  ],");
+			out.println("  \"counters\": {");
+			synchronized (counters) {
+				int g = 0;
+				for (Map.Entry<String, LinkedHashMap<String, Long>> group : counters.entrySet()) {
+					out.print("    " + quote(group.getKey()) + ": {");
+					int c = 0;
+					for (Map.Entry<String, Long> counter : group.getValue().entrySet()) {
+						out.print((c++ > 0 ? ", " : "") + quote(counter.getKey()) + ": " + counter.getValue());
+					}
+					out.println(++g < counters.size() ? "}," : "}");
+				}
+			}
+			out.println("  }");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A JSON string literal.
+	 */
+	static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') { quoted.append('\\').append(c); }
+			else if (c < 0x20) { quoted.append(String.format("\\u%04x", (int) c)); }
+			else { quoted.append(c); }
+		}
+		return quoted.append('"').toString();
+	}
+}
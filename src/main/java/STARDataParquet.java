@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.filter2.predicate.FilterApi;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+import org.apache.parquet.filter2.predicate.Operators.BinaryColumn;
+import org.apache.parquet.filter2.predicate.Operators.IntColumn;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.util.HadoopOutputFile;
+import org.apache.parquet.io.DelegatingSeekableInputStream;
+import org.apache.parquet.io.InputFile;
+import org.apache.parquet.io.SeekableInputStream;
+import org.apache.parquet.io.api.Binary;
+
+/**
+ * One-time conversion of the STAR CSV files to Parquet, and the schemas and filters used to read them
+ * back. Every column keeps its name from the "VariableIDs" file. The columns the analysis reads are
+ * typed (PT_CODE and age as int, dates as Avro dates, measurements and codes as double); the others are
+ * stored as strings. Empty or malformed values become nulls.
+ *
+ * The reads push the ingest filters (valid PT_CODE, TRR_ID_CODE starting with 'A', age 18-100, a
+ * discharge or follow-up date, HOSP = "Y") down to Parquet, so row groups whose statistics rule them out
+ * are skipped and rejected records are never assembled.
+ */
+public class STARDataParquet {
+
+	private static final int TYPE_STRING = 0, TYPE_INT = 1, TYPE_DOUBLE = 2, TYPE_DATE = 3;
+	private static final long ROW_GROUP_SIZE = 16 << 20;
+
+	/**
+	 * How the columns of one STAR file are typed, by column position.
+	 */
+	static class Layout {
+		final String record;
+		final int[] intColumns, doubleColumns, dateColumns;
+
+		Layout(String record, int[] intColumns, int[] doubleColumns, int[] dateColumns) {
+			this.record = record;
+			this.intColumns = intColumns;
+			this.doubleColumns = doubleColumns;
+			this.dateColumns = dateColumns;
+		}
+	}
+
+	static final Layout LIVER = new Layout("LIVER_DATA", new int[] {43, 345}, new int[] {45, 22, 119, 112, 106, 109, 113, 93}, new int[] {324});
+	static final Layout FOLLOWUP = new Layout("LIVER_FOLLOWUP_DATA", new int[] {51}, new int[0], new int[] {54});
+
+	/**
+	 * A Parquet file on local disk, read through a FileChannel rather than a Hadoop FileSystem.
+	 */
+	static class LocalInputFile implements InputFile {
+		private final File file;
+
+		LocalInputFile(File file) {
+			this.file = file;
+		}
+
+		public long getLength() {
+			return file.length();
+		}
+
+		public SeekableInputStream newStream() throws IOException {
+			final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			return new DelegatingSeekableInputStream(Channels.newInputStream(channel)) {
+				public long getPos() throws IOException { return channel.position(); }
+				public void seek(long position) throws IOException { channel.position(position); }
+			};
+		}
+	}
+
+	public static void convertLiver(File csv, File variableIds, File parquet) throws IOException {
+		convert(csv, variableIds, parquet, LIVER);
+	}
+
+	public static void convertFollowUp(File csv, File variableIds, File parquet) throws IOException {
+		convert(csv, variableIds, parquet, FOLLOWUP);
+	}
+
+	/**
+	 * Writes every column of the CSV except the pandas index.
+	 */
+	private static void convert(File csv, File variableIds, File parquet, Layout layout) throws IOException {
+		int[] columns = new int[STARDataColumns.columnCount(variableIds) - 1];
+		for (int i = 0; i < columns.length; i++) { columns[i] = i + 1; }
+		Schema schema = schema(layout, STARDataColumns.variableNames(variableIds, columns), columns);
+
+		Configuration conf = new Configuration();
+		FileSystem.getLocal(conf).setWriteChecksum(false);
+		STARDataReader reader = new STARDataReader(csv, columns);
+		ParquetWriter<GenericRecord> writer = AvroParquetWriter.<GenericRecord>builder(HadoopOutputFile.fromPath(new Path(parquet.getAbsolutePath()), conf))
+				.withSchema(schema)
+				.withConf(conf)
+				.withCompressionCodec(CompressionCodecName.SNAPPY)
+				.withRowGroupSize(ROW_GROUP_SIZE)
+				.withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+				.build();
+		try {
+			reader.next();
+			while (reader.next()) {
+				GenericRecord record = new GenericData.Record(schema);
+				for (int i = 0; i < columns.length; i++) { record.put(i, value(reader, i, typeOf(layout, columns[i]))); }
+				writer.write(record);
+			}
+		} finally {
+			writer.close();
+			reader.close();
+		}
+	}
+
+	private static Object value(STARDataReader reader, int field, int type) {
+		if (reader.isEmpty(field)) { return null; }
+		switch (type) {
+			case TYPE_INT: {
+				char first = reader.charAt(field, 0);
+				if (first < '0' || first > '9') { return null; }
+				try { return reader.parseInt(field); }
+				catch (NumberFormatException e) { return null; }
+			}
+			case TYPE_DOUBLE: {
+				try { return reader.parseDouble(field); }
+				catch (NumberFormatException e) { return null; }
+			}
+			case TYPE_DATE: {
+				boolean date = reader.length(field) >= 10 && reader.charAt(field, 4) == '-' && reader.charAt(field, 7) == '-';
+				return date ? (Object) reader.parseEpochDay(field) : null;
+			}
+			default: return reader.getString(field);
+		}
+	}
+
+	private static int typeOf(Layout layout, int column) {
+		if (contains(layout.intColumns, column)) { return TYPE_INT; }
+		if (contains(layout.doubleColumns, column)) { return TYPE_DOUBLE; }
+		if (contains(layout.dateColumns, column)) { return TYPE_DATE; }
+		return TYPE_STRING;
+	}
+
+	/**
+	 * Schema of the given columns in the given order, all nullable. Used both to write the file and as
+	 * the read projection.
+	 */
+	static Schema schema(Layout layout, String[] names, int[] columns) {
+		SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record(layout.record).fields();
+		for (int i = 0; i < columns.length; i++) {
+			Schema type;
+			switch (typeOf(layout, columns[i])) {
+				case TYPE_INT: type = Schema.create(Schema.Type.INT); break;
+				case TYPE_DOUBLE: type = Schema.create(Schema.Type.DOUBLE); break;
+				case TYPE_DATE: type = LogicalTypes.date().addToSchema(Schema.create(Schema.Type.INT)); break;
+				default: type = Schema.create(Schema.Type.STRING);
+			}
+			fields = fields.name(names[i]).type().unionOf().nullType().and().type(type).endUnion().nullDefault();
+		}
+		return fields.endRecord();
+	}
+
+	/**
+	 * Rows of LIVER_DATA that the ingest can accept: valid PT_CODE, TRR_ID_CODE starting with 'A', age
+	 * 18-100 and a discharge date.
+	 */
+	static FilterPredicate liverFilter(String[] names) {
+		IntColumn age = FilterApi.intColumn(names[STARDataColumns.LIVER_AGE]);
+		return FilterApi.and(FilterApi.and(FilterApi.gtEq(age, 18), FilterApi.ltEq(age, 100)),
+				FilterApi.and(transplantFilter(names[STARDataColumns.LIVER_PT_CODE], names[STARDataColumns.LIVER_TRR_ID_CODE]),
+						FilterApi.notEq(FilterApi.intColumn(names[STARDataColumns.LIVER_DISCHARGE_DATE]), null)));
+	}
+
+	/**
+	 * Follow-up rows that the join can use: valid PT_CODE, TRR_ID_CODE starting with 'A', HOSP = "Y" and a
+	 * PX_STAT_DATE.
+	 */
+	static FilterPredicate followUpFilter(String[] names) {
+		return FilterApi.and(transplantFilter(names[STARDataColumns.FOLLOWUP_PT_CODE], names[STARDataColumns.FOLLOWUP_TRR_ID_CODE]),
+				FilterApi.and(FilterApi.eq(FilterApi.binaryColumn(names[STARDataColumns.FOLLOWUP_HOSP]), Binary.fromString("Y")),
+						FilterApi.notEq(FilterApi.intColumn(names[STARDataColumns.FOLLOWUP_PX_STAT_DATE]), null)));
+	}
+
+	/**
+	 * PT_CODE present and TRR_ID_CODE in ["A", "B"), i.e. starting with 'A', which row group statistics can
+	 * rule out.
+	 */
+	private static FilterPredicate transplantFilter(String ptCode, String trrIdCode) {
+		BinaryColumn trr = FilterApi.binaryColumn(trrIdCode);
+		return FilterApi.and(FilterApi.notEq(FilterApi.intColumn(ptCode), null),
+				FilterApi.and(FilterApi.gtEq(trr, Binary.fromString("A")), FilterApi.lt(trr, Binary.fromString("B"))));
+	}
+
+	/**
+	 * Splits the file into at most parts byte ranges on row group boundaries, for
+	 * ParquetReader.Builder.withFileRange, which reads the row groups whose midpoint falls in the range.
+	 */
+	public static long[] split(File parquet, int parts) throws IOException {
+		ParquetFileReader reader = ParquetFileReader.open(new LocalInputFile(parquet));
+		List<BlockMetaData> blocks;
+		try { blocks = reader.getFooter().getBlocks(); }
+		finally { reader.close(); }
+		parts = Math.max(1, Math.min(parts, blocks.size()));
+		long[] offsets = new long[parts + 1];
+		for (int i = 1; i < parts; i++) { offsets[i] = blocks.get((int) ((long) i * blocks.size() / parts)).getStartingPos(); }
+		offsets[parts] = parquet.length();
+		return offsets;
+	}
+
+	private static boolean contains(int[] values, int value) {
+		for (int v : values) {
+			if (v == value) { return true; }
+		}
+		return false;
+	}
+}
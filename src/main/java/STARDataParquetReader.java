@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.avro.AvroReadSupport;
+import org.apache.parquet.filter2.compat.FilterCompat;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+import org.apache.parquet.hadoop.ParquetReader;
+
+/**
+ * Reads the projected columns of a Parquet file written by {@link STARDataParquet}, keeping only the
+ * records that pass a filter. Like {@link STARDataDTAReader}, numbers are presented as pandas float64 text
+ * ("1234.0"), dates as yyyy-MM-dd and nulls as empty fields, but are parsed straight from the typed value.
+ */
+public class STARDataParquetReader implements STARDataSource {
+
+	private final ParquetReader<GenericRecord> reader;
+	private final boolean[] date, rendered;
+	private final char[][] text;
+	private final int[] textLength;
+	private GenericRecord record;
+
+	/**
+	 * Reads the row groups of [start, end) (see {@link STARDataParquet#split(File, int)}); the projected
+	 * columns are then addressed by their position in the schema.
+	 */
+	public STARDataParquetReader(File parquet, Schema projection, FilterPredicate filter, long start, long end) throws IOException {
+		Configuration conf = new Configuration();
+		AvroReadSupport.setRequestedProjection(conf, projection);
+		AvroReadSupport.setAvroReadSchema(conf, projection);
+		reader = AvroParquetReader.<GenericRecord>builder(new STARDataParquet.LocalInputFile(parquet))
+				.withConf(conf)
+				.withFilter(FilterCompat.get(filter))
+				.withFileRange(start, end)
+				.build();
+		int fields = projection.getFields().size();
+		date = new boolean[fields];
+		rendered = new boolean[fields];
+		text = new char[fields][16];
+		textLength = new int[fields];
+		for (int i = 0; i < fields; i++) {
+			for (Schema type : projection.getFields().get(i).schema().getTypes()) {
+				date[i] |= type.getLogicalType() instanceof LogicalTypes.Date;
+			}
+		}
+	}
+
+	public boolean next() throws IOException {
+		record = reader.read();
+		for (int f = 0; f < rendered.length; f++) { rendered[f] = false; }
+		return record != null;
+	}
+
+	public int length(int field) {
+		render(field);
+		return textLength[field];
+	}
+
+	public boolean isEmpty(int field) {
+		return length(field) == 0;
+	}
+
+	public char charAt(int field, int index) {
+		render(field);
+		if (index >= textLength[field]) { throw new StringIndexOutOfBoundsException(index); }
+		return text[field][index];
+	}
+
+	public boolean contains(int field, char c) {
+		render(field);
+		for (int i = 0; i < textLength[field]; i++) {
+			if (text[field][i] == c) { return true; }
+		}
+		return false;
+	}
+
+	public boolean equals(int field, String s) {
+		render(field);
+		if (textLength[field] != s.length()) { return false; }
+		for (int i = 0; i < s.length(); i++) {
+			if (text[field][i] != s.charAt(i)) { return false; }
+		}
+		return true;
+	}
+
+	public int parseInt(int field) {
+		Object value = record.get(field);
+		if (value instanceof Integer) { return (Integer) value; }
+		if (value instanceof Double) { return (int) (double) (Double) value; }
+		String s = getString(field);
+		int point = s.indexOf('.');
+		return Integer.parseInt(point < 0 ? s : s.substring(0, point));
+	}
+
+	public double parseDouble(int field) {
+		Object value = record.get(field);
+		if (value instanceof Number) { return ((Number) value).doubleValue(); }
+		return Double.parseDouble(getString(field));
+	}
+
+	public int parseEpochDay(int field) {
+		Object value = record.get(field);
+		if (date[field] && value != null) { return (Integer) value; }
+		String s = getString(field);
+		if (s.length() < 10 || s.charAt(4) != '-' || s.charAt(7) != '-') { throw new DateTimeException("Text '" + s + "' could not be parsed"); }
+		return (int) LocalDate.of(Integer.parseInt(s.substring(0, 4)), Integer.parseInt(s.substring(5, 7)), Integer.parseInt(s.substring(8, 10))).toEpochDay();
+	}
+
+	public String getString(int field) {
+		render(field);
+		return new String(text[field], 0, textLength[field]);
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private void render(int field) {
+		if (rendered[field]) { return; }
+		rendered[field] = true;
+		Object value = record.get(field);
+		if (value == null) { textLength[field] = 0; }
+		else if (value instanceof Utf8) {
+			Utf8 utf8 = (Utf8) value;
+			byte[] bytes = utf8.getBytes();
+			boolean ascii = true;
+			for (int i = 0; i < utf8.getByteLength(); i++) { ascii &= bytes[i] >= 0; }
+			if (ascii) {
+				ensureText(field, utf8.getByteLength());
+				for (int i = 0; i < utf8.getByteLength(); i++) { text[field][i] = (char) bytes[i]; }
+				textLength[field] = utf8.getByteLength();
+			}
+			else { setText(field, utf8.toString()); }
+		}
+		else if (date[field]) { setText(field, LocalDate.ofEpochDay((Integer) value).toString()); }
+		else if (value instanceof Integer) { setText(field, value + ".0"); }
+		else if (value instanceof Double) {
+			double v = (Double) value;
+			setText(field, v == Math.rint(v) && Math.abs(v) < 1e16 ? (long) v + ".0" : Double.toString(v));
+		}
+		else { setText(field, value.toString()); }
+	}
+
+	private void setText(int field, String s) {
+		ensureText(field, s.length());
+		s.getChars(0, s.length(), text[field], 0);
+		textLength[field] = s.length();
+	}
+
+	private void ensureText(int field, int length) {
+		if (text[field].length < length) { text[field] = new char[Math.max(length, text[field].length * 2)]; }
+	}
+}
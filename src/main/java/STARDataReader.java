@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped reader for the comma separated STAR exports that only keeps the projected columns.
+ * Each call to {@link #next()} scans one line of the mapped bytes once and records the offsets of the
+ * requested columns, so fields are checked and parsed in place and a String is only built when asked
+ * for. Fields are split exactly like line.split(",") in the Scanner loops (no quote handling), and are
+ * only valid until the next call to {@link #next()}.
+ */
+public class STARDataReader implements STARDataSource {
+
+	private static final long WINDOW_SIZE = 1L << 28;
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+													1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize, end;
+	private final int[] slotOfColumn;
+	private final int[] fieldStart, fieldEnd;
+	private MappedByteBuffer window;
+	private long windowStart, windowEnd, position;
+
+	public STARDataReader(File csv, int[] columns) throws IOException {
+		this(csv, columns, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads only the lines starting in [start, end). start has to be the first byte of a line, as
+	 * returned by {@link #split(File, int)}.
+	 */
+	public STARDataReader(File csv, int[] columns, long start, long end) throws IOException {
+		int maxColumn = 0;
+		for (int i = 0; i < columns.length; i++) { maxColumn = Math.max(maxColumn, columns[i]); }
+		slotOfColumn = new int[maxColumn + 1];
+		Arrays.fill(slotOfColumn, -1);
+		for (int i = 0; i < columns.length; i++) { slotOfColumn[columns[i]] = i; }
+		fieldStart = new int[columns.length];
+		fieldEnd = new int[columns.length];
+
+		file = new RandomAccessFile(csv, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+		this.end = Math.min(end, fileSize);
+		map(Math.min(start, fileSize));
+	}
+
+	/**
+	 * Splits a file into byte ranges of roughly equal size whose boundaries fall on line starts.
+	 * Returns parts + 1 offsets; range i is [offsets[i], offsets[i + 1]).
+	 */
+	public static long[] split(File csv, int parts) throws IOException {
+		long[] offsets = new long[parts + 1];
+		RandomAccessFile file = new RandomAccessFile(csv, "r");
+		try {
+			long size = file.length();
+			byte[] buffer = new byte[8192];
+			for (int i = 1; i < parts; i++) {
+				long offset = Math.max(offsets[i - 1], size * i / parts);
+				boolean aligned = offset == 0 || offset >= size;
+				if (!aligned) {
+					file.seek(offset - 1);
+					read:
+					while (offset < size) {
+						int n = file.read(buffer);
+						if (n <= 0) { break; }
+						for (int j = 0; j < n; j++) {
+							if (buffer[j] == '\n') { offset += j; break read; }
+						}
+						offset += n;
+					}
+				}
+				offsets[i] = Math.min(offset, size);
+			}
+			offsets[parts] = size;
+		} finally {
+			file.close();
+		}
+		return offsets;
+	}
+
+	public boolean next() throws IOException {
+		if (position >= end) { return false; }
+		scan:
+		while (true) {
+			Arrays.fill(fieldStart, 0);
+			Arrays.fill(fieldEnd, 0);
+			int p = (int) (position - windowStart), limit = (int) (windowEnd - windowStart), begin = p, column = 0;
+			while (true) {
+				if (p == limit) {
+					if (windowEnd == fileSize) {
+						record(column, begin, p);
+						position = fileSize;
+						return true;
+					}
+					if (position == windowStart) { throw new IOException("Line at byte " + position + " is longer than the mapping window"); }
+					map(position);
+					continue scan;
+				}
+				byte b = window.get(p);
+				if (b == ',') {
+					record(column++, begin, p);
+					begin = p + 1;
+				}
+				else if (b == '\n') {
+					record(column, begin, p > begin && window.get(p - 1) == '\r' ? p - 1 : p);
+					position = windowStart + p + 1;
+					return true;
+				}
+				p++;
+			}
+		}
+	}
+
+	/**
+	 * Byte offset of the line the next call to {@link #next()} reads.
+	 */
+	public long position() {
+		return position;
+	}
+
+	public int length(int field) {
+		return fieldEnd[field] - fieldStart[field];
+	}
+
+	public boolean isEmpty(int field) {
+		return fieldEnd[field] == fieldStart[field];
+	}
+
+	public char charAt(int field, int index) {
+		return (char) (window.get(fieldStart[field] + index) & 0xFF);
+	}
+
+	public boolean contains(int field, char c) {
+		for (int p = fieldStart[field]; p < fieldEnd[field]; p++) {
+			if (window.get(p) == c) { return true; }
+		}
+		return false;
+	}
+
+	public boolean equals(int field, String value) {
+		if (length(field) != value.length()) { return false; }
+		for (int i = 0; i < value.length(); i++) {
+			if (charAt(field, i) != value.charAt(i)) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Integer part of a pandas-formatted number such as "1234.0", read up to the first '.'.
+	 */
+	public int parseInt(int field) {
+		int p = fieldStart[field], end = fieldEnd[field], value = 0;
+		boolean negative = p < end && window.get(p) == '-';
+		if (negative) { p++; }
+		if (p == end || window.get(p) == '.') { throw new NumberFormatException("For input string: \"" + getString(field) + "\""); }
+		for (; p < end; p++) {
+			byte b = window.get(p);
+			if (b == '.') { break; }
+			if (b < '0' || b > '9') { throw new NumberFormatException("For input string: \"" + getString(field) + "\""); }
+			value = value * 10 + (b - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Same result as Double.parseDouble. Plain decimals with at most 15-16 significant digits are
+	 * converted directly (an exact mantissa divided by an exact power of ten rounds correctly), anything
+	 * else falls back to Double.parseDouble.
+	 */
+	public double parseDouble(int field) {
+		int p = fieldStart[field], end = fieldEnd[field], scale = 0;
+		long mantissa = 0;
+		boolean negative = false, seenDot = false, seenDigit = false;
+		if (p < end && (window.get(p) == '-' || window.get(p) == '+')) { negative = window.get(p++) == '-'; }
+		for (; p < end; p++) {
+			byte b = window.get(p);
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				if (mantissa >= MAX_EXACT_MANTISSA) { return Double.parseDouble(getString(field)); }
+				if (seenDot) { scale++; }
+				seenDigit = true;
+			}
+			else if (b == '.' && !seenDot) { seenDot = true; }
+			else { return Double.parseDouble(getString(field)); }
+		}
+		if (!seenDigit || scale >= POWERS_OF_TEN.length) { return Double.parseDouble(getString(field)); }
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	public int parseEpochDay(int field) {
+		if (length(field) < 10 || charAt(field, 4) != '-' || charAt(field, 7) != '-') { throw new DateTimeException("Text '" + getString(field) + "' could not be parsed"); }
+		return (int) LocalDate.of(digits(field, 0, 4), digits(field, 5, 2), digits(field, 8, 2)).toEpochDay();
+	}
+
+	public String getString(int field) {
+		byte[] bytes = new byte[length(field)];
+		for (int i = 0; i < bytes.length; i++) { bytes[i] = window.get(fieldStart[field] + i); }
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	private int digits(int field, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			char c = charAt(field, i);
+			if (c < '0' || c > '9') { throw new DateTimeException("Text '" + getString(field) + "' could not be parsed"); }
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private void record(int column, int begin, int end) {
+		if (column < slotOfColumn.length && slotOfColumn[column] >= 0) {
+			fieldStart[slotOfColumn[column]] = begin;
+			fieldEnd[slotOfColumn[column]] = end;
+		}
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		windowEnd = Math.min(fileSize, start + WINDOW_SIZE);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+		position = start;
+	}
+}
@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Multivariable logistic regression of a YES/NO dimension of the cohort, such as readmission, on measures
+ * of the patients, giving adjusted odds ratios. Categorical covariates enter as 0/1 measures from
+ * {@link #indicator(STARDataCube.Dimension, int)} or {@link #indicators(STARDataCohort, STARDataCube.Dimension)}.
+ *
+ * The design matrix is a row-major double[] with an intercept column. It is built in parallel from the
+ * patients with no NaN covariate (complete cases) and fitted by IRLS (Newton's method). Each iteration
+ * accumulates X'WX, the gradient X'(y - p) and the log-likelihood over fixed blocks of ROWS_PER_CHUNK rows
+ * on a fork-join pool. It then solves the Newton step by Cholesky. The partial sums are added in block
+ * order, so the fit depends only on the data, not on the number of threads. Standard errors come from the
+ * inverse of X'WX at the final coefficients.
+ */
+public class STARDataRegression {
+
+	private static final int ROWS_PER_CHUNK = 1 << 14;
+	private static final int MAX_ITERATIONS = 25;
+	private static final double TOLERANCE = 1e-8;
+	private static final double Z_95 = 1.959963984540054;
+
+	public String outcome;
+	public String[] names;				// "Intercept", then the covariates
+	public double[] coefficients;		// log odds ratios
+	public double[] standardErrors;
+	public int patients;				// complete cases fitted
+	public int excluded;				// patients left out for a NaN covariate
+	public long events;					// fitted patients with outcome YES
+	public int iterations;
+	public boolean converged;
+	public double logLikelihood;
+
+	/**
+	 * 1 for patients in the given level of a dimension, 0 for the others.
+	 */
+	public static STARDataCube.Measure indicator(final STARDataCube.Dimension dimension, final int level) {
+		return new STARDataCube.Measure(dimension.name + ": " + dimension.labels[level]) {
+			public double value(STARDataCohort cohort, int patient) { return dimension.index(cohort, patient) == level ? 1 : 0; }
+		};
+	}
+
+	/**
+	 * Indicators of every level of a dimension that has patients, except the most common one, which is
+	 * the reference level. Empty levels are left out since their coefficient cannot be estimated.
+	 */
+	public static STARDataCube.Measure[] indicators(STARDataCohort cohort, STARDataCube.Dimension dimension) {
+		long[] counts = new long[dimension.labels.length];
+		for (int i = 0; i < cohort.size; i++) { counts[dimension.index(cohort, i)]++; }
+		int reference = 0;
+		for (int level = 1; level < counts.length; level++) {
+			if (counts[level] > counts[reference]) { reference = level; }
+		}
+		ArrayList<STARDataCube.Measure> indicators = new ArrayList<STARDataCube.Measure>();
+		for (int level = 0; level < counts.length; level++) {
+			if (level != reference && counts[level] > 0) { indicators.add(indicator(dimension, level)); }
+		}
+		return indicators.toArray(new STARDataCube.Measure[indicators.size()]);
+	}
+
+	/**
+	 * Fits P(outcome is YES) = 1 / (1 + exp(-(b0 + b1 x1 + ...))) over the covariates. Throws
+	 * IllegalArgumentException if the covariates are collinear or constant among the complete cases.
+	 */
+	public static STARDataRegression fit(final STARDataCohort cohort, final STARDataCube.Dimension outcome, final STARDataCube.Measure[] covariates, int threads) throws Exception {
+		final int p = covariates.length + 1;
+		STARDataRegression regression = new STARDataRegression();
+		regression.outcome = outcome.name;
+		regression.names = new String[p];
+		regression.names[0] = "Intercept";
+		for (int j = 1; j < p; j++) { regression.names[j] = covariates[j - 1].name; }
+
+		// design rows of each block of patients, complete cases only
+		ArrayList<double[][]> blocks = STARDataIngest.runChunks(offsets(cohort.size), threads, new STARDataIngest.ChunkParser<double[][]>() {
+			public double[][] parse(long start, long end) {
+				double[] x = new double[(int) (end - start) * p], y = new double[(int) (end - start)];
+				int rows = 0;
+				patients:
+				for (int i = (int) start; i < end; i++) {
+					int o = rows * p;
+					x[o] = 1;
+					for (int j = 1; j < p; j++) {
+						double value = covariates[j - 1].value(cohort, i);
+						if (value != value) { continue patients; }
+						x[o + j] = value;
+					}
+					y[rows++] = outcome.index(cohort, i) == STARDataCube.YES ? 1 : 0;
+				}
+				return new double[][] {Arrays.copyOf(x, rows * p), Arrays.copyOf(y, rows)};
+			}
+		});
+		int n = 0;
+		for (double[][] block : blocks) { n += block[1].length; }
+		final double[] x = new double[n * p], y = new double[n];
+		int filled = 0;
+		for (double[][] block : blocks) {
+			System.arraycopy(block[0], 0, x, filled * p, block[0].length);
+			System.arraycopy(block[1], 0, y, filled, block[1].length);
+			filled += block[1].length;
+		}
+		blocks = null;
+		regression.patients = n;
+		regression.excluded = cohort.size - n;
+		for (double outcomeValue : y) { regression.events += (long) outcomeValue; }
+
+		long[] offsets = offsets(n);
+		double[] beta = new double[p], information = new double[p * p], gradient = new double[p];
+		while (true) {
+			regression.logLikelihood = accumulate(x, y, p, beta, offsets, threads, information, gradient);
+			if (regression.converged || regression.iterations == MAX_ITERATIONS) { break; }
+			double[] step = solve(cholesky(information, p), gradient, p);
+			double largest = 0;
+			for (int j = 0; j < p; j++) {
+				beta[j] += step[j];
+				largest = Math.max(largest, Math.abs(step[j]) / (1 + Math.abs(beta[j])));
+			}
+			regression.iterations++;
+			regression.converged = largest < TOLERANCE;
+		}
+
+		double[] lower = cholesky(information, p), unit = new double[p];
+		regression.coefficients = beta;
+		regression.standardErrors = new double[p];
+		for (int j = 0; j < p; j++) {
+			unit[j] = 1;
+			regression.standardErrors[j] = Math.sqrt(solve(lower, unit, p)[j]);
+			unit[j] = 0;
+		}
+		return regression;
+	}
+
+	public double oddsRatio(int j) {
+		return Math.exp(coefficients[j]);
+	}
+
+	public double lowerOddsRatio(int j) {
+		return Math.exp(coefficients[j] - Z_95 * standardErrors[j]);
+	}
+
+	public double upperOddsRatio(int j) {
+		return Math.exp(coefficients[j] + Z_95 * standardErrors[j]);
+	}
+
+	/**
+	 * Two-sided Wald p-value of coefficient j.
+	 */
+	public double pValue(int j) {
+		return erfc(Math.abs(coefficients[j] / standardErrors[j]) / Math.sqrt(2));
+	}
+
+	public String toString() {
+		StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "Logistic regression of %s on %d patients (%d events, %d excluded for missing values), log-likelihood %.4f, %s after %d iterations%n",
+																outcome, patients, events, excluded, logLikelihood, converged ? "converged" : "NOT converged", iterations));
+		table.append(String.format(Locale.ROOT, "%-36s %12s %10s %8s %10s %10s %23s%n", "", "Coefficient", "SE", "z", "p", "Odds ratio", "95% CI"));
+		for (int j = 0; j < names.length; j++) {
+			table.append(String.format(Locale.ROOT, "%-36s %12.5f %10.5f %8.3f %10.4g %10.4f %10.4f - %10.4f%n", names[j], coefficients[j], standardErrors[j],
+											coefficients[j] / standardErrors[j], pValue(j), oddsRatio(j), lowerOddsRatio(j), upperOddsRatio(j)));
+		}
+		return table.toString();
+	}
+
+	/**
+	 * Fills the upper triangle of information with X'WX (mirrored below) and gradient with X'(y - p) at
+	 * beta, and returns the log-likelihood.
+	 */
+	private static double accumulate(final double[] x, final double[] y, final int p, final double[] beta, long[] offsets, int threads, double[] information, double[] gradient) throws Exception {
+		ArrayList<double[]> partials = STARDataIngest.runChunks(offsets, threads, new STARDataIngest.ChunkParser<double[]>() {
+			public double[] parse(long start, long end) {
+				// X'WX upper triangle, then the gradient, then the log-likelihood
+				double[] sums = new double[p * p + p + 1];
+				for (int r = (int) start; r < end; r++) {
+					int o = r * p;
+					double eta = 0;
+					for (int j = 0; j < p; j++) { eta += x[o + j] * beta[j]; }
+					double mu = 1 / (1 + Math.exp(-eta)), w = mu * (1 - mu), residual = y[r] - mu;
+					// log(1 + exp(eta)) without overflow
+					sums[p * p + p] += y[r] * eta - (Math.max(eta, 0) + Math.log1p(Math.exp(-Math.abs(eta))));
+					for (int j = 0; j < p; j++) {
+						double xj = x[o + j], wxj = w * xj;
+						sums[p * p + j] += residual * xj;
+						for (int k = j; k < p; k++) { sums[j * p + k] += wxj * x[o + k]; }
+					}
+				}
+				return sums;
+			}
+		});
+		Arrays.fill(information, 0);
+		Arrays.fill(gradient, 0);
+		double logLikelihood = 0;
+		for (double[] sums : partials) {
+			for (int j = 0; j < p; j++) {
+				for (int k = j; k < p; k++) { information[j * p + k] += sums[j * p + k]; }
+				gradient[j] += sums[p * p + j];
+			}
+			logLikelihood += sums[p * p + p];
+		}
+		for (int j = 0; j < p; j++) {
+			for (int k = 0; k < j; k++) { information[j * p + k] = information[k * p + j]; }
+		}
+		return logLikelihood;
+	}
+
+	/**
+	 * Lower triangular L with L L' = a, for a symmetric positive definite p x p matrix.
+	 */
+	private static double[] cholesky(double[] a, int p) {
+		double[] lower = new double[p * p];
+		for (int j = 0; j < p; j++) {
+			double diagonal = a[j * p + j];
+			for (int k = 0; k < j; k++) { diagonal -= lower[j * p + k] * lower[j * p + k]; }
+			if (!(diagonal > 1e-12 * Math.max(1, a[j * p + j]))) { throw new IllegalArgumentException("The covariates are collinear or constant"); }
+			lower[j * p + j] = Math.sqrt(diagonal);
+			for (int i = j + 1; i < p; i++) {
+				double sum = a[i * p + j];
+				for (int k = 0; k < j; k++) { sum -= lower[i * p + k] * lower[j * p + k]; }
+				lower[i * p + j] = sum / lower[j * p + j];
+			}
+		}
+		return lower;
+	}
+
+	/**
+	 * Solves L L' z = b.
+	 */
+	private static double[] solve(double[] lower, double[] b, int p) {
+		double[] z = new double[p];
+		for (int i = 0; i < p; i++) {
+			double sum = b[i];
+			for (int k = 0; k < i; k++) { sum -= lower[i * p + k] * z[k]; }
+			z[i] = sum / lower[i * p + i];
+		}
+		for (int i = p - 1; i >= 0; i--) {
+			double sum = z[i];
+			for (int k = i + 1; k < p; k++) { sum -= lower[k * p + i] * z[k]; }
+			z[i] = sum / lower[i * p + i];
+		}
+		return z;
+	}
+
+	private static long[] offsets(int rows) {
+		int chunks = Math.max(1, (rows + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK);
+		long[] offsets = new long[chunks + 1];
+		for (int i = 0; i <= chunks; i++) { offsets[i] = Math.min(rows, (long) i * ROWS_PER_CHUNK); }
+		return offsets;
+	}
+
+	/**
+	 * Complementary error function, to a relative error below 1.2e-7 (Numerical Recipes' erfcc).
+	 */
+	static double erfc(double z) {
+		double t = 1 / (1 + 0.5 * Math.abs(z));
+		double value = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 + t * (-0.18628806
+							+ t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+		return z >= 0 ? value : 2 - value;
+	}
+}
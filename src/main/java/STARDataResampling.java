@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Permutation p-value and bootstrap confidence interval for the difference in means between two samples
+ * (readmitted against not readmitted, or diabetic against nondiabetic readmission rates). The resamples
+ * are cut into blocks of BLOCK; each block has its own SplittableRandom, split off the seed in block order,
+ * and its scratch arrays, so the blocks run on a fork-join pool with no allocation inside the resample loop
+ * and the results depend only on the seed and the number of resamples, not on the number of threads.
+ */
+public class STARDataResampling {
+
+	private static final int BLOCK = 1024;
+
+	public int resamples;
+	public double difference;	// mean of the first sample minus mean of the second
+	public double pValue;		// two-sided, (extreme + 1) / (resamples + 1)
+	public double lower, upper;	// percentile bootstrap interval of the difference
+
+	/**
+	 * Compares two samples with the given number of permutations and bootstrap resamples and a 95%
+	 * interval. NaN results if either sample is empty.
+	 */
+	public static STARDataResampling compare(final double[] first, final double[] second, int resamples, long seed, int threads) throws Exception {
+		STARDataResampling result = new STARDataResampling();
+		result.resamples = resamples;
+		result.difference = mean(first) - mean(second);
+		if (first.length == 0 || second.length == 0 || resamples <= 0) {
+			result.pValue = result.lower = result.upper = Double.NaN;
+			return result;
+		}
+
+		final double[] pooled = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, pooled, first.length, second.length);
+		double pooledSum = 0;
+		for (double value : pooled) { pooledSum += value; }
+		final double total = pooledSum, observed = Math.abs(result.difference);
+		final double tolerance = 1e-9 * Math.max(1, observed);
+
+		int blocks = (resamples + BLOCK - 1) / BLOCK;
+		long[] offsets = new long[blocks + 1];
+		final SplittableRandom[] generators = new SplittableRandom[blocks];
+		SplittableRandom root = new SplittableRandom(seed);
+		for (int b = 0; b < blocks; b++) {
+			offsets[b + 1] = Math.min(resamples, (long) (b + 1) * BLOCK);
+			generators[b] = root.split();
+		}
+		final double[] bootstrap = new double[resamples];
+		long extreme = 0;
+		for (Long count : STARDataIngest.runChunks(offsets, threads, new STARDataIngest.ChunkParser<Long>() {
+			public Long parse(long start, long end) {
+				SplittableRandom random = generators[(int) (start / BLOCK)];
+				int n = pooled.length, n1 = first.length, n2 = second.length;
+				// label the smaller group by a partial Fisher-Yates shuffle of the pooled indexes
+				boolean firstSmaller = n1 <= n2;
+				int drawn = firstSmaller ? n1 : n2;
+				int[] permutation = new int[n];
+				for (int i = 0; i < n; i++) { permutation[i] = i; }
+				long count = 0;
+				for (long r = start; r < end; r++) {
+					double sum = 0;
+					for (int i = 0; i < drawn; i++) {
+						int j = i + random.nextInt(n - i), swap = permutation[i];
+						permutation[i] = permutation[j];
+						permutation[j] = swap;
+						sum += pooled[permutation[i]];
+					}
+					double sum1 = firstSmaller ? sum : total - sum;
+					if (Math.abs(sum1 / n1 - (total - sum1) / n2) >= observed - tolerance) { count++; }
+
+					double bootstrap1 = 0, bootstrap2 = 0;
+					for (int i = 0; i < n1; i++) { bootstrap1 += first[random.nextInt(n1)]; }
+					for (int i = 0; i < n2; i++) { bootstrap2 += second[random.nextInt(n2)]; }
+					bootstrap[(int) r] = bootstrap1 / n1 - bootstrap2 / n2;
+				}
+				return count;
+			}
+		})) { extreme += count; }
+
+		result.pValue = (extreme + 1.0) / (resamples + 1.0);
+		Arrays.sort(bootstrap);
+		result.lower = bootstrap[(int) Math.floor(0.025 * (resamples - 1))];
+		result.upper = bootstrap[(int) Math.ceil(0.975 * (resamples - 1))];
+		return result;
+	}
+
+	/**
+	 * The values of measure for the patients of stratum index of the given dimension (all patients if
+	 * stratum is null), as {YES sample, NO sample} of groups. NaN values are left out.
+	 */
+	public static double[][] samples(STARDataCohort cohort, STARDataCube.Dimension groups, STARDataCube.Dimension stratum, int index, STARDataCube.Measure measure) {
+		int[] sizes = new int[2];
+		for (int i = 0; i < cohort.size; i++) {
+			if (selected(cohort, i, stratum, index, measure)) { sizes[groups.index(cohort, i)]++; }
+		}
+		double[][] samples = {new double[sizes[STARDataCube.YES]], new double[sizes[STARDataCube.NO]]};
+		int[] filled = new int[2];
+		for (int i = 0; i < cohort.size; i++) {
+			if (!selected(cohort, i, stratum, index, measure)) { continue; }
+			int group = groups.index(cohort, i) == STARDataCube.YES ? 0 : 1;
+			samples[group][filled[group]++] = measure.value(cohort, i);
+		}
+		return samples;
+	}
+
+	public String toString() {
+		return "Permutation p-value: " + pValue + ", 95% bootstrap CI of the difference " + difference + ": [" + lower + ", " + upper + "] (" + resamples + " resamples)";
+	}
+
+	private static boolean selected(STARDataCohort cohort, int patient, STARDataCube.Dimension stratum, int index, STARDataCube.Measure measure) {
+		double value = measure.value(cohort, patient);
+		return value == value && (stratum == null || stratum.index(cohort, patient) == index);
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) { sum += value; }
+		return sum / values.length;
+	}
+}
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP/JSON service that answers analysis queries against a cohort loaded once, so changing the
+ * window, the strata or the bounds costs one pass over the cohort instead of a JVM start and an ingest.
+ *
+ * GET /query takes these parameters, all optional:
+ * - window: readmission window in days (30)
+ * - strata: comma-separated list of diabetes, hcv, functionalStatus, bmi and meld (all of them)
+ * - bmiBounds, meldBounds: comma-separated category bounds (the server's defaults)
+ * - minAge, maxAge: age range of the patients included (everyone)
+ * - statistics: comma-separated list of counts, means, tTest and resampling (counts,means,tTest)
+ * - resamples, seed: for resampling (1000, 1)
+ *
+ * It answers with the readmitted and not readmitted counts, the mean and standard deviation of age, BMI
+ * and MELD in each group, the Welch t statistic and the permutation p-value and bootstrap interval of
+ * the difference. These are given for the whole age range and for every level of every stratum. GET
+ * /status reports the cohort size, the handler threads and cache use.
+ *
+ * The cohort is only read: readmission is taken from its readmission gaps through
+ * {@link STARDataCube#readmittedWithin(int)}, never from the shared readmitted flags. This lets requests
+ * run concurrently, each filling its own cube single-threaded. On a JDK 21 or later runtime every request
+ * gets its own virtual thread, through Executors.newVirtualThreadPerTaskExecutor looked up reflectively
+ * since the build targets JDK 17. Older runtimes have no virtual threads and fall back to a fixed pool
+ * of -threads handler threads. GET /status reports which one is in use. Answers are kept in an LRU cache
+ * keyed by the normalized query.
+ */
+public class STARDataServer {
+
+	public static final String[] STRATA = {"diabetes", "hcv", "functionalStatus", "bmi", "meld"};
+	public static final String[] STATISTICS = {"counts", "means", "tTest", "resampling"};
+	private static final STARDataCube.Measure[] MEASURES = {STARDataCube.AGE, STARDataCube.BMI, STARDataCube.MELD};
+
+	private final STARDataCohort cohort;
+	private final double[] bmiBounds, meldBounds;
+	private final LinkedHashMap<String, String> cache;
+	private long hits, misses;
+	private HttpServer server;
+	private ExecutorService executor;
+	private boolean virtualThreads;
+
+	/**
+	 * The cohort has to have its readmission gaps; bmiBounds and meldBounds are the defaults of queries
+	 * that give none.
+	 */
+	public STARDataServer(STARDataCohort cohort, double[] bmiBounds, double[] meldBounds, final int cacheSize) {
+		if (cohort.readmissionGap == null) { cohort.findReadmissionGaps(); }
+		this.cohort = cohort;
+		this.bmiBounds = bmiBounds;
+		this.meldBounds = meldBounds;
+		cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) { return size() > cacheSize; }
+		};
+	}
+
+	/**
+	 * Listens on the loopback interface, on a virtual thread per request where the runtime has them and
+	 * otherwise answering up to threads requests at a time.
+	 */
+	public void start(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/query", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange, 200, query(parameters(exchange.getRequestURI().getRawQuery())));
+				} catch (IllegalArgumentException e) {
+					respond(exchange, 400, "{\"error\": " + STARDataMetrics.quote(String.valueOf(e.getMessage())) + "}");
+				} catch (Exception e) {
+					respond(exchange, 500, "{\"error\": " + STARDataMetrics.quote(e.toString()) + "}");
+				}
+			}
+		});
+		server.createContext("/status", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String status;
+				synchronized (cache) { status = "{\"patients\": " + cohort.size + ", \"handlers\": \"" + (virtualThreads ? "virtual" : "fixed") + "\", \"cached\": " + cache.size() + ", \"hits\": " + hits + ", \"misses\": " + misses + "}"; }
+				respond(exchange, 200, status);
+			}
+		});
+		server.setExecutor(executor = executor(threads));
+		server.start();
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() on JDK 21 and later, a fixed pool of the given size
+	 * before that.
+	 */
+	private ExecutorService executor(int threads) {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			virtualThreads = true;
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/**
+	 * The JSON answer to a query given as parameter names and values, from the cache if it was asked
+	 * before. Throws IllegalArgumentException for an unknown or malformed parameter.
+	 */
+	public String query(Map<String, String> parameters) throws Exception {
+		Query query = new Query(parameters);
+		String key = query.toString(), answer;
+		synchronized (cache) {
+			answer = cache.get(key);
+			if (answer != null) { hits++; return answer; }
+			misses++;
+		}
+		answer = query.answer();
+		synchronized (cache) { cache.put(key, answer); }
+		return answer;
+	}
+
+	/**
+	 * A parsed query with the defaults filled in.
+	 */
+	private class Query {
+		int window = 30, resamples = 1000;
+		long seed = 1;
+		String[] strata = STRATA, statistics = {"counts", "means", "tTest"};
+		double[] bmiBounds = STARDataServer.this.bmiBounds, meldBounds = STARDataServer.this.meldBounds;
+		double minAge = Double.NEGATIVE_INFINITY, maxAge = Double.POSITIVE_INFINITY;
+
+		Query(Map<String, String> parameters) {
+			for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+				String name = parameter.getKey(), value = parameter.getValue();
+				if (name.equals("window")) { window = Integer.parseInt(value); }
+				else if (name.equals("strata")) { strata = names(value, STRATA); }
+				else if (name.equals("statistics")) { statistics = names(value, STATISTICS); }
+				else if (name.equals("bmiBounds")) { bmiBounds = bounds(value); }
+				else if (name.equals("meldBounds")) { meldBounds = bounds(value); }
+				else if (name.equals("minAge")) { minAge = Double.parseDouble(value); }
+				else if (name.equals("maxAge")) { maxAge = Double.parseDouble(value); }
+				else if (name.equals("resamples")) { resamples = Integer.parseInt(value); }
+				else if (name.equals("seed")) { seed = Long.parseLong(value); }
+				else { throw new IllegalArgumentException("Unknown parameter " + name); }
+			}
+			if (resamples < 1) { throw new IllegalArgumentException("resamples has to be positive"); }
+		}
+
+		boolean wants(String statistic) {
+			return Arrays.asList(statistics).contains(statistic);
+		}
+
+		STARDataCube.Dimension stratum(String name) {
+			if (name.equals("diabetes")) { return STARDataCube.DIABETES; }
+			if (name.equals("hcv")) { return STARDataCube.HCV; }
+			if (name.equals("functionalStatus")) { return STARDataCube.FUNCTIONAL_STATUS; }
+			if (name.equals("bmi")) { return STARDataCube.binned("BMI", bmiBounds, STARDataCube.BMI); }
+			return STARDataCube.binned("MELD", meldBounds, STARDataCube.MELD);
+		}
+
+		String answer() throws Exception {
+			STARDataCube.Dimension readmitted = STARDataCube.readmittedWithin(window), age = STARDataCube.range("Age", STARDataCube.AGE, minAge, maxAge);
+			STARDataCube.Dimension[] dimensions = new STARDataCube.Dimension[strata.length + 2];
+			dimensions[0] = readmitted;
+			dimensions[1] = age;
+			for (int s = 0; s < strata.length; s++) { dimensions[s + 2] = stratum(strata[s]); }
+			STARDataCube cube = STARDataCube.fill(cohort, dimensions, MEASURES, 1);
+
+			StringBuilder json = new StringBuilder("{\"query\": ").append(STARDataMetrics.quote(toString()));
+			STARDataCube overall = cube.marginal(age, readmitted);
+			json.append(", \"patients\": ").append(overall.count(YES, YES) + overall.count(YES, NO));
+			json.append(", \"overall\": ");
+			group(json, overall, readmitted, age, YES, YES);
+			json.append(", \"strata\": [");
+			for (int s = 0; s < strata.length; s++) {
+				STARDataCube.Dimension dimension = dimensions[s + 2];
+				STARDataCube levels = cube.marginal(age, dimension, readmitted);
+				STARDataCube.Dimension inRange = within(dimension, age);
+				json.append(s > 0 ? ", " : "").append("{\"name\": ").append(STARDataMetrics.quote(dimension.name)).append(", \"levels\": [");
+				for (int i = 0; i < dimension.labels.length; i++) {
+					json.append(i > 0 ? ", " : "").append("{\"label\": ").append(STARDataMetrics.quote(dimension.labels[i])).append(", \"statistics\": ");
+					group(json, levels, readmitted, inRange, i, YES, i);
+					json.append('}');
+				}
+				json.append("]}");
+			}
+			return json.append("]}").toString();
+		}
+
+		/**
+		 * The statistics of the readmitted and not readmitted patients at the given leading indexes of the
+		 * marginal cube, whose last dimension is readmission; samples of stratum index are resampled.
+		 */
+		void group(StringBuilder json, STARDataCube marginal, STARDataCube.Dimension readmitted, STARDataCube.Dimension stratum, int index, int... indexes) throws Exception {
+			int[] yes = Arrays.copyOf(indexes, indexes.length + 1), no = Arrays.copyOf(indexes, indexes.length + 1);
+			yes[indexes.length] = YES;
+			no[indexes.length] = NO;
+			json.append('{');
+			String separator = "";
+			if (wants("counts")) {
+				long readmittedCount = marginal.count(yes), notReadmittedCount = marginal.count(no);
+				json.append("\"readmitted\": ").append(readmittedCount).append(", \"notReadmitted\": ").append(notReadmittedCount)
+					.append(", \"rate\": ").append(number(readmittedCount / (double) (readmittedCount + notReadmittedCount)));
+				separator = ", ";
+			}
+			if (wants("means") || wants("tTest") || wants("resampling")) {
+				json.append(separator).append("\"measures\": {");
+				for (int m = 0; m < MEASURES.length; m++) {
+					STARDataStatistics a = marginal.statistics(MEASURES[m], yes), b = marginal.statistics(MEASURES[m], no);
+					json.append(m > 0 ? ", " : "").append(STARDataMetrics.quote(MEASURES[m].name)).append(": {");
+					String inner = "";
+					if (wants("means")) {
+						json.append("\"readmittedMean\": ").append(number(a.mean())).append(", \"notReadmittedMean\": ").append(number(b.mean()))
+							.append(", \"readmittedSd\": ").append(number(a.standardDeviation())).append(", \"notReadmittedSd\": ").append(number(b.standardDeviation()));
+						inner = ", ";
+					}
+					if (wants("tTest")) {
+						json.append(inner).append("\"t\": ").append(number(STARDataStatistics.tTest(a, b)));
+						inner = ", ";
+					}
+					if (wants("resampling")) {
+						double[][] samples = STARDataResampling.samples(cohort, readmitted, stratum, index, MEASURES[m]);
+						STARDataResampling result = STARDataResampling.compare(samples[0], samples[1], resamples, seed, 1);
+						json.append(inner).append("\"difference\": ").append(number(result.difference)).append(", \"pValue\": ").append(number(result.pValue))
+							.append(", \"lower\": ").append(number(result.lower)).append(", \"upper\": ").append(number(result.upper));
+					}
+					json.append('}');
+				}
+				json.append('}');
+			}
+			json.append('}');
+		}
+
+		public String toString() {
+			return "window=" + window + "&strata=" + join(strata) + "&bmiBounds=" + join(bmiBounds) + "&meldBounds=" + join(meldBounds)
+					+ "&minAge=" + minAge + "&maxAge=" + maxAge + "&statistics=" + join(statistics)
+					+ (wants("resampling") ? "&resamples=" + resamples + "&seed=" + seed : "");
+		}
+	}
+
+	private static final int NO = STARDataCube.NO, YES = STARDataCube.YES;
+
+	/**
+	 * The stratum dimension limited to the patients range puts at YES; everyone else goes to an extra last
+	 * stratum.
+	 */
+	private static STARDataCube.Dimension within(final STARDataCube.Dimension stratum, final STARDataCube.Dimension range) {
+		String[] labels = Arrays.copyOf(stratum.labels, stratum.labels.length + 1);
+		labels[stratum.labels.length] = range.labels[NO];
+		return new STARDataCube.Dimension(stratum.name, labels) {
+			public int index(STARDataCohort cohort, int patient) {
+				return range.index(cohort, patient) == YES ? stratum.index(cohort, patient) : stratum.labels.length;
+			}
+		};
+	}
+
+	/**
+	 * Decoded parameters of a raw query string.
+	 */
+	static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+		LinkedHashMap<String, String> parameters = new LinkedHashMap<String, String>();
+		if (query == null || query.isEmpty()) { return parameters; }
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) { continue; }
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+			parameters.put(name, equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+		}
+		return parameters;
+	}
+
+	private static String[] names(String value, String[] allowed) {
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : value.split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) { continue; }
+			if (!Arrays.asList(allowed).contains(name)) { throw new IllegalArgumentException(name + " is not one of " + join(allowed)); }
+			if (!names.contains(name)) { names.add(name); }
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	private static double[] bounds(String value) {
+		String[] parts = value.split(",");
+		double[] bounds = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) { bounds[i] = Double.parseDouble(parts[i].trim()); }
+		for (int i = 1; i < bounds.length; i++) {
+			if (!(bounds[i] > bounds[i - 1])) { throw new IllegalArgumentException("Bounds have to increase: " + value); }
+		}
+		if (bounds.length < 2) { throw new IllegalArgumentException("At least two bounds are needed: " + value); }
+		return bounds;
+	}
+
+	private static String join(String[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < values.length; i++) { joined.append(i > 0 ? "," : "").append(values[i]); }
+		return joined.toString();
+	}
+
+	private static String join(double[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < values.length; i++) { joined.append(i > 0 ? "," : "").append(values[i]); }
+		return joined.toString();
+	}
+
+	/**
+	 * A JSON number, or null for NaN and infinities.
+	 */
+	private static String number(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,502 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a cleaned and joined {@link STARDataCohort}, so that a later run can skip parsing
+ * the STAR files. It holds the patient attributes, the discharge, BMI, MELD and follow-up arrays with
+ * their offsets, the labs behind the MELD scores, the BMI/MELD averages, the readmission gaps, the
+ * per-patient fingerprints and the join counts, each array as a little-endian length and its raw values,
+ * behind a header with a format version, a random id and a fingerprint of every input file (canonical
+ * path, size, modification time and CRC-32).
+ *
+ * {@link #open(File, File...)} is a bulk load, not a zero-copy one: the cohort is plain Java arrays, so
+ * each array is copied onto the heap from a read-only mapping of the file. An input of a different size
+ * makes the snapshot stale; one of the same size and time is taken as unchanged; otherwise its CRC-32
+ * decides, and the new time is written back when it matches. Snapshots are written to a temporary file
+ * and renamed into place, so a reader never sees half of one.
+ *
+ * Report cubes filled from the cohort are kept in a small side file (the snapshot's name plus ".cubes")
+ * that carries the snapshot's id, so cubes are only picked up with the cohort they were filled from.
+ */
+public class STARDataSnapshot {
+
+	public static final long MAGIC = 0x50414E5352415453L;	// "STARSNAP"
+	public static final int VERSION = 5;
+	private static final int WINDOW_SIZE = 1 << 28;
+
+	public long id;
+	public STARDataCohort cohort;
+	public STARDataFollowUpJoin join;
+	private final ArrayList<StoredCube> cubes = new ArrayList<StoredCube>();
+
+	/**
+	 * A cube filled with readmission within window days, as its counts and exact moments per cell.
+	 */
+	private static class StoredCube {
+		int window;
+		String signature;
+		long[] count;
+		STARDataCube.Moments[][] moments;
+	}
+
+	/**
+	 * Reads the snapshot, or returns null if there is none, it has another version or it was built from
+	 * other inputs or an earlier state of them.
+	 */
+	public static STARDataSnapshot open(File snapshot, File... inputs) throws IOException {
+		return read(snapshot, true, inputs);
+	}
+
+	/**
+	 * Reads the snapshot whatever inputs it was built from, such as the previous STAR release, or returns
+	 * null if there is none or it has another version.
+	 */
+	public static STARDataSnapshot read(File snapshot) throws IOException {
+		return read(snapshot, false);
+	}
+
+	private static STARDataSnapshot read(File snapshot, boolean check, File... inputs) throws IOException {
+		if (!snapshot.isFile()) { return null; }
+		FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+		try {
+			Input in = new Input(channel);
+			if (channel.size() < 24 || in.getLong() != MAGIC || in.getInt() != VERSION) { return null; }
+			long id = in.getLong();
+			int inputCount = in.getInt();
+			if (check && inputCount != inputs.length) { return null; }
+			for (int k = 0; k < inputCount; k++) {
+				String path = in.getString();
+				long size = in.getLong(), modifiedPosition = in.position, modified = in.getLong(), crc = in.getLong();
+				if (!check) { continue; }
+				File input = inputs[k];
+				if (!input.isFile() || !path.equals(input.getCanonicalPath()) || size != input.length()) { return null; }
+				if (modified != input.lastModified()) {
+					if (crc != crc(input)) { return null; }
+					refreshModified(snapshot, modifiedPosition, input.lastModified());
+				}
+			}
+
+			STARDataSnapshot result = new STARDataSnapshot();
+			result.id = id;
+			STARDataCohort cohort = result.cohort = new STARDataCohort();
+			STARDataFollowUpJoin join = result.join = new STARDataFollowUpJoin();
+			cohort.size = in.getInt();
+			cohort.ingestedSize = in.getInt();
+			join.matchedRows = in.getInt();
+			join.unmatchedRows = in.getInt();
+			join.duplicateRows = in.getInt();
+			join.otherRows = in.getInt();
+			cohort.ptCode = in.getInts();
+			cohort.trrIdCode = in.getInts();
+			cohort.age = in.getInts();
+			cohort.diab = in.getBytes();
+			cohort.hcv = in.getBytes();
+			cohort.functionalStatus = in.getBytes();
+			cohort.dischargeOffsets = in.getInts();
+			cohort.dischargeDays = in.getInts();
+			cohort.bmiOffsets = in.getInts();
+			cohort.bmi = in.getDoubles();
+			cohort.meldOffsets = in.getInts();
+			cohort.meld = in.getFloats();
+			cohort.labs = new STARDataMELD(0);
+			cohort.labs.female = in.getBytes();
+			cohort.labs.dialysis = in.getBytes();
+			cohort.labs.bilirubin = in.getDoubles();
+			cohort.labs.inr = in.getDoubles();
+			cohort.labs.creatinine = in.getDoubles();
+			cohort.labs.sodium = in.getDoubles();
+			cohort.labs.albumin = in.getDoubles();
+			cohort.labs.size = cohort.meld.length;
+			cohort.followUpOffsets = in.getInts();
+			cohort.followUpDays = in.getInts();
+			cohort.averageBMI = in.getDoubles();
+			cohort.averageMELD = in.getDoubles();
+			cohort.readmissionGap = in.getInts();
+			cohort.rowFingerprint = in.getLongs();
+			cohort.followUpFingerprint = in.getLongs();
+			cohort.readmitted = new boolean[cohort.size];
+			result.readCubes(cubeFile(snapshot));
+			return result;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the cohort, its MELD labs and the join counts under a new id, fingerprinting the inputs they
+	 * came from, and drops the stored cubes. Readmission gaps are computed if missing; the fingerprints
+	 * come from the ingest and the join.
+	 */
+	public void write(File snapshot, File... inputs) throws IOException {
+		if (cohort.readmissionGap == null) { cohort.findReadmissionGaps(); }
+		id = new Random().nextLong();
+		cubes.clear();
+		cubeFile(snapshot).delete();
+		File temporary = new File(snapshot.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			Output out = new Output(channel);
+			out.putLong(MAGIC);
+			out.putInt(VERSION);
+			out.putLong(id);
+			out.putInt(inputs.length);
+			for (File input : inputs) {
+				long size = input.length(), modified = input.lastModified();
+				out.putString(input.getCanonicalPath());
+				out.putLong(size);
+				out.putLong(modified);
+				out.putLong(crc(input));
+			}
+
+			out.putInt(cohort.size);
+			out.putInt(cohort.ingestedSize);
+			out.putInt(join.matchedRows);
+			out.putInt(join.unmatchedRows);
+			out.putInt(join.duplicateRows);
+			out.putInt(join.otherRows);
+			out.putInts(cohort.ptCode, cohort.size);
+			out.putInts(cohort.trrIdCode, cohort.size);
+			out.putInts(cohort.age, cohort.size);
+			out.putBytes(cohort.diab, cohort.size);
+			out.putBytes(cohort.hcv, cohort.size);
+			out.putBytes(cohort.functionalStatus, cohort.size);
+			out.putInts(cohort.dischargeOffsets, cohort.size + 1);
+			out.putInts(cohort.dischargeDays, cohort.dischargeOffsets[cohort.size]);
+			out.putInts(cohort.bmiOffsets, cohort.size + 1);
+			out.putDoubles(cohort.bmi, cohort.bmiOffsets[cohort.size]);
+			out.putInts(cohort.meldOffsets, cohort.size + 1);
+			out.putFloats(cohort.meld, cohort.meldOffsets[cohort.size]);
+			out.putBytes(cohort.labs.female, cohort.labs.size);
+			out.putBytes(cohort.labs.dialysis, cohort.labs.size);
+			out.putDoubles(cohort.labs.bilirubin, cohort.labs.size);
+			out.putDoubles(cohort.labs.inr, cohort.labs.size);
+			out.putDoubles(cohort.labs.creatinine, cohort.labs.size);
+			out.putDoubles(cohort.labs.sodium, cohort.labs.size);
+			out.putDoubles(cohort.labs.albumin, cohort.labs.size);
+			out.putInts(cohort.followUpOffsets, cohort.size + 1);
+			out.putInts(cohort.followUpDays, cohort.followUpOffsets[cohort.size]);
+			out.putDoubles(cohort.averageBMI, cohort.size);
+			out.putDoubles(cohort.averageMELD, cohort.size);
+			out.putInts(cohort.readmissionGap, cohort.size);
+			out.putLongs(cohort.rowFingerprint, cohort.size);
+			out.putLongs(cohort.followUpFingerprint, cohort.size);
+			out.flush();
+		} finally {
+			channel.close();
+		}
+		Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes an input's new modification time over the one recorded at position, so the next open skips
+	 * its CRC. Only this needs write access; a snapshot that cannot be written is left as it is.
+	 */
+	private static void refreshModified(File snapshot, long position, long modified) {
+		try {
+			FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, modified), position);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// read-only snapshot: the CRC is checked again next time
+		}
+	}
+
+	/**
+	 * The stored cube for the window with these dimensions and measures, or null if there is none.
+	 */
+	public STARDataCube cube(int window, STARDataCube.Dimension[] dimensions, STARDataCube.Measure[] measures) {
+		String signature = STARDataCube.signature(dimensions, measures);
+		for (StoredCube stored : cubes) {
+			if (stored.window != window || !stored.signature.equals(signature)) { continue; }
+			STARDataCube cube = new STARDataCube(dimensions, measures);
+			System.arraycopy(stored.count, 0, cube.count, 0, cube.cells());
+			for (int m = 0; m < measures.length; m++) {
+				for (int c = 0; c < cube.cells(); c++) { cube.moments[m][c].merge(stored.moments[m][c]); }
+			}
+			return cube;
+		}
+		return null;
+	}
+
+	/**
+	 * Keeps the cube for the window, in place of any stored one with the same layout; see writeCubes.
+	 */
+	public void putCube(int window, STARDataCube cube) {
+		StoredCube stored = new StoredCube();
+		stored.window = window;
+		stored.signature = STARDataCube.signature(cube.dimensions, cube.measures);
+		int measures = cube.measures.length, cells = cube.cells();
+		stored.count = cube.count.clone();
+		stored.moments = new STARDataCube.Moments[measures][cells];
+		for (int m = 0; m < measures; m++) {
+			for (int c = 0; c < cells; c++) {
+				stored.moments[m][c] = new STARDataCube.Moments();
+				stored.moments[m][c].merge(cube.moments[m][c]);
+			}
+		}
+		for (int k = 0; k < cubes.size(); k++) {
+			if (cubes.get(k).window == window && cubes.get(k).signature.equals(stored.signature)) { cubes.remove(k); break; }
+		}
+		cubes.add(stored);
+	}
+
+	/**
+	 * Writes the stored cubes to the side file of the snapshot.
+	 */
+	public void writeCubes(File snapshot) throws IOException {
+		File file = cubeFile(snapshot), temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			out.writeLong(id);
+			out.writeInt(cubes.size());
+			for (StoredCube stored : cubes) {
+				out.writeInt(stored.window);
+				out.writeUTF(stored.signature);
+				out.writeInt(stored.moments.length);
+				out.writeInt(stored.count.length);
+				for (int c = 0; c < stored.count.length; c++) { out.writeLong(stored.count[c]); }
+				for (int m = 0; m < stored.moments.length; m++) {
+					for (int c = 0; c < stored.count.length; c++) { stored.moments[m][c].write(out); }
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void readCubes(File file) throws IOException {
+		if (!file.isFile()) { return; }
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readLong() != id) { return; }
+			for (int k = in.readInt(); k > 0; k--) {
+				StoredCube stored = new StoredCube();
+				stored.window = in.readInt();
+				stored.signature = in.readUTF();
+				int measures = in.readInt(), cells = in.readInt();
+				stored.count = new long[cells];
+				stored.moments = new STARDataCube.Moments[measures][cells];
+				for (int c = 0; c < cells; c++) { stored.count[c] = in.readLong(); }
+				for (int m = 0; m < measures; m++) {
+					for (int c = 0; c < cells; c++) {
+						stored.moments[m][c] = new STARDataCube.Moments();
+						stored.moments[m][c].read(in);
+					}
+				}
+				cubes.add(stored);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File cubeFile(File snapshot) {
+		return new File(snapshot.getPath() + ".cubes");
+	}
+
+	/**
+	 * CRC-32 of a file's contents, read through memory-mapped windows.
+	 */
+	public static long crc(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			for (long position = 0; position < size; position += WINDOW_SIZE) {
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position)));
+			}
+		} finally {
+			channel.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Sequential reads from a read-only mapping of the snapshot, remapped a window at a time so that
+	 * snapshots over 2 GB can be read too.
+	 */
+	private static class Input {
+		final FileChannel channel;
+		final long size;
+		ByteBuffer window;
+		long windowStart, position;
+
+		Input(FileChannel channel) throws IOException {
+			this.channel = channel;
+			size = channel.size();
+		}
+
+		/**
+		 * The window, positioned at the next bytes bytes (at most WINDOW_SIZE), which are then consumed.
+		 */
+		ByteBuffer take(int bytes) throws IOException {
+			if (position + bytes > size) { throw new EOFException("Truncated snapshot"); }
+			if (window == null || position < windowStart || position + bytes > windowStart + window.limit()) {
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position)).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			window.position((int) (position - windowStart));
+			position += bytes;
+			return window;
+		}
+
+		int getInt() throws IOException { return take(4).getInt(); }
+
+		long getLong() throws IOException { return take(8).getLong(); }
+
+		String getString() throws IOException {
+			byte[] bytes = new byte[getInt()];
+			take(bytes.length).get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		byte[] getBytes() throws IOException {
+			byte[] values = new byte[getInt()];
+			for (int i = 0, n; i < values.length; i += n) {
+				n = Math.min(values.length - i, WINDOW_SIZE);
+				take(n).get(values, i, n);
+			}
+			return values;
+		}
+
+		int[] getInts() throws IOException {
+			int[] values = new int[getInt()];
+			for (int i = 0, n; i < values.length; i += n) {
+				n = Math.min(values.length - i, WINDOW_SIZE / 4);
+				take(n * 4).asIntBuffer().get(values, i, n);
+			}
+			return values;
+		}
+
+		float[] getFloats() throws IOException {
+			float[] values = new float[getInt()];
+			for (int i = 0, n; i < values.length; i += n) {
+				n = Math.min(values.length - i, WINDOW_SIZE / 4);
+				take(n * 4).asFloatBuffer().get(values, i, n);
+			}
+			return values;
+		}
+
+		long[] getLongs() throws IOException {
+			long[] values = new long[getInt()];
+			for (int i = 0, n; i < values.length; i += n) {
+				n = Math.min(values.length - i, WINDOW_SIZE / 8);
+				take(n * 8).asLongBuffer().get(values, i, n);
+			}
+			return values;
+		}
+
+		double[] getDoubles() throws IOException {
+			double[] values = new double[getInt()];
+			for (int i = 0, n; i < values.length; i += n) {
+				n = Math.min(values.length - i, WINDOW_SIZE / 8);
+				take(n * 8).asDoubleBuffer().get(values, i, n);
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Sequential writes through a direct buffer.
+	 */
+	private static class Output {
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Flushes unless at least bytes bytes are free.
+		 */
+		ByteBuffer room(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) { flush(); }
+			return buffer;
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) { channel.write(buffer); }
+			buffer.clear();
+		}
+
+		void putInt(int value) throws IOException { room(4).putInt(value); }
+
+		void putLong(long value) throws IOException { room(8).putLong(value); }
+
+		void putString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			for (int i = 0, n; i < bytes.length; i += n) {
+				n = Math.min(bytes.length - i, room(1).remaining());
+				buffer.put(bytes, i, n);
+			}
+		}
+
+		void putBytes(byte[] values, int length) throws IOException {
+			putInt(length);
+			for (int i = 0, n; i < length; i += n) {
+				n = Math.min(length - i, room(1).remaining());
+				buffer.put(values, i, n);
+			}
+		}
+
+		void putInts(int[] values, int length) throws IOException {
+			putInt(length);
+			for (int i = 0, n; i < length; i += n) {
+				n = Math.min(length - i, room(4).remaining() / 4);
+				buffer.asIntBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 4);
+			}
+		}
+
+		void putFloats(float[] values, int length) throws IOException {
+			putInt(length);
+			for (int i = 0, n; i < length; i += n) {
+				n = Math.min(length - i, room(4).remaining() / 4);
+				buffer.asFloatBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 4);
+			}
+		}
+
+		void putLongs(long[] values, int length) throws IOException {
+			putInt(length);
+			for (int i = 0, n; i < length; i += n) {
+				n = Math.min(length - i, room(8).remaining() / 8);
+				buffer.asLongBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 8);
+			}
+		}
+
+		void putDoubles(double[] values, int length) throws IOException {
+			putInt(length);
+			for (int i = 0, n; i < length; i += n) {
+				n = Math.min(length - i, room(8).remaining() / 8);
+				buffer.asDoubleBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 8);
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Row-at-a-time access to the projected fields of a STAR extract. Fields are addressed by their
+ * position in the projection and read the way they appear in the pandas-exported CSV files, so the
+ * ingest rules can run on any source.
+ */
+public interface STARDataSource extends Closeable {
+
+	/**
+	 * Advances to the next row, returning false once there are no more.
+	 */
+	boolean next() throws IOException;
+
+	int length(int field);
+
+	boolean isEmpty(int field);
+
+	char charAt(int field, int index);
+
+	boolean contains(int field, char c);
+
+	boolean equals(int field, String value);
+
+	/**
+	 * Integer part of a number such as "1234.0".
+	 */
+	int parseInt(int field);
+
+	double parseDouble(int field);
+
+	/**
+	 * Epoch day of a yyyy-MM-dd date; throws DateTimeException if the field is not a valid date.
+	 */
+	int parseEpochDay(int field);
+
+	String getString(int field);
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.avro.Schema;
+import org.apache.parquet.filter2.predicate.FilterPredicate;
+
+/**
+ * Follow-up join for LIVER_FOLLOWUP_DATA files too large for the heap. {@link STARDataFollowUpJoin} keeps
+ * every hospitalization day in memory. This join instead spills each valid follow-up row to disk as a
+ * fixed-width RECORD_BYTES record: PT_CODE (int), PX_STAT_DATE epoch day (int), HOSP = "Y" (byte). It then
+ * sorts the records externally by PT_CODE and day, and merge-joins them with the cohort, which is in
+ * PT_CODE order, in one streaming pass.
+ *
+ * Each chunk of the file is scanned on the fork-join pool into a long[] of at most runRecords keys. When
+ * the buffer is full it is sorted and written to a run file in the spill directory through a direct
+ * buffer. The runs are then merged through a priority queue of direct read buffers. The merge computes
+ * each patient's readmission gap as it passes their records, the same way
+ * {@link STARDataCohort#readmissionGap(int)} does. Heap use is one run buffer per thread, whatever the
+ * number of follow-ups.
+ *
+ * The cohort gets readmissionGap but no followUpOffsets, followUpDays or followUpFingerprint, so it
+ * cannot be written to a snapshot. The counts match STARDataFollowUpJoin's.
+ */
+public class STARDataSpillJoin {
+
+	public static final int RECORD_BYTES = 9;
+	public static final int DEFAULT_RUN_RECORDS = 1 << 22;
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private static class Partial {
+		int otherRows;
+		ArrayList<File> runs = new ArrayList<File>();
+	}
+
+	/**
+	 * Joins LIVER_FOLLOWUP_DATA.csv to the cohort, spilling runs of at most runRecords records to
+	 * directory.
+	 */
+	public static STARDataFollowUpJoin join(final File csv, STARDataCohort cohort, int threads, final File directory, final int runRecords) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up spill join");
+		return merge(cohort, STARDataIngest.runChunks(STARDataReader.split(csv, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception {
+				STARDataReader reader = new STARDataReader(csv, STARDataColumns.FOLLOWUP_PROJECTION, start, end);
+				if (start == 0) { reader.next(); }
+				return spill(reader, directory, runRecords);
+			}
+		}), stage);
+	}
+
+	/**
+	 * Same as {@link #join(File, STARDataCohort, int, File, int)}, straight from LIVER_FOLLOWUP_DATA.DTA.
+	 */
+	public static STARDataFollowUpJoin joinDTA(final File dta, File variableIds, STARDataCohort cohort, int threads, final File directory, final int runRecords) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up spill join");
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.FOLLOWUP_PROJECTION);
+		return merge(cohort, STARDataIngest.runChunks(STARDataDTAReader.split(dta, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception { return spill(new STARDataDTAReader(dta, variables, start, end), directory, runRecords); }
+		}), stage);
+	}
+
+	/**
+	 * Same as {@link #join(File, STARDataCohort, int, File, int)}, from a LIVER_FOLLOWUP_DATA.parquet
+	 * written by {@link STARDataParquet}.
+	 */
+	public static STARDataFollowUpJoin joinParquet(final File parquet, File variableIds, STARDataCohort cohort, int threads, final File directory, final int runRecords) throws Exception {
+		STARDataMetrics.Stage stage = STARDataMetrics.start("Follow-up spill join");
+		final String[] variables = STARDataColumns.variableNames(variableIds, STARDataColumns.FOLLOWUP_PROJECTION);
+		final Schema projection = STARDataParquet.schema(STARDataParquet.FOLLOWUP, variables, STARDataColumns.FOLLOWUP_PROJECTION);
+		final FilterPredicate filter = STARDataParquet.followUpFilter(variables);
+		return merge(cohort, STARDataIngest.runChunks(STARDataParquet.split(parquet, STARDataIngest.chunks(threads)), threads, new STARDataIngest.ChunkParser<Partial>() {
+			public Partial parse(long start, long end) throws Exception { return spill(new STARDataParquetReader(parquet, projection, filter, start, end), directory, runRecords); }
+		}), stage);
+	}
+
+	/**
+	 * PT_CODE in the high 32 bits, then the epoch day, offset to be non-negative, then the HOSP flag, so
+	 * keys sort by patient, then day.
+	 */
+	static long key(int ptCode, int epochDay, boolean hospitalization) {
+		return ((long) ptCode << 32) | ((long) (epochDay + (1 << 30)) << 1) | (hospitalization ? 1 : 0);
+	}
+
+	private static Partial spill(STARDataSource reader, File directory, int runRecords) throws Exception {
+		Partial partial = new Partial();
+		long[] keys = new long[runRecords];
+		int count = 0;
+		try {
+			while (reader.next()) {
+				if (!STARDataFollowUpJoin.isValid(reader)) { partial.otherRows++; continue; }
+				if (count == runRecords) {
+					partial.runs.add(writeRun(keys, count, directory));
+					count = 0;
+				}
+				keys[count++] = key(reader.parseInt(STARDataColumns.FOLLOWUP_PT_CODE), reader.parseEpochDay(STARDataColumns.FOLLOWUP_PX_STAT_DATE),
+									reader.length(STARDataColumns.FOLLOWUP_HOSP) == 1 && reader.charAt(STARDataColumns.FOLLOWUP_HOSP, 0) == 'Y');
+			}
+			if (count > 0) { partial.runs.add(writeRun(keys, count, directory)); }
+		} catch (Exception e) {
+			for (File run : partial.runs) { run.delete(); }
+			throw e;
+		} finally {
+			reader.close();
+		}
+		return partial;
+	}
+
+	/**
+	 * Sorts the first count keys and writes them as records to a new run file.
+	 */
+	private static File writeRun(long[] keys, int count, File directory) throws IOException {
+		Arrays.sort(keys, 0, count);
+		File run = File.createTempFile("followup", ".run", directory);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES - BUFFER_BYTES % RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		FileChannel channel = FileChannel.open(run.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			for (int i = 0; i < count; i++) {
+				if (buffer.remaining() < RECORD_BYTES) { flush(buffer, channel); }
+				buffer.putInt((int) (keys[i] >>> 32)).putInt((int) ((keys[i] & 0xFFFFFFFFL) >>> 1) - (1 << 30)).put((byte) (keys[i] & 1));
+			}
+			flush(buffer, channel);
+		} finally {
+			channel.close();
+		}
+		STARDataMetrics.count("Follow-up spill", "Runs", 1);
+		STARDataMetrics.count("Follow-up spill", "Bytes", (long) count * RECORD_BYTES);
+		return run;
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) { channel.write(buffer); }
+		buffer.clear();
+	}
+
+	/**
+	 * Sequential reads of a run file through a direct buffer; key is the current record.
+	 */
+	private static class Run {
+		final File file;
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES - BUFFER_BYTES % RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		long key;
+
+		Run(File file) throws IOException {
+			this.file = file;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			buffer.limit(0);
+		}
+
+		/**
+		 * Reads the next record into key, returning false at the end of the run.
+		 */
+		boolean next() throws IOException {
+			if (buffer.remaining() < RECORD_BYTES) {
+				buffer.compact();
+				while (buffer.position() < RECORD_BYTES && channel.read(buffer) >= 0) { }
+				buffer.flip();
+				if (buffer.remaining() < RECORD_BYTES) { return false; }
+			}
+			key = key(buffer.getInt(), buffer.getInt(), buffer.get() != 0);
+			return true;
+		}
+
+		void close() throws IOException {
+			channel.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Merges the runs of all chunks in key order and walks the cohort alongside them, filling its
+	 * readmission gaps.
+	 */
+	private static STARDataFollowUpJoin merge(STARDataCohort cohort, ArrayList<Partial> partials, STARDataMetrics.Stage stage) throws IOException {
+		STARDataFollowUpJoin join = new STARDataFollowUpJoin();
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, partials.size()), new Comparator<Run>() {
+			public int compare(Run a, Run b) { return Long.compare(a.key, b.key); }
+		});
+		ArrayList<Run> runs = new ArrayList<Run>();
+		try {
+			for (Partial partial : partials) {
+				join.otherRows += partial.otherRows;
+				for (File file : partial.runs) {
+					Run run = new Run(file);
+					runs.add(run);
+					if (run.next()) { queue.add(run); }
+				}
+			}
+
+			cohort.readmissionGap = new int[cohort.size];
+			Arrays.fill(cohort.readmissionGap, STARDataCohort.NO_READMISSION);
+			int patient = 0, k = 0, lastDischarge = -1, previousDay = 0;
+			boolean matched = false, first = true;
+			long previousCode = Long.MIN_VALUE;
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				long key = run.key;
+				if (run.next()) { queue.add(run); }
+
+				if ((key & 1) == 0) { join.otherRows++; continue; }
+				int code = (int) (key >>> 32), day = (int) ((key & 0xFFFFFFFFL) >>> 1) - (1 << 30);
+				if (code != previousCode) {
+					while (patient < cohort.size && cohort.ptCode[patient] < code) { patient++; }
+					matched = patient < cohort.size && cohort.ptCode[patient] == code;
+					if (matched) {
+						k = cohort.dischargeOffsets[patient];
+						lastDischarge = cohort.dischargeOffsets[patient + 1] - 1;
+					}
+					previousCode = code;
+					first = true;
+				}
+				if (!matched) { join.unmatchedRows++; continue; }
+				join.matchedRows++;
+				if (!first && day == previousDay) { join.duplicateRows++; continue; }
+				first = false;
+				previousDay = day;
+				if (k > lastDischarge) { continue; }
+				while (k < lastDischarge && cohort.dischargeDays[k + 1] < day) { k++; }
+				int difference = day - cohort.dischargeDays[k];
+				if (difference > 0 && difference < cohort.readmissionGap[patient]) { cohort.readmissionGap[patient] = difference; }
+			}
+		} finally {
+			for (Run run : runs) { run.close(); }
+			for (Partial partial : partials) {
+				for (File file : partial.runs) { file.delete(); }
+			}
+		}
+		stage.stop((long) join.matchedRows + join.unmatchedRows + join.otherRows);
+		join.count();
+		return join;
+	}
+}
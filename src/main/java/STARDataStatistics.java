@@ -0,0 +1,60 @@
+/**
+ * One-pass summary of a stream of values: count, mean and M2 (sum of squared deviations from the mean)
+ * kept with Welford's update, plus min and max. Summaries of separate parts of a sample can be merged
+ * (Chan et al.), so parallel workers can each fill their own and combine them at the end.
+ */
+public class STARDataStatistics {
+
+	public long count;
+	public double mean, m2;
+	public double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		if (value < min) { min = value; }
+		if (value > max) { max = value; }
+	}
+
+	public void merge(STARDataStatistics other) {
+		if (other.count == 0) { return; }
+		if (count == 0) {
+			count = other.count; mean = other.mean; m2 = other.m2; min = other.min; max = other.max;
+			return;
+		}
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+		count = total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * NaN when empty.
+	 */
+	public double mean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * Sample variance (n - 1 denominator).
+	 */
+	public double variance() {
+		return m2 / (count - 1);
+	}
+
+	public double standardDeviation() {
+		return Math.sqrt(variance());
+	}
+
+	/**
+	 * Absolute Welch t statistic between two samples.
+	 */
+	public static double tTest(STARDataStatistics a, STARDataStatistics b) {
+		return Math.abs((a.mean() - b.mean()) / Math.sqrt(a.variance() / a.count + b.variance() / b.count));
+	}
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Kaplan-Meier curves of the time to readmission in each level of a stratum, and the log-rank test
+ * between the levels. The event time of a patient is their readmission gap (see
+ * {@link STARDataCohort#readmissionGap(int)}). Patients not readmitted within the horizon are censored
+ * at the horizon. LIVER_FOLLOWUP_DATA only gives the cohort its hospitalizations, so there is no last
+ * contact date to censor them earlier.
+ *
+ * The event times of each level are gathered into a primitive array and sorted. One sweep over each
+ * array gives the whole curve, so S(30), S(60) and S(90) come from one pass rather than a rerun per
+ * window. The log-rank statistic is one merge of the sorted arrays.
+ */
+public class STARDataSurvival {
+
+	/**
+	 * One level holding every patient, for the curve of the whole cohort.
+	 */
+	public static final STARDataCube.Dimension COHORT = new STARDataCube.Dimension("Cohort", "All patients") {
+		public int index(STARDataCohort cohort, int patient) { return 0; }
+	};
+
+	public STARDataCube.Dimension stratum;
+	public int horizon;
+	public int[] patients, events;		// per level; events are readmissions within the horizon
+	public int[][] times;				// per level, the distinct event days in ascending order
+	public double[][] survival;			// per level, S just after each of times
+	public double[][] standardErrors;	// per level, Greenwood standard error of survival
+	public double chiSquare = Double.NaN, pValue = Double.NaN;	// log-rank, NaN with fewer than two levels
+	public int degreesOfFreedom;
+
+	/**
+	 * Curves and log-rank tests for several strata, one task per stratum.
+	 */
+	public static STARDataSurvival[] estimate(final STARDataCohort cohort, final STARDataCube.Dimension[] strata, final int horizon, int threads) throws Exception {
+		long[] offsets = new long[strata.length + 1];
+		for (int s = 0; s <= strata.length; s++) { offsets[s] = s; }
+		ArrayList<STARDataSurvival> estimates = STARDataIngest.runChunks(offsets, threads, new STARDataIngest.ChunkParser<STARDataSurvival>() {
+			public STARDataSurvival parse(long start, long end) {
+				return estimate(cohort, strata[(int) start], horizon);
+			}
+		});
+		return estimates.toArray(new STARDataSurvival[strata.length]);
+	}
+
+	/**
+	 * Curves of the levels of one stratum over days 1 to horizon, and their log-rank test.
+	 */
+	public static STARDataSurvival estimate(STARDataCohort cohort, STARDataCube.Dimension stratum, int horizon) {
+		if (cohort.readmissionGap == null) { cohort.findReadmissionGaps(); }
+		int levels = stratum.labels.length;
+		STARDataSurvival estimate = new STARDataSurvival();
+		estimate.stratum = stratum;
+		estimate.horizon = horizon;
+		estimate.patients = new int[levels];
+		estimate.events = new int[levels];
+
+		int[] level = new int[cohort.size];
+		for (int i = 0; i < cohort.size; i++) {
+			level[i] = stratum.index(cohort, i);
+			estimate.patients[level[i]]++;
+			if (cohort.readmissionGap[i] <= horizon) { estimate.events[level[i]]++; }
+		}
+		int[][] eventTimes = new int[levels][];
+		int[] filled = new int[levels];
+		for (int l = 0; l < levels; l++) { eventTimes[l] = new int[estimate.events[l]]; }
+		for (int i = 0; i < cohort.size; i++) {
+			if (cohort.readmissionGap[i] <= horizon) { eventTimes[level[i]][filled[level[i]]++] = cohort.readmissionGap[i]; }
+		}
+
+		estimate.times = new int[levels][];
+		estimate.survival = new double[levels][];
+		estimate.standardErrors = new double[levels][];
+		for (int l = 0; l < levels; l++) {
+			Arrays.sort(eventTimes[l]);
+			estimate.sweep(l, eventTimes[l]);
+		}
+		estimate.logRank(eventTimes);
+		return estimate;
+	}
+
+	/**
+	 * Product-limit estimate and Greenwood variance of one level from its sorted event times; everyone
+	 * without an event stays at risk to the horizon.
+	 */
+	private void sweep(int l, int[] eventTimes) {
+		int distinct = 0;
+		for (int j = 0; j < eventTimes.length; j++) {
+			if (j == 0 || eventTimes[j] != eventTimes[j - 1]) { distinct++; }
+		}
+		times[l] = new int[distinct];
+		survival[l] = new double[distinct];
+		standardErrors[l] = new double[distinct];
+		double s = 1, greenwood = 0;
+		int atRisk = patients[l], k = 0;
+		for (int j = 0; j < eventTimes.length; ) {
+			int time = eventTimes[j], deaths = 0;
+			while (j < eventTimes.length && eventTimes[j] == time) { deaths++; j++; }
+			s *= 1 - (double) deaths / atRisk;
+			greenwood += atRisk == deaths ? 0 : (double) deaths / ((double) atRisk * (atRisk - deaths));
+			times[l][k] = time;
+			survival[l][k] = s;
+			standardErrors[l][k++] = s * Math.sqrt(greenwood);
+			atRisk -= deaths;
+		}
+	}
+
+	/**
+	 * Observed against expected events of every non-empty level, merged over the distinct event times of
+	 * all levels, and the chi-square statistic (O - E)' V^-1 (O - E) over all of them but the last.
+	 */
+	private void logRank(int[][] eventTimes) {
+		int levels = patients.length, used = 0;
+		int[] uses = new int[levels];
+		for (int l = 0; l < levels; l++) {
+			if (patients[l] > 0) { uses[used++] = l; }
+		}
+		degreesOfFreedom = used - 1;
+		if (degreesOfFreedom < 1) { return; }
+
+		int g = degreesOfFreedom;
+		double[] difference = new double[g], covariance = new double[g * g];
+		int[] position = new int[levels], atRisk = new int[levels], deaths = new int[levels];
+		for (int l = 0; l < levels; l++) { atRisk[l] = patients[l]; }
+		while (true) {
+			int time = Integer.MAX_VALUE;
+			for (int l = 0; l < levels; l++) {
+				if (position[l] < eventTimes[l].length) { time = Math.min(time, eventTimes[l][position[l]]); }
+			}
+			if (time == Integer.MAX_VALUE) { break; }
+			long d = 0, n = 0;
+			for (int l = 0; l < levels; l++) {
+				deaths[l] = 0;
+				while (position[l] < eventTimes[l].length && eventTimes[l][position[l]] == time) { deaths[l]++; position[l]++; }
+				d += deaths[l];
+				n += atRisk[l];
+			}
+			double factor = n > 1 ? (double) d * (n - d) / (n - 1) / n : 0;
+			for (int a = 0; a < g; a++) {
+				int la = uses[a];
+				difference[a] += deaths[la] - (double) d * atRisk[la] / n;
+				for (int b = 0; b < g; b++) {
+					int lb = uses[b];
+					covariance[a * g + b] += factor * atRisk[la] * ((a == b ? 1 : 0) - (double) atRisk[lb] / n);
+				}
+			}
+			for (int l = 0; l < levels; l++) { atRisk[l] -= deaths[l]; }
+		}
+
+		double[] solution = solve(covariance, difference.clone(), g);
+		if (solution == null) { return; }
+		chiSquare = 0;
+		for (int a = 0; a < g; a++) { chiSquare += difference[a] * solution[a]; }
+		pValue = chiSquareTail(chiSquare, degreesOfFreedom);
+	}
+
+	/**
+	 * Kaplan-Meier survival of a level at the end of the given day, free of readmission until then.
+	 */
+	public double survival(int l, int day) {
+		int k = index(l, day);
+		return k < 0 ? 1 : survival[l][k];
+	}
+
+	public double standardError(int l, int day) {
+		int k = index(l, day);
+		return k < 0 ? 0 : standardErrors[l][k];
+	}
+
+	/**
+	 * The first day survival of a level falls to 0.5 or below, or -1 if it does not within the horizon.
+	 */
+	public int median(int l) {
+		for (int k = 0; k < times[l].length; k++) {
+			if (survival[l][k] <= 0.5) { return times[l][k]; }
+		}
+		return -1;
+	}
+
+	/**
+	 * The log-rank test, then patients, readmissions and survival with its standard error at each of the
+	 * given days for every level with patients.
+	 */
+	public String report(int[] days) {
+		StringBuilder report = new StringBuilder(stratum.name);
+		if (degreesOfFreedom >= 1) { report.append(String.format(Locale.ROOT, ": log-rank chi-square %.4f on %d df, p = %.4g", chiSquare, degreesOfFreedom, pValue)); }
+		report.append(System.lineSeparator());
+		for (int l = 0; l < patients.length; l++) {
+			if (patients[l] == 0) { continue; }
+			report.append(String.format(Locale.ROOT, "\t%-24s %8d patients %6d readmitted within %d days", stratum.labels[l], patients[l], events[l], horizon));
+			for (int day : days) { report.append(String.format(Locale.ROOT, "   S(%d) = %.4f (%.4f)", day, survival(l, day), standardError(l, day))); }
+			int median = median(l);
+			report.append(median < 0 ? "   median not reached" : "   median " + median + " days").append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+
+	private int index(int l, int day) {
+		int k = Arrays.binarySearch(times[l], day);
+		return k >= 0 ? k : -k - 2;
+	}
+
+	/**
+	 * Solves a x = b by Gaussian elimination with partial pivoting, or returns null if a is singular.
+	 */
+	private static double[] solve(double[] a, double[] b, int n) {
+		a = a.clone();
+		for (int c = 0; c < n; c++) {
+			int pivot = c;
+			for (int r = c + 1; r < n; r++) {
+				if (Math.abs(a[r * n + c]) > Math.abs(a[pivot * n + c])) { pivot = r; }
+			}
+			if (Math.abs(a[pivot * n + c]) < 1e-12) { return null; }
+			for (int k = 0; k < n; k++) {
+				double swap = a[c * n + k];
+				a[c * n + k] = a[pivot * n + k];
+				a[pivot * n + k] = swap;
+			}
+			double swap = b[c];
+			b[c] = b[pivot];
+			b[pivot] = swap;
+			for (int r = c + 1; r < n; r++) {
+				double factor = a[r * n + c] / a[c * n + c];
+				for (int k = c; k < n; k++) { a[r * n + k] -= factor * a[c * n + k]; }
+				b[r] -= factor * b[c];
+			}
+		}
+		for (int r = n - 1; r >= 0; r--) {
+			for (int k = r + 1; k < n; k++) { b[r] -= a[r * n + k] * b[k]; }
+			b[r] /= a[r * n + r];
+		}
+		return b;
+	}
+
+	/**
+	 * P(X >= x) for X chi-square with the given (integer) degrees of freedom, in closed form.
+	 */
+	static double chiSquareTail(double x, int degreesOfFreedom) {
+		if (x <= 0) { return 1; }
+		double sum = 0, term;
+		if (degreesOfFreedom % 2 == 0) {
+			term = 1;
+			for (int j = 0; j < degreesOfFreedom / 2; j++) {
+				sum += term;
+				term *= x / 2 / (j + 1);
+			}
+			return Math.exp(-x / 2) * sum;
+		}
+		term = 1;
+		for (int j = 1; j <= (degreesOfFreedom - 1) / 2; j++) {
+			sum += term;
+			term *= x / (2 * j + 1);
+		}
+		return STARDataRegression.erfc(Math.sqrt(x / 2)) + Math.sqrt(2 * x / Math.PI) * Math.exp(-x / 2) * sum;
+	}
+}
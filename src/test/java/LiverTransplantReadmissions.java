@@ -1,13 +1,5 @@
 import java.io.File;
-import java.io.PrintStream;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Locale;
-import java.util.Scanner;
-import java.util.TreeMap;
 
 public class LiverTransplantReadmissions {
 
@@ -23,37 +15,63 @@ public class LiverTransplantReadmissions {
 	* ****************************************************************************
 	*/
 	
-	public static TreeMap<Integer, STARDataPatient> patientDatabase = new TreeMap<Integer, STARDataPatient>();
+	public static STARDataCohort cohort;
     public static double[] BMICategoryBounds = {0, 18.5, 25, 30, 35, 40, 50};
-    public static int[] functionalStatusCategories = {2010, 2020, 2030, 2040, 2050, 2060, 2070, 2080, 2090, 2100};
+    public static int[] functionalStatusCategories = STARDataCohort.FUNCTIONAL_STATUS_CODES;
     public static double[] MELDCategoryBounds = {6, 15, 21, 28, 40.1};
-    public static TreeMap<Integer, Integer> functionalStatusMap = new TreeMap<Integer, Integer>(){{ put(2010,0); put(2020,1); put(2030,2); put(2040,3); put(2050,4); put(2060,5); put(2070,6); put(2080,7); put(2090,8); put(2100,9); }};
     public static int timeInterval = 30;
-    public static int yesDiabetesYesReadmitted, noDiabetesYesReadmitted, yesDiabetesNoReadmitted, noDiabetesNoReadmitted = 0;
-    public static int yesHCVYesReadmitted, noHCVYesReadmitted, yesHCVNoReadmitted, noHCVNoReadmitted = 0;
-    public static double[] functionalStatusYesReadmitted = new double[functionalStatusCategories.length], 
-    						functionalStatusNoReadmitted = new double[functionalStatusCategories.length];
-    public static double ageAverageYesReadmitted, agePopulationYesReadmitted, ageAverageNoReadmitted, agePopulationNoReadmitted = 0.0;
-    public static ArrayList<Double> ageValuesYesReadmitted = new ArrayList<Double>(), 
-    								ageValuesNoReadmitted = new ArrayList<Double>();
-    public static double[] bmiAverageYesReadmitted = new double[BMICategoryBounds.length-1], 
-    						bmiPopulationYesReadmitted = new double[BMICategoryBounds.length-1], 
-    						bmiAverageNoReadmitted = new double[BMICategoryBounds.length-1], 
-    						bmiPopulationNoReadmitted = new double[BMICategoryBounds.length-1];
-    public static ArrayList<Double> bmiValuesYesReadmitted = new ArrayList<Double>(), 
-    								bmiValuesNoReadmitted = new ArrayList<Double>();
-    public static ArrayList<ArrayList<Double>> bmiSpecificYesReadmittedList = new ArrayList<ArrayList<Double>>(), 
-    											bmiSpecificNoReadmittedList = new ArrayList<ArrayList<Double>>();
-    public static double[] meldAverageYesReadmitted = new double[MELDCategoryBounds.length-1], 
-    						meldPopulationYesReadmitted = new double[MELDCategoryBounds.length-1], 
-    						meldAverageNoReadmitted = new double[MELDCategoryBounds.length-1], 
-    						meldPopulationNoReadmitted = new double[MELDCategoryBounds.length-1];
-    public static ArrayList<Double> meldValuesYesReadmitted = new ArrayList<Double>(), 
-    								meldValuesNoReadmitted = new ArrayList<Double>();
-    public static ArrayList<ArrayList<Double>> meldSpecificYesReadmittedList = new ArrayList<ArrayList<Double>>(), 
-    											meldSpecificNoReadmittedList = new ArrayList<ArrayList<Double>>();
+    public static int[] windows = null;
+    public static int threads = 1;
+    public static int resamples = 10000;
+    public static long seed = 1;
+    public static boolean dta = false, parquet = false, mapReduce = false, meldNa = false, incremental = false, regression = false, survival = false;
+    public static File snapshot = null;
+    public static int port = -1;
+    public static int spillRecords = 0;
+    public static File[] releases = null;
     
 	public static void main(String[]args) throws Exception {
+		
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-threads")) { threads = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("-dta")) { dta = true; }
+			else if(args[i].equals("-parquet")) { parquet = true; }
+			else if(args[i].equals("-mapreduce")) { mapReduce = true; }
+			else if(args[i].equals("-releases")) {
+				String[] directories = args[++i].split(",");
+				releases = new File[directories.length];
+				for(int j = 0; j < directories.length; j++) { releases[j] = new File(directories[j].trim()); }
+			}
+			else if(args[i].equals("-meldNa")) { meldNa = true; }
+			else if(args[i].equals("-snapshot")) { snapshot = new File("cohort.snapshot"); }
+			else if(args[i].equals("-regression")) { regression = true; }
+			else if(args[i].equals("-survival")) { survival = true; }
+			else if(args[i].equals("-spill")) { spillRecords = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("-serve")) { port = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("-incremental")) { snapshot = new File("cohort.snapshot"); incremental = true; }
+			else if(args[i].equals("-resamples")) { resamples = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("-seed")) { seed = Long.parseLong(args[++i]); }
+			else if(args[i].equals("-windows")) {
+				String[] days = args[++i].split(",");
+				windows = new int[days.length];
+				for(int j = 0; j < days.length; j++) { windows[j] = Integer.parseInt(days[j].trim()); }
+			}
+			else if(args[i].equals("-generate")) {
+				STARDataGenerator generator = new STARDataGenerator();
+				generator.seed = seed;
+				long patients = Long.parseLong(args[++i]);
+				STARDataMetrics.Stage stage = STARDataMetrics.start("Generate");
+				generator.generate(new File("LIVER_DATA.csv"), new File("VariableIDs - LIVER_DATA.txt"), new File("LIVER_FOLLOWUP_DATA.csv"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), patients, threads);
+				stage.stop(patients);
+				writeMetrics();
+				return;
+			}
+			else if(args[i].equals("-toParquet")) {
+				STARDataParquet.convertLiver(new File("LIVER_DATA.csv"), new File("VariableIDs - LIVER_DATA.txt"), new File("LIVER_DATA.parquet"));
+				STARDataParquet.convertFollowUp(new File("LIVER_FOLLOWUP_DATA.csv"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), new File("LIVER_FOLLOWUP_DATA.parquet"));
+				return;
+			}
+		}
 	
 	    /**
 	    * ****************************************************************************************************************************************
@@ -68,143 +86,186 @@ public class LiverTransplantReadmissions {
 	    * ****************************************************************************************************************************************
 	    */
 		
-		for(int i = 0; i < BMICategoryBounds.length - 1; i++) { bmiSpecificYesReadmittedList.add(new ArrayList<Double>()); bmiSpecificNoReadmittedList.add(new ArrayList<Double>()); }
-		for(int i = 0; i < MELDCategoryBounds.length - 1; i++) { meldSpecificYesReadmittedList.add(new ArrayList<Double>()); meldSpecificNoReadmittedList.add(new ArrayList<Double>()); }
-				
-//		File file = new File("Stata2CSV.py");
-//		PrintStream ps = new PrintStream(file);
-//		ps.println("import pandas as pd");
-//		ps.println("import sys, getopt");
-//		ps.println("data = pd.io.stata.read_stata(sys.argv[1])");
-//		ps.println("data.to_csv(sys.argv[2])");
-//		ps.close();
-//
-//		new ProcessBuilder("cmd.exe", "/c", "py " + file.getName() + " LIVER_DATA.DTA LIVER_DATA.csv").start().waitFor();
+		if(spillRecords > 0 && (snapshot != null || mapReduce)) { throw new IllegalArgumentException("-spill keeps no follow-up days, which -snapshot, -incremental and -mapreduce need"); }
+		if(mapReduce && (dta || parquet)) { throw new IllegalArgumentException("-mapreduce reads the CSV files and cannot be combined with -dta or -parquet"); }
+		if(releases != null && !mapReduce) { throw new IllegalArgumentException("-releases needs -mapreduce"); }
+		if(releases == null) { releases = new File[] {new File(".")}; }
+		File[] liverData = new File[releases.length], followUpData = new File[releases.length];
+		for(int j = 0; j < releases.length; j++) {
+			liverData[j] = new File(releases[j], "LIVER_DATA.csv");
+			followUpData[j] = new File(releases[j], "LIVER_FOLLOWUP_DATA.csv");
+		}
+		File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+		File[] inputs = mapReduce ? concatenate(liverData, followUpData)
+						: dta ? new File[] {new File("LIVER_DATA.DTA"), new File("VariableIDs - LIVER_DATA.txt"), new File("LIVER_FOLLOWUP_DATA.DTA"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt")}
+						: parquet ? new File[] {new File("LIVER_DATA.parquet"), new File("VariableIDs - LIVER_DATA.txt"), new File("LIVER_FOLLOWUP_DATA.parquet"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt")}
+						: new File[] {new File("LIVER_DATA.csv"), new File("LIVER_FOLLOWUP_DATA.csv")};
+		STARDataSnapshot stored = null, previous = null;
+		STARDataMetrics.Stage stage;
+		if(snapshot != null) {
+			stage = STARDataMetrics.start("Open snapshot");
+			stored = STARDataSnapshot.open(snapshot, inputs);
+			stage.stop(stored == null ? 0 : stored.cohort.size);
+		}
+		STARDataIncrement increment = null;
+		STARDataFollowUpJoin join = null;
+		if(stored != null) {
+			cohort = stored.cohort;
+			join = stored.join;
+		}
+		else {
+			if(incremental) {
+				stage = STARDataMetrics.start("Read previous snapshot");
+				previous = STARDataSnapshot.read(snapshot);
+				stage.stop(previous == null ? 0 : previous.cohort.size);
+			}
+			STARDataCohort previousCohort = previous == null ? null : previous.cohort;
+			if(mapReduce) {
+				stage = STARDataMetrics.start("MapReduce job");
+				STARDataJob job = STARDataJob.run(liverData, followUpData, new File("cohort-mapreduce"), threads, timeInterval);
+				cohort = job.cohort;
+				join = job.join;
+				stage.stop(cohort.ingestedSize);
+			}
+			else if(dta) { cohort = STARDataIngest.readCohortDTA(new File("LIVER_DATA.DTA"), new File("VariableIDs - LIVER_DATA.txt"), previousCohort, threads); }
+			else if(parquet) { cohort = STARDataIngest.readCohortParquet(new File("LIVER_DATA.parquet"), new File("VariableIDs - LIVER_DATA.txt"), previousCohort, threads); }
+			else { cohort = STARDataIngest.readCohort(new File("LIVER_DATA.csv"), previousCohort, threads); }
 
-		Scanner sc = new Scanner(new File("LIVER_DATA.csv"));
-		sc.nextLine();
-		while(sc.hasNextLine()) {
-			String line = sc.nextLine();
-			ArrayList<String> fields = new ArrayList<String>(Arrays.asList(line.split(",")));
-			String code = fields.get(43), TRR = fields.get(377), dischargeDate = fields.get(324), gender = fields.get(5),
-					age = fields.get(345), bmicalc = fields.get(45), diab = fields.get(22), funcstattrr = fields.get(119), hcv = fields.get(139), 
-					cr = fields.get(112), bili = fields.get(106), inr = fields.get(109), na = fields.get(113), alb = fields.get(93), dialysis = fields.get(107), MELD = "";
-			
-			boolean ptCodeIsValid = code.length() > 0 && TRR.length() > 0 && code.charAt(0) >= '0' && code.charAt(0) <= '9' && TRR.charAt(0) == 'A' && age.charAt(0) >= '0' && age.charAt(0) <= '9';	
-            
-            if (ptCodeIsValid) {
-            	if(cr.length() > 0 && bili.length() > 0 && inr.length() > 0 && na.length() > 0 && alb.length() > 0 && dialysis.length() > 0 && gender.length() > 0 && cr.contains(".") && bili.contains(".") && inr.contains(".") && na.contains(".") && alb.contains(".")) {
-        			double meld3_0 = 0.0, quantCr = Double.parseDouble(cr), quantBili = Double.parseDouble(bili), quantInr = Double.parseDouble(inr), quantNa = Double.parseDouble(na), quantAlb = Double.parseDouble(alb);
-        			//MELD 3.0 = 1.33*(Female) + 4.56*ln(Serum bilirubin) + 0.82*(137 - Sodium) – 0.24*(137 - Sodium)*ln(Serum bilirubin) + 9.09*ln(INR) + 11.14*ln(Serum creatinine) + 1.85*(3.5 – Serum albumin) – 1.83*(3.5 – Serum albumin)*ln(Serum creatinine) + 6
-        			if(gender.charAt(0) == 'F') { meld3_0 += 1.33; }
-        			if(quantBili < 1) { quantBili = 1;}
-        			if(quantInr < 1) { quantInr = 1;}
-        			if(quantCr < 1) { quantCr = 1;}
-        			if(quantNa < 125) { quantNa = 125; }
-        			else if(quantNa > 137) { quantNa = 137; }
-        			if(quantAlb < 1.5) { quantAlb = 1.5; }
-        			else if(quantAlb > 3.5) { quantAlb = 3.5; }
-        			if(quantCr > 3 || dialysis.equals("Y")) { quantCr = 3; }
-        			
-        			meld3_0 += 
-        						4.56*Math.log(quantBili) 
-        						+ 0.82*(137 - quantNa) 
-        						- 0.24*(137 - quantNa)*Math.log(quantBili) 
-        						+ 9.09*Math.log(quantInr) 
-        						+ 11.14*Math.log(quantCr) 
-        						+ 1.85*(3.5 - quantAlb) 
-        						- 1.83*(3.5 - quantAlb)*Math.log(quantCr) 
-        						+ 6;
-        			if(meld3_0 >= 40) { meld3_0 = 40; }
-        			MELD = String.valueOf(Math.round(meld3_0));
-        		}
-            	else { continue; }
-            	
-                Integer codeInt = Integer.valueOf(code.substring(0, code.indexOf('.')));
-                Integer ageInt = Integer.valueOf(age.substring(0, age.indexOf('.')));
-                
-                if (ageInt >= 18 && ageInt <= 100 && dischargeDate.length() > 0) {
-                    if (!patientDatabase.containsKey(codeInt)) {
-                        STARDataPatient patient = new STARDataPatient(age, bmicalc, diab, dischargeDate, funcstattrr, hcv, MELD, code, TRR);
-                        patientDatabase.put(codeInt, patient);
-                    } else {
-                        patientDatabase.get(codeInt).DISCHARGEDATE_DATA.add(dischargeDate);
-                        if (bmicalc.length() > 0) { patientDatabase.get(codeInt).BMICALC_DATA.add(bmicalc); }
-                        if (MELD.length() > 0) { patientDatabase.get(codeInt).MELD_DATA.add(MELD); }
-                    }
-                }
-            }
+			if(mapReduce) { /* joined by the job */ }
+			else if(spillRecords > 0 && dta) { join = STARDataSpillJoin.joinDTA(new File("LIVER_FOLLOWUP_DATA.DTA"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), cohort, threads, spillDirectory, spillRecords); }
+			else if(spillRecords > 0 && parquet) { join = STARDataSpillJoin.joinParquet(new File("LIVER_FOLLOWUP_DATA.parquet"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), cohort, threads, spillDirectory, spillRecords); }
+			else if(spillRecords > 0) { join = STARDataSpillJoin.join(new File("LIVER_FOLLOWUP_DATA.csv"), cohort, threads, spillDirectory, spillRecords); }
+			else if(dta) { join = STARDataFollowUpJoin.joinDTA(new File("LIVER_FOLLOWUP_DATA.DTA"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), cohort, previousCohort, threads); }
+			else if(parquet) { join = STARDataFollowUpJoin.joinParquet(new File("LIVER_FOLLOWUP_DATA.parquet"), new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), cohort, previousCohort, threads); }
+			else { join = STARDataFollowUpJoin.join(new File("LIVER_FOLLOWUP_DATA.csv"), cohort, previousCohort, threads); }
+
+			if(previous != null) {
+				stage = STARDataMetrics.start("Incremental diff");
+				increment = STARDataIncrement.compare(previous.cohort, cohort);
+				stage.stop(cohort.size);
+			}
+			if(snapshot != null) {
+				stage = STARDataMetrics.start("Write snapshot");
+				stored = new STARDataSnapshot();
+				stored.cohort = cohort;
+				stored.join = join;
+				stored.write(snapshot, inputs);
+				stage.stop(cohort.size);
+			}
 		}
-		sc.close();
 		
-		System.out.println("Population Size: " + patientDatabase.size());
+		if(meldNa) { STARDataMELD.rescore(cohort, STARDataMELD.MELD_NA); }
 		
-		Object[] arr = patientDatabase.keySet().toArray();
-		
-		for (int i = 0; i < arr.length; i++) {
-	    	STARDataPatient patient = patientDatabase.get((Integer) arr[i]);
-	    	if (! (patient.DIAB_DATA.equals("1.0") || patient.DIAB_DATA.equals("2.0") || patient.DIAB_DATA.equals("3.0") || patient.DIAB_DATA.equals("4.0") || patient.DIAB_DATA.equals("5.0")) ) { patientDatabase.remove((Integer) arr[i]); }
-	    	else if (! (patient.HCVSEROSTATUS_DATA.equals("P") || patient.HCVSEROSTATUS_DATA.equals("N"))  ) { patientDatabase.remove((Integer) arr[i]); }
-	    	else if (patient.FUNCSTATTRR_DATA.length() != 6) { patientDatabase.remove((Integer) arr[i]); }
-	    	else if(patient.BMICALC_DATA.isEmpty()) { patientDatabase.remove((Integer) arr[i]); }
-	    	else if(patient.MELD_DATA.isEmpty()) { patientDatabase.remove((Integer) arr[i]); }
-	    }
-		
-		System.out.println("Population Size: " + patientDatabase.size());
-		
-	    arr = patientDatabase.keySet().toArray();
-	    for (int i = 0; i < arr.length; i++) {
-	        STARDataPatient patient = patientDatabase.get((Integer) arr[i]);
-	        ArrayList<Double> bmiDoubles = new ArrayList<Double>();
-            for (int j = 0; j < patient.BMICALC_DATA.size(); j++) {
-                bmiDoubles.add(Double.valueOf(patient.BMICALC_DATA.get(j)));
-            }
-            patient.averageBMI = Mean(bmiDoubles);
-	        ArrayList<Double> meldDoubles = new ArrayList<Double>();
-            for (int j = 0; j < patient.MELD_DATA.size(); j++) {
-        		meldDoubles.add(Double.valueOf(patient.MELD_DATA.get(j)));
-            }
-            patient.averageMELD = Mean(meldDoubles);
-	    }	    
+		System.out.println("Population Size: " + cohort.ingestedSize);
+		System.out.println("Population Size: " + cohort.size);
+		System.out.println("Follow-up hospitalizations matched: " + join.matchedRows + " (" + join.duplicateRows + " duplicates), without a matching patient: " + join.unmatchedRows);
+		if(increment != null) { System.out.println("Patients since the previous release: " + increment); }
 
-//		new ProcessBuilder("cmd.exe", "/c", "py " + "Stata2CSV.py" + " LIVER_FOLLOWUP_DATA.DTA LIVER_FOLLOWUP_DATA.csv").start().waitFor();
-		
-		sc = new Scanner(new File("LIVER_FOLLOWUP_DATA.csv"));
-		while(sc.hasNextLine()){
-			String line = sc.nextLine();
-			ArrayList<String> fields = new ArrayList<String>(Arrays.asList(line.split(",")));
-			for(int i = 0; i < fields.size(); i++) {
-				String code = fields.get(51), TRR = fields.get(56);
-				boolean ptCodeIsValid = code.length() > 0 &&  TRR.length() > 0 &&  code.charAt(0) >= '0' &&  code.charAt(0) <= '9' && TRR.charAt(0) == 'A';
-	            if (ptCodeIsValid) {
-	                Integer codeInt = Integer.valueOf(code.substring(0, code.indexOf('.')));
-	                String Hosp = fields.get(5), pxStatDate = fields.get(54);  //PX_STAT_DATE
-	                boolean patientExists = patientDatabase.containsKey(codeInt), hospitalized = Hosp.length() == 1 && Hosp.charAt(0) == 'Y', pxStatDateIsValid = (pxStatDate.length() > 7 && pxStatDate.charAt(4) == '-' && pxStatDate.charAt(7) == '-');
-	                if (patientExists && hospitalized && pxStatDateIsValid) { patientDatabase.get(codeInt).addFollowUp(Hosp, pxStatDate); }
-	            }
-			}
-		}
-		sc.close();
+	    if(port >= 0) {
+	    	STARDataServer server = new STARDataServer(cohort, BMICategoryBounds, MELDCategoryBounds, 256);
+	    	server.start(port, threads);
+	    	System.out.println("Answering queries on http://127.0.0.1:" + server.port() + "/query");
+	    	writeMetrics();
+	    	return;
+	    }
 
-	    arr = patientDatabase.keySet().toArray();
-	    for (int i = 0; i < arr.length; i++) {
-	        STARDataPatient patient = patientDatabase.get((Integer) arr[i]);
-	        for (int j = 0; j < patient.followUps.size(); j++) {
-	            STARDataFollowUp followUp = patient.followUps.get(j);
-	            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ENGLISH);
-	            LocalDate date2 = LocalDate.parse(followUp.PXSTATDATE_FOLLOWUP, formatter);
-	            for (int k = 0; k < patient.DISCHARGEDATE_DATA.size(); k++) {
-	                LocalDate date = LocalDate.parse(patient.DISCHARGEDATE_DATA.get(k), formatter);
-	                int difference = (int) ChronoUnit.DAYS.between(date, date2);
-	                patientDatabase.get((Integer) arr[i]).followUps.get(j).daysSinceDischarge.add(difference);
-	                if (difference > 0 && difference <= timeInterval) {
-                        patientDatabase.get((Integer) arr[i]).readmitted = true;
-	                }
-	            }
-	        }
-	    }    
+	    if(windows == null) { windows = new int[] {timeInterval}; }
+	    
+	    System.out.println("Population Size: " + cohort.size);
 	    
-	    System.out.println("Population Size: " + patientDatabase.size());
+	    STARDataCube.Dimension[] dimensions = dimensions();
+	    STARDataCube.Measure[] measures = {STARDataCube.AGE, STARDataCube.BMI, STARDataCube.MELD};
+	    boolean storeCubes = snapshot != null && !meldNa;
+	    for(int window : windows) {
+	    	stage = STARDataMetrics.start("Readmissions");
+	    	cohort.markReadmissions(window);
+	    	stage.stop(cohort.size);
+	    	if(windows.length > 1) { System.out.println("\n\n====================================================================================\nReadmission within " + window + " days\n===================================================================================="); }
+	    	stage = STARDataMetrics.start("Statistics cube");
+	    	STARDataCube cube = storeCubes ? stored.cube(window, dimensions, measures) : null;
+	    	if(cube == null && storeCubes && increment != null) {
+	    		cube = previous.cube(window, dimensions, measures);
+	    		if(cube != null) { increment.update(cube, previous.cohort, cohort, window, threads); }
+	    	}
+	    	if(cube == null) { cube = STARDataCube.fill(cohort, dimensions, measures, threads); }
+	    	if(storeCubes) { stored.putCube(window, cube); }
+	    	stage.stop(cohort.size);
+	    	stage = STARDataMetrics.start("Report");
+	    	report(cube);
+	    	stage.stop(cohort.size);
+	    	if(regression) {
+	    		stage = STARDataMetrics.start("Logistic regression");
+	    		STARDataRegression fit = STARDataRegression.fit(cohort, STARDataCube.READMITTED, covariates(), threads);
+	    		stage.stop(fit.patients);
+	    		System.out.println("\n------------------------------------------------------------------------------------");
+	    		System.out.println("ADJUSTED ODDS RATIOS");
+	    		System.out.println("------------------------------------------------------------------------------------\n");
+	    		System.out.print(fit);
+	    	}
+	    }
+	    if(storeCubes) { stored.writeCubes(snapshot); }
+	    if(survival) {
+	    	int[] days = windows.clone();
+	    	Arrays.sort(days);
+	    	STARDataCube.Dimension[] strata = dimensions();
+	    	strata[0] = STARDataSurvival.COHORT;
+	    	stage = STARDataMetrics.start("Survival");
+	    	STARDataSurvival[] curves = STARDataSurvival.estimate(cohort, strata, days[days.length - 1], threads);
+	    	stage.stop(cohort.size);
+	    	System.out.println("\n------------------------------------------------------------------------------------");
+	    	System.out.println("TIME TO READMISSION (Kaplan-Meier, censored at " + days[days.length - 1] + " days)");
+	    	System.out.println("------------------------------------------------------------------------------------\n");
+	    	for(STARDataSurvival curve : curves) { System.out.print(curve.report(days)); }
+	    }
+	    writeMetrics();
+	}
+
+	private static File[] concatenate(File[] first, File[] second) {
+		File[] files = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, files, first.length, second.length);
+		return files;
+	}
+
+	/**
+	 * Prints the stage timings and counters to stderr, keeping stdout to the report, and writes them to
+	 * metrics.json.
+	 */
+	public static void writeMetrics() throws Exception {
+		System.err.print(STARDataMetrics.summary());
+		STARDataMetrics.write(new File("metrics.json"));
+	}
+
+	/**
+	 * READMITTED, DIABETES, HCV, FUNCTIONAL_STATUS and the BMI and MELD categories, the dimensions of the
+	 * cube behind report.
+	 */
+	public static STARDataCube.Dimension[] dimensions() {
+		return new STARDataCube.Dimension[] {STARDataCube.READMITTED, STARDataCube.DIABETES, STARDataCube.HCV, STARDataCube.FUNCTIONAL_STATUS,
+												STARDataCube.binned("BMI", BMICategoryBounds, STARDataCube.BMI), STARDataCube.binned("MELD", MELDCategoryBounds, STARDataCube.MELD)};
+	}
+
+	/**
+	 * Diabetes, HCV, functional status (against its most common level), age, BMI and MELD, the
+	 * covariates of the -regression model.
+	 */
+	public static STARDataCube.Measure[] covariates() {
+		STARDataCube.Measure[] functionalStatus = STARDataRegression.indicators(cohort, STARDataCube.FUNCTIONAL_STATUS);
+		STARDataCube.Measure[] covariates = new STARDataCube.Measure[functionalStatus.length + 5];
+		covariates[0] = STARDataRegression.indicator(STARDataCube.DIABETES, STARDataCube.YES);
+		covariates[1] = STARDataRegression.indicator(STARDataCube.HCV, STARDataCube.YES);
+		System.arraycopy(functionalStatus, 0, covariates, 2, functionalStatus.length);
+		covariates[covariates.length - 3] = STARDataCube.AGE;
+		covariates[covariates.length - 2] = STARDataCube.BMI;
+		covariates[covariates.length - 1] = STARDataCube.MELD;
+		return covariates;
+	}
+
+	/**
+	 * Stratified tables for the readmission flags currently set on the cohort, all read off one cube over
+	 * dimensions().
+	 */
+	public static void report(STARDataCube cube) throws Exception {
+		STARDataCube.Dimension bmi = cube.dimensions[4], meld = cube.dimensions[5];
 	    
 	    /**
 	    * *********************************************************************************************************************************
@@ -217,98 +278,13 @@ public class LiverTransplantReadmissions {
 	    * *********************************************************************************************************************************
 	    */
 	    
-	    
-	    arr = patientDatabase.keySet().toArray();
-	    for (int i = 0; i < arr.length; i++) {
-	        STARDataPatient patient = patientDatabase.get((Integer) arr[i]);
-	        
-	        if (patient.DIAB_DATA.equals("1.0")) {
-	        	if(patient.readmitted) { noDiabetesYesReadmitted++; }
-	        	else { noDiabetesNoReadmitted++; }
-	        } 
-	        else if (patient.DIAB_DATA.equals("2.0") || patient.DIAB_DATA.equals("3.0") || patient.DIAB_DATA.equals("4.0") || patient.DIAB_DATA.equals("5.0")) {
-	        	if(patient.readmitted) { yesDiabetesYesReadmitted++; }
-	        	else { yesDiabetesNoReadmitted++; }
-	        }
-	        
-	        
-	        if (patient.HCVSEROSTATUS_DATA.equals("P")) {
-                if (patient.readmitted) { yesHCVYesReadmitted++; }
-                else { yesHCVNoReadmitted++; }
-	        }
-	        else if (patient.HCVSEROSTATUS_DATA.equals("N")) {
-                if (patient.readmitted) { noHCVYesReadmitted++; }
-                else { noHCVNoReadmitted++; }
-	        }
-	        
-	        if (patient.FUNCSTATTRR_DATA.length() == 6) {
-	            int funcstat = Double.valueOf(patient.FUNCSTATTRR_DATA).intValue();
-                if (patient.readmitted) { functionalStatusYesReadmitted[functionalStatusMap.get(funcstat)]++; }
-                else { functionalStatusNoReadmitted[functionalStatusMap.get(funcstat)]++; }
-		    } 
-	        
-            if (patient.readmitted) { ageAverageYesReadmitted += Double.valueOf(patient.AGE_DATA); agePopulationYesReadmitted++; ageValuesYesReadmitted.add(Double.valueOf(patient.AGE_DATA)); } 
-            else { ageAverageNoReadmitted += Double.valueOf(patient.AGE_DATA); agePopulationNoReadmitted++; ageValuesNoReadmitted.add(Double.valueOf(patient.AGE_DATA)); }
-
-	        double b = patient.averageBMI;
-            if (patient.readmitted) {
-                for (int k = 0; k < BMICategoryBounds.length - 1; k++) {
-                    if (b >= BMICategoryBounds[k] && b < BMICategoryBounds[k + 1]) { 
-                    	bmiAverageYesReadmitted[k] += b; 
-                    	bmiPopulationYesReadmitted[k]++; 
-                    	bmiSpecificYesReadmittedList.get(k).add(b); 
-                    }
-                }
-            	bmiValuesYesReadmitted.add(b); 
-            }
-            else {
-                for (int k = 0; k < BMICategoryBounds.length - 1; k++) {
-                    if (b >= BMICategoryBounds[k] && b < BMICategoryBounds[k + 1]) { 
-                    	bmiAverageNoReadmitted[k] += b; 
-                    	bmiPopulationNoReadmitted[k]++; 
-                    	bmiSpecificNoReadmittedList.get(k).add(b); 
-                    }
-                }
-            	bmiValuesNoReadmitted.add(b); 
-            }
-            
-	        b = patient.averageMELD;
-            if (patient.readmitted) {
-                for (int k = 0; k < MELDCategoryBounds.length - 1; k++) {
-                    if (b >= MELDCategoryBounds[k] && b < MELDCategoryBounds[k + 1]) { 
-                    	meldAverageYesReadmitted[k] += b; 
-                    	meldPopulationYesReadmitted[k]++; 
-                    	meldSpecificYesReadmittedList.get(k).add(b);
-                    }
-                }
-            	meldValuesYesReadmitted.add(b); 
-            } 
-            else {
-                for (int k = 0; k < MELDCategoryBounds.length - 1; k++) {
-                    if (b >= MELDCategoryBounds[k] && b < MELDCategoryBounds[k + 1]) { 
-                    	meldAverageNoReadmitted[k] += b;
-                    	meldPopulationNoReadmitted[k]++; 
-                    	meldSpecificNoReadmittedList.get(k).add(b);
-                    }
-                }
-            	meldValuesNoReadmitted.add(b); 
-            }
-	    }
-	    
-	    
-	    
-	    for (int i = 0; i < meldAverageYesReadmitted.length; i++) { 
-	    	meldAverageYesReadmitted[i] /= meldPopulationYesReadmitted[i]; 
-	    	meldAverageNoReadmitted[i] /= meldPopulationNoReadmitted[i]; 
-	    }
-	    
-	    for (int i = 0; i < bmiAverageYesReadmitted.length; i++) { 
-	    	bmiAverageYesReadmitted[i] /= bmiPopulationYesReadmitted[i]; 
-	    	bmiAverageNoReadmitted[i] /= bmiPopulationNoReadmitted[i]; 
-	    }
-	    
-    	ageAverageYesReadmitted /= agePopulationYesReadmitted;
-    	ageAverageNoReadmitted /= agePopulationNoReadmitted;
+	    STARDataCube readmission = cube.marginal(STARDataCube.READMITTED);
+	    STARDataCube diabetes = cube.marginal(STARDataCube.DIABETES, STARDataCube.READMITTED);
+	    STARDataCube hcv = cube.marginal(STARDataCube.HCV, STARDataCube.READMITTED);
+	    STARDataCube functionalStatus = cube.marginal(STARDataCube.FUNCTIONAL_STATUS, STARDataCube.READMITTED);
+	    STARDataCube bmiStrata = cube.marginal(bmi, STARDataCube.READMITTED);
+	    STARDataCube meldStrata = cube.marginal(meld, STARDataCube.READMITTED);
+	    int YES = STARDataCube.YES, NO = STARDataCube.NO;
 
 	    /**
 	    * ******************************************
@@ -323,49 +299,57 @@ public class LiverTransplantReadmissions {
 		System.out.println("\n------------------------------------------------------------------------------------");
 		System.out.println("Diabetes");
 		System.out.println("------------------------------------------------------------------------------------\n");	    
-        System.out.println("Diabetics readmitted: " + yesDiabetesYesReadmitted + "\nNondiabetics readmitted: " + noDiabetesYesReadmitted + "\nDiabetics not readmitted: " + yesDiabetesNoReadmitted + "\nNondiabetics not readmitted: " + noDiabetesNoReadmitted);
+        System.out.println("Diabetics readmitted: " + diabetes.count(YES, YES) + "\nNondiabetics readmitted: " + diabetes.count(NO, YES) + "\nDiabetics not readmitted: " + diabetes.count(YES, NO) + "\nNondiabetics not readmitted: " + diabetes.count(NO, NO));
+        System.out.println("Readmission rate, diabetics - nondiabetics: " + resample(STARDataCube.DIABETES, null, 0, READMISSION));
         
 		System.out.println("\n------------------------------------------------------------------------------------");
 		System.out.println("HCV");
 		System.out.println("------------------------------------------------------------------------------------\n");
-        System.out.println("HCV readmitted: " + yesHCVYesReadmitted + "\nNonHCV readmitted: " + noHCVYesReadmitted + "\nHCV not readmitted: " + yesHCVNoReadmitted + "\nNonHCV not readmitted: " + noHCVNoReadmitted);
+        System.out.println("HCV readmitted: " + hcv.count(YES, YES) + "\nNonHCV readmitted: " + hcv.count(NO, YES) + "\nHCV not readmitted: " + hcv.count(YES, NO) + "\nNonHCV not readmitted: " + hcv.count(NO, NO));
+        System.out.println("Readmission rate, HCV - nonHCV: " + resample(STARDataCube.HCV, null, 0, READMISSION));
         
 	    System.out.println("\n------------------------------------------------------------------------------------");
 		System.out.println("FUNCTIONAL STATUS");
 		System.out.println("------------------------------------------------------------------------------------\n");
-	    for (int i = 0; i < functionalStatusYesReadmitted.length; i++) {
-	    	System.out.println(functionalStatusCategories[i] + "\t" + functionalStatusYesReadmitted[i] + "\t" + functionalStatusNoReadmitted[i]);
+	    for (int i = 0; i < functionalStatusCategories.length; i++) {
+	    	System.out.println(functionalStatusCategories[i] + "\t" + (double) functionalStatus.count(i, YES) + "\t" + (double) functionalStatus.count(i, NO));
 	    }
 	    
 		System.out.println("\n------------------------------------------------------------------------------------");
 		System.out.println("AGE");
 		System.out.println("------------------------------------------------------------------------------------\n");
 
-	    System.out.println("Age of readmitted " + ageAverageYesReadmitted);
-	    System.out.println("Number of readmitted " + agePopulationYesReadmitted);
-	    System.out.println("Age of not readmitted " + ageAverageNoReadmitted);
-	    System.out.println("Number of not readmitted " + agePopulationNoReadmitted);
-        System.out.println("T Test: " + tTest(ageValuesYesReadmitted, ageValuesNoReadmitted));
+		STARDataStatistics ageYesReadmitted = readmission.statistics(STARDataCube.AGE, YES), ageNoReadmitted = readmission.statistics(STARDataCube.AGE, NO);
+	    System.out.println("Age of readmitted " + ageYesReadmitted.mean());
+	    System.out.println("Number of readmitted " + (double) ageYesReadmitted.count);
+	    System.out.println("Age of not readmitted " + ageNoReadmitted.mean());
+	    System.out.println("Number of not readmitted " + (double) ageNoReadmitted.count);
+        System.out.println("T Test: " + tTest(ageYesReadmitted, ageNoReadmitted));
+        System.out.println(resample(STARDataCube.READMITTED, null, 0, STARDataCube.AGE));
 	    
 	    
 	    System.out.println("\n------------------------------------------------------------------------------------");
 		System.out.println("BMI");
 		System.out.println("------------------------------------------------------------------------------------\n");
 		
-		System.out.println("Average BMI of those Hospitalized: " + Mean(bmiValuesYesReadmitted) );
-		System.out.println("Average BMI of those Not Hospitalized: " + Mean(bmiValuesNoReadmitted) );
-		System.out.println("Sample Size: " + (bmiValuesYesReadmitted.size() +  bmiValuesNoReadmitted.size()) );
+		STARDataStatistics bmiYesReadmitted = readmission.statistics(STARDataCube.BMI, YES), bmiNoReadmitted = readmission.statistics(STARDataCube.BMI, NO);
+		System.out.println("Average BMI of those Hospitalized: " + bmiYesReadmitted.mean() );
+		System.out.println("Average BMI of those Not Hospitalized: " + bmiNoReadmitted.mean() );
+		System.out.println("Sample Size: " + (bmiYesReadmitted.count +  bmiNoReadmitted.count) );
 		
-		System.out.println("T Test Score of entire sample: " + tTest(bmiValuesYesReadmitted, bmiValuesNoReadmitted) + "\n");
+		System.out.println("T Test Score of entire sample: " + tTest(bmiYesReadmitted, bmiNoReadmitted));
+		System.out.println(resample(STARDataCube.READMITTED, null, 0, STARDataCube.BMI) + "\n");
 		
 		for(int i = 0; i < BMICategoryBounds.length-1; i++) {
-        	System.out.println("[" + BMICategoryBounds[i] + ", " + BMICategoryBounds[i+1] + ")"
-        							+ "\n\tBMI of those readmitted: " + bmiAverageYesReadmitted[i] 
-        							+ "\n\tBMI of those not readmitted: " + bmiAverageNoReadmitted[i]
-        							+ "\n\tT Test Score: " + tTest(bmiSpecificYesReadmittedList.get(i), bmiSpecificNoReadmittedList.get(i))
-        							+ "\n\tNumber of those readmitted: " + bmiPopulationYesReadmitted[i]
-   									+ "\n\tNumber of those not readmitted: " + bmiPopulationNoReadmitted[i]
-   									+ "\n\tPercentage of those readmitted: " + bmiPopulationYesReadmitted[i]*100/(bmiPopulationYesReadmitted[i]+bmiPopulationNoReadmitted[i])
+			STARDataStatistics yes = bmiStrata.statistics(STARDataCube.BMI, i, YES), no = bmiStrata.statistics(STARDataCube.BMI, i, NO);
+        	System.out.println(bmi.labels[i]
+        							+ "\n\tBMI of those readmitted: " + yes.mean() 
+        							+ "\n\tBMI of those not readmitted: " + no.mean()
+        							+ "\n\tT Test Score: " + tTest(yes, no)
+        							+ "\n\t" + resample(STARDataCube.READMITTED, bmi, i, STARDataCube.BMI)
+        							+ "\n\tNumber of those readmitted: " + (double) yes.count
+   									+ "\n\tNumber of those not readmitted: " + (double) no.count
+   									+ "\n\tPercentage of those readmitted: " + yes.count*100.0/(yes.count+no.count)
         	);
         }
 	    
@@ -374,55 +358,50 @@ public class LiverTransplantReadmissions {
 		System.out.println("MELD");
 		System.out.println("------------------------------------------------------------------------------------\n");
 		
-		System.out.println("Average MELD of those Hospitalized: " + Mean(meldValuesYesReadmitted) );
-		System.out.println("Average MELD of those Not Hospitalized: " + Mean(meldValuesNoReadmitted) );
-		System.out.println("Sample Size: " + (meldValuesYesReadmitted.size() +  meldValuesNoReadmitted.size()) );
-		System.out.println("Sample Size: " + (sum(meldPopulationYesReadmitted) + sum(meldPopulationNoReadmitted)) );
+		STARDataStatistics meldYesReadmitted = readmission.statistics(STARDataCube.MELD, YES), meldNoReadmitted = readmission.statistics(STARDataCube.MELD, NO);
+		System.out.println("Average MELD of those Hospitalized: " + meldYesReadmitted.mean() );
+		System.out.println("Average MELD of those Not Hospitalized: " + meldNoReadmitted.mean() );
+		System.out.println("Sample Size: " + (meldYesReadmitted.count +  meldNoReadmitted.count) );
+		long meldInRange = 0;
+		for(int i = 0; i < MELDCategoryBounds.length-1; i++) { meldInRange += meldStrata.count(i, YES) + meldStrata.count(i, NO); }
+		System.out.println("Sample Size: " + (double) meldInRange );
 	    
-	    System.out.println("T Test Score of entire sample: " + tTest(meldValuesYesReadmitted, meldValuesNoReadmitted) + "\n");
+	    System.out.println("T Test Score of entire sample: " + tTest(meldYesReadmitted, meldNoReadmitted));
+	    System.out.println(resample(STARDataCube.READMITTED, null, 0, STARDataCube.MELD) + "\n");
         
         for(int i = 0; i < MELDCategoryBounds.length-1; i++) {
-        	System.out.println("[" + MELDCategoryBounds[i] + ", " + MELDCategoryBounds[i+1] + ")"
-        							+ "\n\tMELD of those readmitted: " + meldAverageYesReadmitted[i] 
-        							+ "\n\tMELD of those not readmitted: " + meldAverageNoReadmitted[i]
-        							+ "\n\tT Test Score: " + tTest(meldSpecificYesReadmittedList.get(i), meldSpecificNoReadmittedList.get(i))
-        							+ "\n\tNumber of those readmitted: " + meldPopulationYesReadmitted[i]
-   									+ "\n\tNumber of those not readmitted: " + meldPopulationNoReadmitted[i]
-   									+ "\n\tPercentage of those readmitted: " + meldPopulationYesReadmitted[i]*100/(meldPopulationYesReadmitted[i]+meldPopulationNoReadmitted[i])
+			STARDataStatistics yes = meldStrata.statistics(STARDataCube.MELD, i, YES), no = meldStrata.statistics(STARDataCube.MELD, i, NO);
+        	System.out.println(meld.labels[i]
+        							+ "\n\tMELD of those readmitted: " + yes.mean() 
+        							+ "\n\tMELD of those not readmitted: " + no.mean()
+        							+ "\n\tT Test Score: " + tTest(yes, no)
+        							+ "\n\t" + resample(STARDataCube.READMITTED, meld, i, STARDataCube.MELD)
+        							+ "\n\tNumber of those readmitted: " + (double) yes.count
+   									+ "\n\tNumber of those not readmitted: " + (double) no.count
+   									+ "\n\tPercentage of those readmitted: " + yes.count*100.0/(yes.count+no.count)
         	);
         }
 	    
-	    System.out.println("\n\nPopulation Size: " + patientDatabase.size());
+	    System.out.println("\n\nPopulation Size: " + cohort.size);
 	}
 
-    public static double sum(double[] arr) {
-        double total = 0;
-        for (int i = 0; i < arr.length; i++) { total += arr[i]; }
-        return total;
-    }
-
-    public static double Mean(ArrayList<Double> arr) {
-        double sum = 0;
-        for (int i = 0; i < arr.size(); i++) { sum += arr.get(i); }
-        return sum / arr.size();
-    }
-
-    public static double Mean(double[] arr) {
-        double sum = 0;
-        for (int i = 0; i < arr.length; i++) { sum += arr[i]; }
-        return sum / arr.length;
-    }
+    /**
+     * 1 for a readmitted patient, so that its mean over a group is the group's readmission rate.
+     */
+    public static final STARDataCube.Measure READMISSION = new STARDataCube.Measure("Readmission") {
+    	public double value(STARDataCohort cohort, int patient) { return cohort.readmitted[patient] ? 1 : 0; }
+    };
 
-    public static double standardDeviation(ArrayList<Double> arr, double mean) {
-        double sum = 0;
-        for (int i = 0; i < arr.size(); i++) { sum += Math.pow(arr.get(i) - mean, 2); }
-        return Math.sqrt(sum / (arr.size() - 1));
+    /**
+     * Permutation p-value and bootstrap CI of the difference in mean measure between the YES and NO groups,
+     * within one stratum (or the whole cohort when stratum is null).
+     */
+    public static STARDataResampling resample(STARDataCube.Dimension groups, STARDataCube.Dimension stratum, int index, STARDataCube.Measure measure) throws Exception {
+    	double[][] samples = STARDataResampling.samples(cohort, groups, stratum, index, measure);
+    	return STARDataResampling.compare(samples[0], samples[1], resamples, seed, threads);
     }
 
-    public static double tTest(ArrayList<Double> arr1, ArrayList<Double> arr2) {
-        double mean1 = Mean(arr1), mean2 = Mean(arr2);
-        double sd1 = standardDeviation(arr1, mean1), sd2 = standardDeviation(arr2, mean2);
-        double t_test = (mean1 - mean2) / Math.sqrt((sd1 * sd1) / arr1.size() + (sd2 * sd2) / arr2.size());
-        return Math.abs(t_test);
+    public static double tTest(STARDataStatistics sample1, STARDataStatistics sample2) {
+        return STARDataStatistics.tTest(sample1, sample2);
     }	
-}
\ No newline at end of file
+}
@@ -0,0 +1,283 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that the fast paths give the same results as the reference ones. Prints each check and exits
+ * with status 1 if any fails. Run with mvn -P checks test-compile exec:exec, which adds the
+ * jdk.incubator.vector module so the vector MELD is checked too. The STAR files are generated by
+ * {@link STARDataGenerator} into a temporary directory, with the "VariableIDs" files read from the
+ * working directory (the repository root).
+ */
+public class STARDataChecks {
+
+	private static final long SEED = 7;
+	private static final int PATIENTS = 30000;
+	private static final int[] WINDOWS = {30, 90};
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		checkMELD();
+		File directory = File.createTempFile("STARDataChecks", "");
+		if (!directory.delete() || !directory.mkdir()) { throw new IllegalStateException("Cannot create " + directory); }
+		try {
+			STARDataGenerator generator = new STARDataGenerator();
+			generator.seed = SEED;
+			generator.generate(new File(directory, "LIVER_DATA.csv"), new File("VariableIDs - LIVER_DATA.txt"), new File(directory, "LIVER_FOLLOWUP_DATA.csv"),
+								new File("VariableIDs - LIVER_FOLLOWUP_DATA.txt"), PATIENTS, threads);
+			checkIncremental(directory, threads);
+			checkSpillJoin(directory, threads);
+			checkReleases(directory, threads);
+		} finally {
+			delete(directory);
+		}
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	private static void check(boolean passed, String description) {
+		System.out.println((passed ? "ok      " : "FAILED  ") + description);
+		if (!passed) { failures++; }
+	}
+
+	/**
+	 * MELD_3_0 against MELD_3_0_SCALAR, bit for bit, on random labs across and beyond the clamps, the
+	 * clamp bounds themselves and missing values.
+	 */
+	static void checkMELD() {
+		if (STARDataMELD.MELD_3_0 == STARDataMELD.MELD_3_0_SCALAR) {
+			System.out.println("skipped MELD 3.0 vector = scalar: run with --add-modules jdk.incubator.vector");
+			return;
+		}
+		SplittableRandom random = new SplittableRandom(SEED);
+		double[][] bounds = {{1}, {1}, {1, 3}, {125, 137}, {1.5, 3.5}};
+		STARDataMELD labs = new STARDataMELD(1 << 20);
+		for (int i = 0; i < 1 << 20; i++) {
+			double[] values = {0.1 + random.nextDouble() * 40, 0.5 + random.nextDouble() * 5, 0.2 + random.nextDouble() * 6, 115 + random.nextDouble() * 35, 0.5 + random.nextDouble() * 4.5};
+			for (int lab = 0; lab < values.length; lab++) {
+				int pick = random.nextInt(100);
+				if (pick < 5) { values[lab] = bounds[lab][pick % bounds[lab].length]; }
+				else if (pick == 5) { values[lab] = Double.NaN; }
+			}
+			labs.add(random.nextBoolean(), values[0], values[1], values[2], values[3], values[4], random.nextInt(10) == 0);
+		}
+		float[] vector = new float[labs.size], scalar = new float[labs.size];
+		STARDataMELD.MELD_3_0.score(labs, 0, labs.size, vector);
+		STARDataMELD.MELD_3_0_SCALAR.score(labs, 0, labs.size, scalar);
+		int differences = 0;
+		for (int i = 0; i < labs.size; i++) {
+			if (Float.floatToRawIntBits(vector[i]) != Float.floatToRawIntBits(scalar[i])) { differences++; }
+		}
+		// an unaligned range with a tail for the scalar loop
+		Arrays.fill(vector, Float.NaN);
+		STARDataMELD.MELD_3_0.score(labs, 3, 3 + 1021, vector);
+		STARDataMELD.MELD_3_0_SCALAR.score(labs, 3, 3 + 1021, scalar);
+		for (int i = 3; i < 3 + 1021; i++) {
+			if (Float.floatToRawIntBits(vector[i]) != Float.floatToRawIntBits(scalar[i])) { differences++; }
+		}
+		check(differences == 0, "MELD 3.0 vector = scalar on " + labs.size + " labs (" + differences + " differences)");
+	}
+
+	/**
+	 * The cohort read and joined against the previous release, and cubes moved from one release to the next
+	 * by STARDataIncrement, against the new release read and filled in full, bit for bit. The two releases each leave out a different share of the generated rows, so
+	 * patients are added, removed and changed between them, and the first goes through a snapshot and its
+	 * stored cubes as it would with -incremental.
+	 */
+	static void checkIncremental(File directory, int threads) throws Exception {
+		File previousRelease = release(directory, "previous", 50, 0, 40, 0), release = release(directory, "current", 50, 25, 40, 20);
+		File snapshot = new File(directory, "cohort.snapshot");
+		STARDataCube.Dimension[] dimensions = LiverTransplantReadmissions.dimensions();
+		STARDataCube.Measure[] measures = {STARDataCube.AGE, STARDataCube.BMI, STARDataCube.MELD};
+
+		STARDataSnapshot stored = new STARDataSnapshot();
+		stored.cohort = STARDataIngest.readCohort(new File(previousRelease, "LIVER_DATA.csv"), threads);
+		stored.join = STARDataFollowUpJoin.join(new File(previousRelease, "LIVER_FOLLOWUP_DATA.csv"), stored.cohort, threads);
+		stored.write(snapshot);
+		for (int window : WINDOWS) {
+			stored.cohort.markReadmissions(window);
+			stored.putCube(window, STARDataCube.fill(stored.cohort, dimensions, measures, threads));
+		}
+		stored.writeCubes(snapshot);
+
+		STARDataSnapshot previous = STARDataSnapshot.read(snapshot);
+		check(same(previous.join, stored.join), "Snapshot keeps the join counts");
+		STARDataCohort cohort = STARDataIngest.readCohort(new File(release, "LIVER_DATA.csv"), previous.cohort, threads);
+		STARDataFollowUpJoin join = STARDataFollowUpJoin.join(new File(release, "LIVER_FOLLOWUP_DATA.csv"), cohort, previous.cohort, threads);
+		STARDataIncrement increment = STARDataIncrement.compare(previous.cohort, cohort);
+		check(increment.added > 0 && increment.removed > 0 && increment.changed > 0, "Releases differ: " + increment);
+		STARDataCohort rebuilt = STARDataIngest.readCohort(new File(release, "LIVER_DATA.csv"), threads);
+		STARDataFollowUpJoin rejoined = STARDataFollowUpJoin.join(new File(release, "LIVER_FOLLOWUP_DATA.csv"), rebuilt, threads);
+		rebuilt.findReadmissionGaps();
+		check(same(cohort, rebuilt) && same(join, rejoined), "Cohort read against the previous release = full rebuild (" + cohort.size + " patients)");
+		for (int window : WINDOWS) {
+			cohort.markReadmissions(window);
+			rebuilt.markReadmissions(window);
+			STARDataCube cube = previous.cube(window, dimensions, measures);
+			int refilled = increment.update(cube, previous.cohort, cohort, window, threads);
+			STARDataCube full = STARDataCube.fill(rebuilt, dimensions, measures, threads);
+			check(same(cube, full), "Incremental cube = full rebuild, readmission within " + window + " days (" + refilled + " of " + cube.cells() + " cells refilled)");
+		}
+	}
+
+	/**
+	 * STARDataSpillJoin against STARDataFollowUpJoin: readmission gaps and row counts, with some follow-up
+	 * rows repeated, runs small enough that every chunk spills many of them, and no run files left behind.
+	 */
+	static void checkSpillJoin(File directory, int threads) throws Exception {
+		File liverData = new File(directory, "LIVER_DATA.csv"), followUpData = new File(directory, "LIVER_FOLLOWUP_DATA_REPEATS.csv");
+		copyRows(new File(directory, "LIVER_FOLLOWUP_DATA.csv"), followUpData, 7, 3, 2);
+		File spill = new File(directory, "spill");
+		if (!spill.mkdir()) { throw new IllegalStateException("Cannot create " + spill); }
+		STARDataCohort cohort = STARDataIngest.readCohort(liverData, threads), spilled = STARDataIngest.readCohort(liverData, threads);
+		STARDataFollowUpJoin join = STARDataFollowUpJoin.join(followUpData, cohort, threads);
+		cohort.findReadmissionGaps();
+		STARDataFollowUpJoin spillJoin = STARDataSpillJoin.join(followUpData, spilled, threads, spill, 1000);
+		check(Arrays.equals(cohort.readmissionGap, spilled.readmissionGap), "Spill join readmission gaps = in-memory join");
+		check(spillJoin.matchedRows == join.matchedRows && spillJoin.unmatchedRows == join.unmatchedRows && spillJoin.duplicateRows == join.duplicateRows && spillJoin.otherRows == join.otherRows,
+				"Spill join counts = in-memory join (" + join.matchedRows + " matched, " + join.unmatchedRows + " unmatched, " + join.duplicateRows + " duplicates, " + join.otherRows + " other)");
+		check(spill.list().length == 0, "Spill join leaves no run files");
+	}
+
+	/**
+	 * STARDataJob on two overlapping releases against the latest release alone. The older release has
+	 * every 10th row left out and changed ages and HOSP flags on others, so the latest release has to win
+	 * for rows it changed, accepted or rejected. Its directory comes first in path order so the release
+	 * order is not the path order.
+	 */
+	static void checkReleases(File directory, int threads) throws Exception {
+		File latest = new File(directory, "a-latest"), previous = new File(directory, "z-previous");
+		if (!latest.mkdir() || !previous.mkdir()) { throw new IllegalStateException("Cannot create " + latest + " and " + previous); }
+		Files.copy(new File(directory, "LIVER_DATA.csv").toPath(), new File(latest, "LIVER_DATA.csv").toPath());
+		Files.copy(new File(directory, "LIVER_FOLLOWUP_DATA.csv").toPath(), new File(latest, "LIVER_FOLLOWUP_DATA.csv").toPath());
+		editRows(new File(directory, "LIVER_DATA.csv"), new File(previous, "LIVER_DATA.csv"), 10, 7, STARDataColumns.LIVER_PROJECTION[STARDataColumns.LIVER_AGE], "45.0");
+		editRows(new File(directory, "LIVER_FOLLOWUP_DATA.csv"), new File(previous, "LIVER_FOLLOWUP_DATA.csv"), 10, 5, STARDataColumns.FOLLOWUP_PROJECTION[STARDataColumns.FOLLOWUP_HOSP], "Y");
+		File[] liverData = {new File(previous, "LIVER_DATA.csv"), new File(latest, "LIVER_DATA.csv")}, followUpData = {new File(previous, "LIVER_FOLLOWUP_DATA.csv"), new File(latest, "LIVER_FOLLOWUP_DATA.csv")};
+		STARDataJob both = STARDataJob.run(liverData, followUpData, new File(directory, "job-both"), threads, WINDOWS[0]);
+		STARDataJob alone = STARDataJob.run(new File[] {liverData[1]}, new File[] {followUpData[1]}, new File(directory, "job-latest"), threads, WINDOWS[0]);
+		STARDataCohort a = both.cohort, b = alone.cohort;
+		check(same(a, b), "Overlapping releases give the latest release's cohort (" + b.ptCode.length + " patients)");
+		boolean sameCounts = same(both.join, alone.join);
+		for (String outcome : STARDataIngest.ROW_OUTCOMES) {
+			sameCounts &= both.counters.findCounter(STARDataJob.ROW_OUTCOMES, outcome).getValue() == alone.counters.findCounter(STARDataJob.ROW_OUTCOMES, outcome).getValue();
+		}
+		check(sameCounts, "Overlapping releases give the latest release's row and join counts");
+	}
+
+	/**
+	 * Same patients with the same arrays, labs, readmission gaps and fingerprints.
+	 */
+	private static boolean same(STARDataCohort a, STARDataCohort b) {
+		STARDataMELD x = a.labs, y = b.labs;
+		boolean sameLabs = Arrays.equals(x.female, 0, x.size, y.female, 0, y.size) && Arrays.equals(x.dialysis, 0, x.size, y.dialysis, 0, y.size)
+				&& Arrays.equals(x.bilirubin, 0, x.size, y.bilirubin, 0, y.size) && Arrays.equals(x.inr, 0, x.size, y.inr, 0, y.size)
+				&& Arrays.equals(x.creatinine, 0, x.size, y.creatinine, 0, y.size) && Arrays.equals(x.sodium, 0, x.size, y.sodium, 0, y.size)
+				&& Arrays.equals(x.albumin, 0, x.size, y.albumin, 0, y.size);
+		return sameLabs && Arrays.equals(a.ptCode, b.ptCode) && Arrays.equals(a.trrIdCode, b.trrIdCode) && Arrays.equals(a.age, b.age) && Arrays.equals(a.diab, b.diab) && Arrays.equals(a.hcv, b.hcv)
+				&& Arrays.equals(a.functionalStatus, b.functionalStatus) && Arrays.equals(a.dischargeOffsets, b.dischargeOffsets) && Arrays.equals(a.dischargeDays, b.dischargeDays)
+				&& Arrays.equals(a.bmiOffsets, b.bmiOffsets) && Arrays.equals(a.bmi, b.bmi) && Arrays.equals(a.meldOffsets, b.meldOffsets) && Arrays.equals(a.meld, b.meld)
+				&& Arrays.equals(a.followUpOffsets, b.followUpOffsets) && Arrays.equals(a.followUpDays, b.followUpDays) && Arrays.equals(a.averageBMI, b.averageBMI)
+				&& Arrays.equals(a.averageMELD, b.averageMELD) && Arrays.equals(a.readmissionGap, b.readmissionGap)
+				&& Arrays.equals(a.rowFingerprint, b.rowFingerprint) && Arrays.equals(a.followUpFingerprint, b.followUpFingerprint);
+	}
+
+	private static boolean same(STARDataFollowUpJoin a, STARDataFollowUpJoin b) {
+		return a.matchedRows == b.matchedRows && a.unmatchedRows == b.unmatchedRows && a.duplicateRows == b.duplicateRows && a.otherRows == b.otherRows;
+	}
+
+	/**
+	 * Same counts and same bits in every statistic of every cell.
+	 */
+	private static boolean same(STARDataCube a, STARDataCube b) {
+		if (!Arrays.equals(a.count, b.count)) { return false; }
+		for (int m = 0; m < a.measures.length; m++) {
+			for (int c = 0; c < a.cells(); c++) {
+				STARDataStatistics x = a.statistics(m, c), y = b.statistics(m, c);
+				if (x.count != y.count || Double.doubleToLongBits(x.mean) != Double.doubleToLongBits(y.mean) || Double.doubleToLongBits(x.m2) != Double.doubleToLongBits(y.m2)
+						|| Double.doubleToLongBits(x.min) != Double.doubleToLongBits(y.min) || Double.doubleToLongBits(x.max) != Double.doubleToLongBits(y.max)) { return false; }
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A subdirectory with the generated files, less every liverEvery-th LIVER_DATA row from liverOffset
+	 * and every followUpEvery-th LIVER_FOLLOWUP_DATA row from followUpOffset.
+	 */
+	private static File release(File directory, String name, int liverEvery, int liverOffset, int followUpEvery, int followUpOffset) throws Exception {
+		File release = new File(directory, name);
+		if (!release.mkdir()) { throw new IllegalStateException("Cannot create " + release); }
+		copyRows(new File(directory, "LIVER_DATA.csv"), new File(release, "LIVER_DATA.csv"), liverEvery, liverOffset, 0);
+		copyRows(new File(directory, "LIVER_FOLLOWUP_DATA.csv"), new File(release, "LIVER_FOLLOWUP_DATA.csv"), followUpEvery, followUpOffset, 0);
+		return release;
+	}
+
+	/**
+	 * Copies the CSV with every every-th row from offset written the given number of times instead of once.
+	 */
+	private static void copyRows(File from, File to, int every, int offset, int copies) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(from), StandardCharsets.UTF_8), 1 << 16);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(to), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			out.write(in.readLine());
+			out.write('\n');
+			String line;
+			for (int row = 0; (line = in.readLine()) != null; row++) {
+				for (int copy = row % every == offset ? copies : 1; copy > 0; copy--) {
+					out.write(line);
+					out.write('\n');
+				}
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Copies the CSV less every dropEvery-th row, with the given column set to value on every
+	 * editEvery-th row.
+	 */
+	private static void editRows(File from, File to, int dropEvery, int editEvery, int column, String value) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(from), StandardCharsets.UTF_8), 1 << 16);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(to), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			out.write(in.readLine());
+			out.write('\n');
+			String line;
+			for (int row = 0; (line = in.readLine()) != null; row++) {
+				if (row % dropEvery == 0) { continue; }
+				if (row % editEvery == 0) {
+					String[] fields = line.split(",", -1);
+					fields[column] = value;
+					line = String.join(",", fields);
+				}
+				out.write(line);
+				out.write('\n');
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) { delete(child); }
+		}
+		file.delete();
+	}
+}